@@ -4,6 +4,10 @@ import static java.lang.Math.*;
 
 /**
  * Implementation of a camera with a position and orientation. 
+ * 
+ * The camera modes compute where the camera should be, the camera then
+ * moves there with a critically damped spring so switching modes or
+ * focus never makes the view jump.
  */
 class Camera {
 
@@ -15,18 +19,68 @@ class Camera {
 
     /** The up vector. */
     public Vector up = Vector.Z;
-    //an int representing the last cameramode
-    int last = 0;
-    //a boolean which keeps track if we have to update our random camera
-    boolean update = false;
+    
+    /** The camera mode of the auto mode's current shot, picked by the {@link Director}. */
+    private int shotMode = 1;
+    
+    /** Whether the motorcycle mode follows the precomputed rail of the track. */
+    boolean useRails = Boolean.parseBoolean(System.getProperty("robotrace.rails", "true"));
+    
+    /** Roughly the time in seconds the camera needs to reach a new position. */
+    private final static double smoothTime = 0.35;
+    
+    /** Smoothed eye and center, with their velocities, stored as x, y, z. */
+    private final double[] eyeState = new double[3];
+    private final double[] eyeVelocity = new double[3];
+    private final double[] centerState = new double[3];
+    private final double[] centerVelocity = new double[3];
+    
+    /** Vectors holding the smoothed eye and center, reused every frame. */
+    private final Vector smoothEye = new Vector(0, 0, 0);
+    private final Vector smoothCenter = new Vector(0, 0, 0);
+    
+    /** Vectors receiving the eye and center computed by the camera modes, reused every frame. */
+    private final Vector modeEye = new Vector(0, 0, 0);
+    private final Vector modeCenter = new Vector(0, 0, 0);
+    
+    /** Vector and buffer receiving the position on the camera rail, reused every frame. */
+    private final Vector railEye = new Vector(0, 0, 0);
+    private final double[] railPoint = new double[3];
+    
+    /** The time in seconds of the previous update, NaN before the first update. */
+    private double lastUpdate = Double.NaN;
+    
+    /** Whether smoothing follows the animation time instead of the wall clock, for fixed time step rendering. */
+    static boolean useAnimationTime = false;
+    
+    /** The rail of the current track, may be null. */
+    private CameraRail rail;
+    
     /**
      * Updates the camera viewpoint and direction based on the
      * selected camera mode.
+     * @param gs    The global state.
+     * @param focus The robot the camera modes focus on.
+     * @param rail  The camera rail of the current track, null if there is none.
      */
-    public void update(GlobalState gs, Robot focus) {
+    public void update(GlobalState gs, Robot focus, CameraRail rail) {
+        update(gs, gs.camMode, focus, rail);
+    }
+    
+    /**
+     * Updates the camera viewpoint and direction based on the
+     * given camera mode.
+     * @param gs        The global state.
+     * @param camMode   The camera mode to use instead of the one selected in the menus.
+     * @param focus     The robot the camera modes focus on.
+     * @param rail      The camera rail of the current track, null if there is none.
+     */
+    public void update(GlobalState gs, int camMode, Robot focus, CameraRail rail) {
+        this.rail = rail;
+        
         // Change center to given.
         center = gs.cnt;
-        switch (gs.camMode) {
+        switch (camMode) {
             // Helicopter mode
             case 1:
                 setHelicopterMode(gs, focus);
@@ -52,6 +106,9 @@ class Camera {
                 setDefaultMode(gs);
         }
         
+        // The default mode is controlled by the user and follows the mouse directly.
+        smooth(camMode == 0, useAnimationTime ? gs.tAnim : System.nanoTime()*1e-9);
+        
         // When the camera is looking straight down fix the "up" vector.
         if(
                 (eye.x-center.x < 0.01 && center.x-eye.x < 0.01) &&
@@ -61,6 +118,54 @@ class Camera {
             up = Vector.Z;
     }
 
+    /**
+     * Moves the smoothed eye and center towards the eye and center computed by
+     * the camera mode, and makes the smoothed values the current ones.
+     * @param snap Whether to jump to the computed values immediately.
+     * @param now  The current time in seconds.
+     */
+    private void smooth(boolean snap, double now) {
+        double dt = now - lastUpdate;
+        lastUpdate = now;
+        
+        // A stalled frame should not fling the camera away, the first frame has no dt (NaN).
+        snap = snap || !(dt > 0 && dt <= 1);
+        follow(eye, eyeState, eyeVelocity, dt, snap);
+        follow(center, centerState, centerVelocity, dt, snap);
+        
+        smoothEye.x = eyeState[0];
+        smoothEye.y = eyeState[1];
+        smoothEye.z = eyeState[2];
+        smoothCenter.x = centerState[0];
+        smoothCenter.y = centerState[1];
+        smoothCenter.z = centerState[2];
+        eye = smoothEye;
+        center = smoothCenter;
+    }
+    
+    /**
+     * Advances a critically damped spring towards a target, per axis.
+     * Uses the approximation from Game Programming Gems 4, chapter 1.10,
+     * which stays stable for any time step.
+     */
+    private void follow(Vector target, double[] state, double[] velocity, double dt, boolean snap) {
+        double omega = 2/smoothTime;
+        double x = omega*dt;
+        double decay = 1/(1 + x + 0.48*x*x + 0.235*x*x*x);
+        for(int axis = 0; axis < 3; axis++) {
+            double goal = axis == 0 ? target.x() : axis == 1 ? target.y() : target.z();
+            if(snap) {
+                state[axis] = goal;
+                velocity[axis] = 0;
+            } else {
+                double change = state[axis] - goal;
+                double temp = (velocity[axis] + omega*change)*dt;
+                velocity[axis] = (velocity[axis] - omega*temp)*decay;
+                state[axis] = goal + (change + temp)*decay;
+            }
+        }
+    }
+
     /**
      * Computes eye, center, and up, based on the camera's default mode.
      */
@@ -82,7 +187,10 @@ class Camera {
         calcZ = gs.vDist * (float)cos(phi);
         
         // Setting the Eye.
-        eye = new Vector(calcX, calcY, calcZ).add(center);
+        modeEye.x = calcX + center.x();
+        modeEye.y = calcY + center.y();
+        modeEye.z = calcZ + center.z();
+        eye = modeEye;
     }
 
     /**
@@ -90,7 +198,6 @@ class Camera {
      * The camera should focus on the robot.
      */
     private void setHelicopterMode(GlobalState gs, Robot focus) {
-        update = false;
         double calcX, calcY, calcZ, r;
         calcX = focus.position.x;
         calcY = focus.position.y;
@@ -100,8 +207,10 @@ class Camera {
         r = Math.hypot(calcX, calcY);
         calcX = r * cos(gs.theta);
         calcY = r * sin(gs.theta);
-        eye = new Vector(calcX, calcY, calcZ).add(center);
-       
+        modeEye.x = calcX + center.x();
+        modeEye.y = calcY + center.y();
+        modeEye.z = calcZ + center.z();
+        eye = modeEye;
     }
 
     /**
@@ -109,14 +218,31 @@ class Camera {
      * The camera should focus on the robot.
      */
     private void setMotorCycleMode(GlobalState gs, Robot focus) {
-        update = false;
-        Vector direc = focus.direction.cross(Vector.Z);
-        direc = direc.normalized();
+        if(useRails && rail != null) {
+            // Ride along the rail of the track, trailing the robot.
+            rail.evaluate(focus.poseProgress, railPoint);
+            railEye.x = railPoint[0];
+            railEye.y = railPoint[1];
+            railEye.z = railPoint[2];
+            center = focus.position;
+            up = Vector.Z;
+            eye = railEye;
+            return;
+        }
+        // The unit vector to the side of the robot, direction x Z.
+        double sideX = focus.direction.y(), sideY = -focus.direction.x();
+        double side = Math.hypot(sideX, sideY);
         center = focus.position;
         up = Vector.Z;
-        eye = direc.add(center);
-        double scalar = eye.length() + center.length();
-        eye = (eye.normalized()).scale(scalar);
+        modeEye.x = sideX/side + center.x();
+        modeEye.y = sideY/side + center.y();
+        modeEye.z = center.z();
+        double length = modeEye.length();
+        double scalar = length + center.length();
+        modeEye.x *= scalar/length;
+        modeEye.y *= scalar/length;
+        modeEye.z *= scalar/length;
+        eye = modeEye;
         //need to get standard length
     }
 
@@ -125,56 +251,40 @@ class Camera {
      * The camera should view from the perspective of the robot.
      */
     private void setFirstPersonMode(GlobalState gs, Robot focus) {
-        update = false;
         up = Vector.Z;
-        center = focus.position.add(focus.direction);
-        eye = focus.position.add(Vector.O);
-        eye.z = eye.z + 2.3;
-        center.z = eye.z();
+        modeEye.x = focus.position.x();
+        modeEye.y = focus.position.y();
+        modeEye.z = focus.position.z() + 2.3;
+        modeCenter.x = focus.position.x() + focus.direction.x();
+        modeCenter.y = focus.position.y() + focus.direction.y();
+        modeCenter.z = modeEye.z();
+        eye = modeEye;
+        center = modeCenter;
         //camera is set up properly, but maybe fix the zoom? You need to manually zoom out for best results
     }
     
     /**
      * Computes eye, center, and up, based on the auto mode.
-     * The above modes are alternated.
+     * The above modes are alternated by the director.
      */
     private void setAutoMode(GlobalState gs, Robot focus) {
-        //if we don't update we go for a random nr to determine which camera mode we want
-        if(!(update)) {
-            double choice = Math.random();
-            if(choice < 0.33 && last != 1) {
-                last = 1; //save our choice
-            }
-            else if(0.33 < choice && choice < 0.66 && last != 2) {
-                last = 2; //save our choice
-            }
-            else {
-                last = 3;
-         }
-        
-    }
-        else { //if update is true we switch camera mode
-            switch (last) {
-                case 1:
-                    update = false;
-                    setHelicopterMode(gs, focus);
-                    break;
-                case 2:
-                    update = false;
-                    setMotorCycleMode(gs, focus);
-                    break;
-                case 3:
-                    update = false;
-                    setFirstPersonMode(gs, focus);
-                    break;
-            }
+        switch (shotMode) {
+            case 1:
+                setHelicopterMode(gs, focus);
+                break;
+            case 2:
+                setMotorCycleMode(gs, focus);
+                break;
+            default:
+                setFirstPersonMode(gs, focus);
         }
     }
+    
     /**
-     * a work-around to get the update variable from RobotRace.java
-     * @param b a boolean value that is assigned to update
+     * Sets the camera mode of the auto mode's current shot.
+     * @param mode 1 helicopter, 2 motorcycle or 3 first person.
      */
-    public void varUpdate(boolean b) {
-        update = b;
+    public void setShot(int mode) {
+        shotMode = mode;
     }
-}
\ No newline at end of file
+}
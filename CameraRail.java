@@ -0,0 +1,70 @@
+package robotrace;
+
+/**
+ * A precomputed path for the camera running alongside a race track.
+ *
+ * The rail is sampled once at equal distances along the outside of the
+ * track. Following a robot then only interpolates between two samples,
+ * without allocating any objects.
+ */
+class CameraRail {
+
+    /** Distance between two samples of the rail. */
+    private final static double spacing = 0.25;
+
+    /** Height of the rail above the track. */
+    private final static double height = 2.5;
+
+    /** How far the camera trails behind the robot it follows. */
+    private final static double trailing = 4;
+
+    /** Lane (beyond the last lane of the track) the rail runs along. */
+    private final static int railLane = RaceTrack.laneCount + 2;
+
+    /** The track this rail runs along. */
+    private final RaceTrack track;
+
+    /** Positions on the rail, stored as x, y, z per sample. */
+    private final double[] samples;
+
+    /** The number of samples on the rail. */
+    private final int count;
+
+    /**
+     * Samples a rail along the outside of the given track.
+     */
+    public CameraRail(RaceTrack track) {
+        this.track = track;
+        this.count = Math.max(2, (int)Math.ceil(track.getLength()/spacing) + 1);
+        this.samples = new double[3*count];
+
+        for(int i = 0; i < count; i++) {
+            // Sample at equal distances, not at equal steps of t.
+            double t = track.getProgressAt(Math.min(i*spacing, track.getLength()));
+            Vector v = track.getLanePoint(railLane, t);
+            samples[3*i] = v.x();
+            samples[3*i+1] = v.y();
+            samples[3*i+2] = v.z() + height;
+        }
+    }
+
+    /**
+     * Computes the camera position on the rail for a robot at the given progress.
+     * @param progress  The progress of the followed robot, 0 <= progress <= 1.
+     * @param out       Receives the x, y, z of the camera position.
+     */
+    public void evaluate(double progress, double[] out) {
+        double distance = track.getArcLength(progress) - trailing;
+
+        // Trail around the start of a closed track, stay at the start of an open one.
+        double length = track.getLength();
+        if(distance < 0)
+            distance = track.isClosed() ? distance + length : 0;
+
+        double position = Math.min(distance/spacing, count - 1);
+        int i = Math.min((int)position, count - 2);
+        double fraction = position - i;
+        for(int axis = 0; axis < 3; axis++)
+            out[axis] = samples[3*i+axis] + fraction*(samples[3*(i+1)+axis]-samples[3*i+axis]);
+    }
+}
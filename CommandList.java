@@ -0,0 +1,59 @@
+package robotrace;
+
+import javax.media.opengl.GL2;
+
+/**
+ * Captures static draw work once and replays it every frame.
+ *
+ * The geometry is recorded into a display list on its first call and
+ * every later call only executes the list, so immediate mode geometry
+ * costs one call per frame instead of one call per vertex. Every track
+ * and the terrain own their lists and their geometry never changes, so a
+ * list is never recorded twice; it is deleted with the context.
+ *
+ * Only geometry and texture binds should be recorded. The uniforms set
+ * through {@link Lighting} are cached there and must stay outside the
+ * list, otherwise a replay would leave that cache out of date.
+ */
+class CommandList {
+
+    /**
+     * Draw work that can be recorded.
+     */
+    interface Recording {
+        /** Issues the draw calls, which are recorded instead of executed. */
+        void record(GL2 gl);
+    }
+
+    /** The draw work of this list. */
+    private final Recording recording;
+
+    /** The display list, 0 before the first call and after {@link #delete}. */
+    private int list = 0;
+
+    public CommandList(Recording recording) {
+        this.recording = recording;
+    }
+
+    /**
+     * Executes the recorded draw work, recording it first when needed.
+     */
+    public void call(GL2 gl) {
+        if(list == 0) {
+            list = gl.glGenLists(1);
+            gl.glNewList(list, GL2.GL_COMPILE);
+            recording.record(gl);
+            gl.glEndList();
+        }
+        gl.glCallList(list);
+    }
+
+    /**
+     * Deletes the display list, before the context is disposed.
+     */
+    public void delete(GL2 gl) {
+        if(list != 0)
+            gl.glDeleteLists(list, 1);
+        list = 0;
+    }
+}
@@ -0,0 +1,178 @@
+package robotrace;
+
+/**
+ * Picks the robot and camera mode of the auto camera from what happens in
+ * the race.
+ *
+ * Overtakes and leader changes come from the leaderboard as it is
+ * repaired, close battles are found by comparing the gap of every robot
+ * to the robot ahead of it. Both only look at what changed in a tick, so
+ * detecting events costs a constant amount of work per robot. The events
+ * wait in a bounded queue; when it is full the oldest event is dropped,
+ * it would be stale by the time it is shown.
+ *
+ * A shot is held for at least {@link #minShot} seconds. After that, the
+ * best waiting event cuts to a new shot if it has a higher priority than
+ * the current shot, or any event does once the shot has run for
+ * {@link #maxShot} seconds. Without events the director cuts between the
+ * leaders with the camera modes in turn.
+ */
+class Director implements Leaderboard.Listener {
+
+    /** Shortest and longest time a shot is held, in seconds. */
+    private final static float minShot = 2.5f;
+    private final static float maxShot = 8f;
+
+    /** Robots closer than this to the robot ahead, in laps, are in a close battle. */
+    private final static double battleGap = 0.015;
+
+    /** Number of events the queue holds. */
+    private final static int queueSize = 16;
+
+    /** The robots in the race and their ranking. */
+    private final Robot[] robots;
+    private final Leaderboard leaderboard;
+
+    /** Ring buffer of the waiting events, oldest first. */
+    private final RaceEvent[] queue = new RaceEvent[queueSize];
+    private int head = 0;
+    private int count = 0;
+
+    /** Number of events dropped because the queue was full. */
+    private int dropped = 0;
+
+    /** For every robot, the robot ahead it is in a close battle with, or -1. */
+    private final int[] battling;
+
+    /** The animation time of the last tick, the time given to new events. */
+    private float now = 0;
+
+    /** The robot and camera mode of the current shot, and when it started. */
+    private int focus = 0;
+    private int cameraMode = 1;
+    private float shotStart = 0;
+
+    /** The priority of the current shot, 0 for shots without an event. */
+    private int shotPriority = 0;
+
+    /**
+     * Constructs a director listening to the overtakes on a leaderboard.
+     */
+    public Director(Robot[] robots, Leaderboard leaderboard) {
+        this.robots = robots;
+        this.leaderboard = leaderboard;
+        this.battling = new int[robots.length];
+        for(int i = 0; i < battling.length; i++)
+            battling[i] = -1;
+        leaderboard.setListener(this);
+    }
+
+    /**
+     * Queues the overtakes reported by the leaderboard.
+     * Passing the leader is a leader change.
+     */
+    @Override
+    public void overtake(int robot, int passed, int rank) {
+        post(new RaceEvent(rank == 0 ? RaceEvent.Type.LEADER_CHANGE : RaceEvent.Type.OVERTAKE,
+                robot, passed, rank, now));
+    }
+
+    /**
+     * Queues an event, dropping the oldest one when the queue is full.
+     */
+    public void post(RaceEvent event) {
+        if(count == queueSize) {
+            head = (head + 1) % queueSize;
+            count--;
+            dropped++;
+        }
+        queue[(head + count) % queueSize] = event;
+        count++;
+    }
+
+    /**
+     * Finds the close battles and schedules the next shot.
+     * Called after every update of the leaderboard.
+     * @param tAnim The animation time of the tick.
+     */
+    public void tick(float tAnim) {
+        // The animation time starts over when the race is reset.
+        if(tAnim < shotStart)
+            shotStart = tAnim;
+        now = tAnim;
+        findBattles();
+
+        float length = tAnim - shotStart;
+        if(length < minShot)
+            return;
+
+        // Take the best waiting event, the others are stale by the next cut.
+        RaceEvent best = null;
+        while(count > 0) {
+            RaceEvent event = queue[head];
+            queue[head] = null;
+            head = (head + 1) % queueSize;
+            count--;
+            if(event.isBetterThan(best))
+                best = event;
+        }
+
+        if(best != null && (best.type.priority > shotPriority || length >= maxShot)) {
+            // Films the event, the same shot is held longer.
+            cut(best.robot, best.type.cameraMode, best.type.priority);
+        } else if(length >= maxShot) {
+            // Nothing happened, film the leader or the runner-up with the next camera mode.
+            int robot = leaderboard.leader();
+            if(robot == focus && leaderboard.size() > 1)
+                robot = leaderboard.robotAt(1);
+            cut(robot, cameraMode % 3 + 1, 0);
+        }
+    }
+
+    /**
+     * Queues a close battle for every robot that got close to the robot ahead of it.
+     */
+    private void findBattles() {
+        for(int rank = 1; rank < leaderboard.size(); rank++) {
+            int robot = leaderboard.robotAt(rank);
+            int ahead = leaderboard.robotAt(rank - 1);
+            boolean close = robots[ahead].raceDistance() - robots[robot].raceDistance() < battleGap;
+            if(close && battling[robot] != ahead)
+                post(new RaceEvent(RaceEvent.Type.CLOSE_BATTLE, robot, ahead, rank, now));
+            battling[robot] = close ? ahead : -1;
+        }
+        // The leader has no robot ahead.
+        battling[leaderboard.leader()] = -1;
+    }
+
+    /**
+     * Starts a new shot.
+     */
+    private void cut(int robot, int mode, int priority) {
+        focus = robot;
+        cameraMode = mode;
+        shotPriority = priority;
+        shotStart = now;
+    }
+
+    /**
+     * Returns the robot the current shot focuses on.
+     */
+    public int getFocus() {
+        return focus;
+    }
+
+    /**
+     * Returns the camera mode of the current shot: 1 helicopter, 2 motorcycle, 3 first person.
+     */
+    public int getCameraMode() {
+        return cameraMode;
+    }
+
+    /**
+     * Returns the number of events dropped because the queue was full.
+     */
+    public int getDropped() {
+        return dropped;
+    }
+}
@@ -0,0 +1,301 @@
+package robotrace;
+
+import static javax.media.opengl.GL.GL_CLAMP_TO_EDGE;
+import static javax.media.opengl.GL.GL_COLOR_ATTACHMENT0;
+import static javax.media.opengl.GL.GL_DEPTH_ATTACHMENT;
+import static javax.media.opengl.GL.GL_DEPTH_COMPONENT24;
+import static javax.media.opengl.GL.GL_DEPTH_TEST;
+import static javax.media.opengl.GL.GL_FRAMEBUFFER;
+import static javax.media.opengl.GL.GL_LINEAR;
+import static javax.media.opengl.GL.GL_RENDERBUFFER;
+import static javax.media.opengl.GL.GL_REPLACE;
+import static javax.media.opengl.GL.GL_RGBA;
+import static javax.media.opengl.GL.GL_RGBA8;
+import static javax.media.opengl.GL.GL_TEXTURE0;
+import static javax.media.opengl.GL.GL_TEXTURE_2D;
+import static javax.media.opengl.GL.GL_TEXTURE_MAG_FILTER;
+import static javax.media.opengl.GL.GL_TEXTURE_MIN_FILTER;
+import static javax.media.opengl.GL.GL_TEXTURE_WRAP_S;
+import static javax.media.opengl.GL.GL_TEXTURE_WRAP_T;
+import static javax.media.opengl.GL.GL_UNSIGNED_BYTE;
+import static javax.media.opengl.GL2.GL_ENABLE_BIT;
+import static javax.media.opengl.GL2.GL_MODELVIEW;
+import static javax.media.opengl.GL2.GL_PROJECTION;
+import static javax.media.opengl.GL2.GL_TEXTURE_BIT;
+import static javax.media.opengl.GL2ES1.GL_TEXTURE_ENV;
+import static javax.media.opengl.GL2ES1.GL_TEXTURE_ENV_MODE;
+import static javax.media.opengl.GL2ES2.GL_QUERY_RESULT;
+import static javax.media.opengl.GL2ES2.GL_QUERY_RESULT_AVAILABLE;
+import static javax.media.opengl.GL2ES3.GL_DRAW_FRAMEBUFFER;
+import static javax.media.opengl.GL2ES3.GL_DRAW_FRAMEBUFFER_BINDING;
+import static javax.media.opengl.GL2GL3.GL_TEXTURE_1D;
+import static javax.media.opengl.GL2.GL_TIME_ELAPSED_EXT;
+import javax.media.opengl.GL2;
+
+/**
+ * Draws the scene at a lower resolution when the GPU cannot keep up, on
+ * with -Drobotrace.dynamicResolution=&lt;target frame time in ms&gt;.
+ *
+ * The scene is drawn into the lower left part of an offscreen framebuffer
+ * of the window size, which is then stretched over the window; text drawn
+ * afterwards stays at the full resolution. The GPU time of the scene is
+ * measured with timer queries, read a few frames later without waiting,
+ * like the occlusion queries. Without timer queries the time between two
+ * frames is used instead, which also includes waiting for the CPU and for
+ * the display.
+ *
+ * A PI controller adjusts the scale of the resolution from the difference
+ * between the target and the measured time. Two kinds of hysteresis keep
+ * the resolution from flickering: times in a dead band somewhat under the
+ * target count as on target, and the resolution only changes once the
+ * controller has moved a full step away from it.
+ */
+class DynamicResolution {
+
+    /** Smallest and largest scale of the resolution. */
+    private final static double minScale = 0.5, maxScale = 1;
+
+    /** Gains of the controller, per frame, on the relative difference to the target. */
+    private final static double kp = 0.3, ki = 0.05;
+
+    /**
+     * The dead band: times up to this fraction over the target, or down to
+     * this fraction under it, count as on target. It is wider below the
+     * target than a step of the resolution changes the time, so raising the
+     * resolution never immediately makes the frame too slow again.
+     */
+    private final static double overBand = 0.01, underBand = 0.2;
+
+    /** The resolution only changes by at least this much of the scale. */
+    private final static double step = 0.05;
+
+    /** Number of timer queries cycling between the frames. */
+    private final static int queryCount = 4;
+
+    /** The target GPU time of the scene, in milliseconds. */
+    private final double target;
+
+    /** The framebuffer, its color texture and its depth buffer, 0 before the first frame. */
+    private int framebuffer = 0, texture = 0, depth = 0;
+
+    /** Size of the framebuffer, the window size. */
+    private int width = 0, height = 0;
+
+    /** The scale the scene is drawn at, and the scale the controller asks for (the integral). */
+    private double scale = maxScale;
+    private double integral = maxScale;
+
+    /** Whether timer queries are supported, known after the first frame. */
+    private boolean timer;
+
+    /** When the previous frame began, for measuring without timer queries. */
+    private long lastBegin = 0;
+
+    /** The timer queries and whether their results are still to be read. */
+    private final int[] queries = new int[queryCount];
+    private final boolean[] pending = new boolean[queryCount];
+
+    /** The query of the current frame, -1 when every query is still pending. */
+    private int current = -1;
+    private int next = 0;
+
+    /** The framebuffer of the window, drawn into by {@link #end}. */
+    private final int[] window = new int[1];
+
+    /** The last measured GPU time, in milliseconds. */
+    private double gpuTime = 0;
+
+    /** Buffer receiving query results. */
+    private final long[] result = new long[1];
+
+    /**
+     * Returns the dynamic resolution when -Drobotrace.dynamicResolution is given, null otherwise.
+     */
+    public static DynamicResolution fromProperties() {
+        String target = System.getProperty("robotrace.dynamicResolution");
+        return target == null ? null : new DynamicResolution(Double.parseDouble(target));
+    }
+
+    /**
+     * Creates a dynamic resolution aiming for a GPU time of the scene.
+     * @param target The target time in milliseconds.
+     */
+    public DynamicResolution(double target) {
+        this.target = target;
+    }
+
+    /**
+     * Adjusts the resolution from the measured times and starts drawing
+     * into the offscreen framebuffer, at {@link #getWidth} by {@link #getHeight}.
+     * @param windowWidth   Width of the window.
+     * @param windowHeight  Height of the window.
+     */
+    public void begin(GL2 gl, int windowWidth, int windowHeight) {
+        if(framebuffer == 0) {
+            int[] names = new int[1];
+            gl.glGenFramebuffers(1, names, 0);
+            framebuffer = names[0];
+            gl.glGenTextures(1, names, 0);
+            texture = names[0];
+            gl.glGenRenderbuffers(1, names, 0);
+            depth = names[0];
+            timer = gl.isExtensionAvailable("GL_EXT_timer_query") || gl.isExtensionAvailable("GL_ARB_timer_query");
+            if(timer)
+                gl.glGenQueries(queryCount, queries, 0);
+        }
+        gl.glGetIntegerv(GL_DRAW_FRAMEBUFFER_BINDING, window, 0);
+        if(windowWidth != width || windowHeight != height)
+            resize(gl, windowWidth, windowHeight);
+
+        // Read the times of earlier frames that are available, oldest first.
+        long now = System.nanoTime();
+        if(!timer && lastBegin != 0)
+            control((now - lastBegin)/1e6);
+        lastBegin = now;
+        for(int i = 0; timer && i < queryCount; i++) {
+            int q = (next + i) % queryCount;
+            if(!pending[q])
+                continue;
+            gl.glGetQueryObjecti64vEXT(queries[q], GL_QUERY_RESULT_AVAILABLE, result, 0);
+            if(result[0] == 0)
+                break;
+            gl.glGetQueryObjecti64vEXT(queries[q], GL_QUERY_RESULT, result, 0);
+            pending[q] = false;
+            control(result[0]/1e6);
+        }
+
+        gl.glBindFramebuffer(GL_FRAMEBUFFER, framebuffer);
+
+        // Measure this frame, unless all queries are still waiting for the GPU.
+        current = !timer || pending[next] ? -1 : next;
+        if(current >= 0) {
+            gl.glBeginQuery(GL_TIME_ELAPSED_EXT, queries[current]);
+            next = (next + 1) % queryCount;
+        }
+    }
+
+    /**
+     * Resizes the framebuffer to the window.
+     */
+    private void resize(GL2 gl, int windowWidth, int windowHeight) {
+        width = windowWidth;
+        height = windowHeight;
+        gl.glBindTexture(GL_TEXTURE_2D, texture);
+        gl.glTexImage2D(GL_TEXTURE_2D, 0, GL_RGBA8, width, height, 0, GL_RGBA, GL_UNSIGNED_BYTE, null);
+        gl.glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
+        gl.glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
+        gl.glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
+        gl.glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
+        gl.glBindTexture(GL_TEXTURE_2D, 0);
+        gl.glBindRenderbuffer(GL_RENDERBUFFER, depth);
+        gl.glRenderbufferStorage(GL_RENDERBUFFER, GL_DEPTH_COMPONENT24, width, height);
+        gl.glBindRenderbuffer(GL_RENDERBUFFER, 0);
+        gl.glBindFramebuffer(GL_DRAW_FRAMEBUFFER, framebuffer);
+        gl.glFramebufferTexture2D(GL_DRAW_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, GL_TEXTURE_2D, texture, 0);
+        gl.glFramebufferRenderbuffer(GL_DRAW_FRAMEBUFFER, GL_DEPTH_ATTACHMENT, GL_RENDERBUFFER, depth);
+    }
+
+    /**
+     * Moves the scale towards the target time.
+     * @param time A measured GPU time in milliseconds.
+     */
+    private void control(double time) {
+        gpuTime = time;
+        double error = (target - time)/target;
+        if(error > -overBand && error < underBand)
+            error = 0;
+
+        // The integral is clamped to the scales, so it never winds up while the scale is at a limit.
+        integral = Math.max(minScale, Math.min(maxScale, integral + ki*error));
+        double desired = Math.max(minScale, Math.min(maxScale, integral + kp*error));
+        if(Math.abs(desired - scale) >= step || (desired != scale && (desired == minScale || desired == maxScale)))
+            scale = desired;
+    }
+
+    /**
+     * Stretches the scene over the window, after which text can be drawn
+     * at the full resolution. Leaves the lighting off and the viewport on
+     * the whole window; the enables and the texture state are restored.
+     */
+    public void end(GL2 gl) {
+        if(current >= 0) {
+            gl.glEndQuery(GL_TIME_ELAPSED_EXT);
+            pending[current] = true;
+        }
+        gl.glBindFramebuffer(GL_FRAMEBUFFER, window[0]);
+        gl.glViewport(0, 0, width, height);
+
+        Lighting.end(gl);
+        // The quad is drawn with the fixed function pipeline: only the 2D texture
+        // on unit 0, replacing the color. The scene leaves it off and the terrain
+        // leaves the 1D texture on, which would win.
+        gl.glPushAttrib(GL_ENABLE_BIT | GL_TEXTURE_BIT);
+        gl.glActiveTexture(GL_TEXTURE0);
+        gl.glDisable(GL_TEXTURE_1D);
+        gl.glEnable(GL_TEXTURE_2D);
+        gl.glTexEnvi(GL_TEXTURE_ENV, GL_TEXTURE_ENV_MODE, GL_REPLACE);
+        gl.glDisable(GL_DEPTH_TEST);
+        gl.glMatrixMode(GL_PROJECTION);
+        gl.glPushMatrix();
+        gl.glLoadIdentity();
+        gl.glMatrixMode(GL_MODELVIEW);
+        gl.glPushMatrix();
+        gl.glLoadIdentity();
+        gl.glBindTexture(GL_TEXTURE_2D, texture);
+        gl.glColor3f(1f, 1f, 1f);
+
+        // Only the part the scene was drawn in.
+        float s = (float)getWidth()/width, t = (float)getHeight()/height;
+        gl.glBegin(GL2.GL_QUADS);
+        gl.glTexCoord2f(0, 0);
+        gl.glVertex2f(-1, -1);
+        gl.glTexCoord2f(s, 0);
+        gl.glVertex2f(1, -1);
+        gl.glTexCoord2f(s, t);
+        gl.glVertex2f(1, 1);
+        gl.glTexCoord2f(0, t);
+        gl.glVertex2f(-1, 1);
+        gl.glEnd();
+
+        gl.glPopMatrix();
+        gl.glMatrixMode(GL_PROJECTION);
+        gl.glPopMatrix();
+        gl.glMatrixMode(GL_MODELVIEW);
+        gl.glPopAttrib();
+    }
+
+    /**
+     * Returns the width the scene is drawn at.
+     */
+    public int getWidth() {
+        return Math.max(1, (int)Math.round(width*scale));
+    }
+
+    /**
+     * Returns the height the scene is drawn at.
+     */
+    public int getHeight() {
+        return Math.max(1, (int)Math.round(height*scale));
+    }
+
+    /**
+     * Returns the scale the scene is drawn at.
+     */
+    public double getScale() {
+        return scale;
+    }
+
+    /**
+     * Returns the last measured GPU time of the scene, in milliseconds.
+     */
+    public double getGpuTime() {
+        return gpuTime;
+    }
+
+    /**
+     * Returns the target GPU time of the scene, in milliseconds.
+     */
+    public double getTarget() {
+        return target;
+    }
+}
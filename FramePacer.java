@@ -0,0 +1,136 @@
+package robotrace;
+
+import java.util.concurrent.locks.LockSupport;
+import javax.media.opengl.GL2;
+
+/**
+ * Paces the frames of the window, chosen with -Drobotrace.pacing:
+ * <ul>
+ * <li>vsync: frames are synchronized to the display refresh (the default);</li>
+ * <li>uncapped: frames are drawn as fast as possible, for benchmarks;</li>
+ * <li>a number: at most that many frames per second, e.g. 30 for a low
+ * power kiosk screen.</li>
+ * </ul>
+ * A capped frame waits for its start time at the beginning of the frame.
+ * The thread sleeps until shortly before that time and then spins the
+ * last stretch, since a sleep can overshoot by a fraction of a millisecond.
+ * Running late never makes the next frames hurry: the schedule restarts
+ * from the late frame.
+ *
+ * The robots move with the animation time, not per frame, so pacing only
+ * changes how smooth the race looks, never how fast it runs.
+ */
+class FramePacer {
+
+    /** How long before the start of a frame the thread stops sleeping and spins, in nanoseconds. */
+    private final static long spinNanos = 1000000;
+
+    /** Number of frames the frame time statistics are taken over. */
+    private final static int window = 120;
+
+    /** Whether the swap is synchronized to the display. */
+    private final boolean vsync;
+
+    /** Time between two frames when capped, 0 when not capped, in nanoseconds. */
+    private final long period;
+
+    /** When the next frame starts when capped, and when the last frame started. */
+    private long deadline = 0;
+    private long lastFrame = 0;
+
+    /** Sum and sum of squares of the frame times in the current window, in milliseconds. */
+    private double sum = 0, sumSquares = 0;
+    private double longest = 0;
+    private int count = 0;
+
+    /** Frame time statistics of the last full window, in milliseconds. */
+    private double average = 0, jitter = 0, maxFrame = 0;
+
+    /**
+     * Creates a pacer for a mode: "vsync", "uncapped" or a number of frames per second.
+     */
+    public FramePacer(String mode) {
+        vsync = "vsync".equals(mode);
+        if(vsync || "uncapped".equals(mode)) {
+            period = 0;
+        } else {
+            period = Math.round(1e9/Double.parseDouble(mode));
+        }
+    }
+
+    /**
+     * Synchronizes swapping to the display, or not.
+     * Called once the OpenGL context is created.
+     */
+    public void initialize(GL2 gl) {
+        gl.setSwapInterval(vsync ? 1 : 0);
+    }
+
+    /**
+     * Waits until the next frame may start and measures the time since the
+     * previous frame. Called at the start of every frame.
+     */
+    public void pace() {
+        if(period > 0) {
+            long now = System.nanoTime();
+            if(deadline == 0 || now - deadline > period)
+                deadline = now;
+            while(deadline - now > spinNanos) {
+                LockSupport.parkNanos(deadline - now - spinNanos);
+                now = System.nanoTime();
+            }
+            while(System.nanoTime() < deadline)
+                Thread.yield();
+            deadline += period;
+        }
+        measure(System.nanoTime());
+    }
+
+    /**
+     * Adds the time since the previous frame to the statistics.
+     */
+    private void measure(long now) {
+        if(lastFrame != 0) {
+            double frame = (now - lastFrame)/1e6;
+            sum += frame;
+            sumSquares += frame*frame;
+            longest = Math.max(longest, frame);
+            if(++count == window) {
+                average = sum/count;
+                jitter = Math.sqrt(Math.max(0, sumSquares/count - average*average));
+                maxFrame = longest;
+                sum = sumSquares = longest = 0;
+                count = 0;
+            }
+        }
+        lastFrame = now;
+    }
+
+    /**
+     * Returns the pacing mode, for display.
+     */
+    public String getMode() {
+        return vsync ? "vsync" : period == 0 ? "uncapped" : String.format("%.0f fps cap", 1e9/period);
+    }
+
+    /**
+     * Returns the average frame time over the last window, in milliseconds.
+     */
+    public double getAverage() {
+        return average;
+    }
+
+    /**
+     * Returns the standard deviation of the frame time over the last window, in milliseconds.
+     */
+    public double getJitter() {
+        return jitter;
+    }
+
+    /**
+     * Returns the longest frame time in the last window, in milliseconds.
+     */
+    public double getMaxFrame() {
+        return maxFrame;
+    }
+}
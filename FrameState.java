@@ -0,0 +1,58 @@
+package robotrace;
+
+/**
+ * Everything the renderer needs from one simulation step: the pose and
+ * race standing of every robot, the ranking and the shot of the auto camera.
+ *
+ * States are preallocated and cycled through a {@link FrameStateBuffer}.
+ * The simulation fills a state and publishes it; from then on it is only
+ * read by the renderer until it is handed back to the simulation, so the
+ * renderer never sees a state that is half written.
+ */
+class FrameState {
+
+    /** Animation time and track of the step. */
+    float tAnim;
+    int trackNr;
+
+    /** Position and running direction of every robot, stored as x, y, z per robot. */
+    final double[] positions;
+    final double[] directions;
+
+    /** Animation phase, progress within the lap, completed laps and best lap time of every robot. */
+    final double[] phases;
+    final float[] progress;
+    final int[] laps;
+    final float[] bestLaps;
+
+    /** Robot indices ordered from the leader to the last robot. */
+    final int[] ranking;
+
+    /** The robot the cameras focus on, and the camera mode of the auto camera's shot. */
+    int focus;
+    int cameraMode = 1;
+
+    /** Sequence number of the step, 0 before the first one. */
+    long sequence;
+
+    /** When the state was published, in System.nanoTime(). */
+    long published;
+
+    /**
+     * Creates an empty state for the given number of robots.
+     */
+    public FrameState(int robots) {
+        positions = new double[3*robots];
+        directions = new double[3*robots];
+        phases = new double[robots];
+        progress = new float[robots];
+        laps = new int[robots];
+        bestLaps = new float[robots];
+        ranking = new int[robots];
+        for(int i = 0; i < robots; i++) {
+            directions[3*i+1] = 1;
+            bestLaps[i] = Float.NaN;
+            ranking[i] = i;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package robotrace;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands frame states from the simulation to the renderer without locks
+ * (triple buffering).
+ *
+ * There are three states: the back state the simulation writes, the
+ * front state the renderer reads, and a middle state in between. The
+ * simulation publishes by swapping its back state with the middle one,
+ * the renderer takes the newest state by swapping its front state with
+ * the middle one. Both swaps are a single atomic exchange, so neither
+ * side ever waits for the other: a fast simulation overwrites states the
+ * renderer never saw, a fast renderer keeps drawing its front state.
+ */
+class FrameStateBuffer {
+
+    /** Set on the middle index when it holds a state the renderer has not taken yet. */
+    private final static int fresh = 4;
+
+    /** The three states. */
+    private final FrameState[] states = new FrameState[3];
+
+    /** Index of the middle state, with the fresh bit. */
+    private final AtomicInteger middle = new AtomicInteger(1);
+
+    /** Index of the state the simulation writes, only used by the simulation. */
+    private int back = 0;
+
+    /** Index of the state the renderer reads, only used by the renderer. */
+    private int front = 2;
+
+    /** Sequence number of the next published state. */
+    private long sequence = 1;
+
+    /** States taken and frames drawn with an old state since the last {@link #resetLatency}. */
+    private int taken = 0;
+    private int repeated = 0;
+
+    /** Total and longest handoff latency of the states taken by the renderer, in nanoseconds. */
+    private long totalLatency = 0;
+    private long maxLatency = 0;
+
+    /**
+     * Creates the states for the given number of robots.
+     */
+    public FrameStateBuffer(int robots) {
+        for(int i = 0; i < states.length; i++)
+            states[i] = new FrameState(robots);
+    }
+
+    /**
+     * Returns the state the simulation writes next. Only called by the simulation.
+     */
+    public FrameState back() {
+        return states[back];
+    }
+
+    /**
+     * Publishes the back state. Only called by the simulation.
+     */
+    public void publish() {
+        FrameState state = states[back];
+        state.sequence = sequence++;
+        state.published = System.nanoTime();
+        back = middle.getAndSet(back | fresh) & ~fresh;
+    }
+
+    /**
+     * Returns the newest published state, which stays valid until the
+     * next call. Only called by the renderer.
+     */
+    public FrameState latest() {
+        if((middle.get() & fresh) == 0) {
+            repeated++;
+            return states[front];
+        }
+        front = middle.getAndSet(front) & ~fresh;
+        long latency = System.nanoTime() - states[front].published;
+        maxLatency = Math.max(maxLatency, latency);
+        totalLatency += latency;
+        taken++;
+        return states[front];
+    }
+
+    /**
+     * Returns the average handoff latency, from publishing a state until
+     * the renderer takes it, in milliseconds.
+     */
+    public double getAverageLatency() {
+        return taken == 0 ? 0 : totalLatency/1e6/taken;
+    }
+
+    /**
+     * Returns the longest handoff latency in milliseconds.
+     */
+    public double getMaxLatency() {
+        return maxLatency/1e6;
+    }
+
+    /**
+     * Returns the number of frames that found no new state.
+     */
+    public int getRepeated() {
+        return repeated;
+    }
+
+    /**
+     * Starts measuring the latency over again.
+     */
+    public void resetLatency() {
+        taken = repeated = 0;
+        totalLatency = maxLatency = 0;
+    }
+}
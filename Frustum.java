@@ -0,0 +1,69 @@
+package robotrace;
+
+import static javax.media.opengl.GL2.GL_MODELVIEW_MATRIX;
+import static javax.media.opengl.GL2.GL_PROJECTION_MATRIX;
+import javax.media.opengl.GL2;
+
+/**
+ * The viewing volume of a camera, used to skip objects outside of it.
+ *
+ * The six clipping planes are extracted from the current projection and
+ * modelview matrices (Gribb and Hartmann), so the frustum always matches
+ * what OpenGL will draw. All buffers are reused between frames.
+ */
+class Frustum {
+
+    /** The current projection and modelview matrices, column major. */
+    private final float[] projection = new float[16];
+    private final float[] modelView = new float[16];
+
+    /** The combined matrix projection * modelview, column major. */
+    private final float[] combined = new float[16];
+
+    /** Six planes stored as a, b, c, d with normals pointing inwards. */
+    private final double[] planes = new double[24];
+
+    /**
+     * Extracts the frustum from the matrices currently set in OpenGL.
+     * Call after the projection and camera have been set.
+     */
+    public void update(GL2 gl) {
+        gl.glGetFloatv(GL_PROJECTION_MATRIX, projection, 0);
+        gl.glGetFloatv(GL_MODELVIEW_MATRIX, modelView, 0);
+
+        for(int column = 0; column < 4; column++) {
+            for(int row = 0; row < 4; row++) {
+                float sum = 0;
+                for(int k = 0; k < 4; k++)
+                    sum += projection[k*4+row]*modelView[column*4+k];
+                combined[column*4+row] = sum;
+            }
+        }
+
+        // Every plane is the last row of the matrix plus or minus one of the other rows.
+        for(int i = 0; i < 6; i++) {
+            int row = i/2;
+            double sign = i % 2 == 0 ? 1 : -1;
+            double length = 0;
+            for(int k = 0; k < 4; k++) {
+                planes[i*4+k] = combined[k*4+3] + sign*combined[k*4+row];
+                if(k < 3)
+                    length += planes[i*4+k]*planes[i*4+k];
+            }
+            length = Math.sqrt(length);
+            for(int k = 0; k < 4; k++)
+                planes[i*4+k] /= length;
+        }
+    }
+
+    /**
+     * Returns whether a sphere is (partially) inside the frustum.
+     */
+    public boolean containsSphere(double x, double y, double z, double radius) {
+        for(int i = 0; i < 6; i++) {
+            if(planes[i*4]*x + planes[i*4+1]*y + planes[i*4+2]*z + planes[i*4+3] < -radius)
+                return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,272 @@
+package robotrace;
+
+import com.jogamp.opengl.util.gl2.GLUT;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import javax.imageio.ImageIO;
+import static javax.media.opengl.GL2.GL_READ_ONLY;
+import static javax.media.opengl.GL.GL_UNSIGNED_BYTE;
+import static javax.media.opengl.GL2.GL_BGRA;
+import static javax.media.opengl.GL2.GL_PIXEL_PACK_BUFFER;
+import static javax.media.opengl.GL2.GL_STREAM_READ;
+import javax.media.opengl.GL2;
+import javax.media.opengl.GLAutoDrawable;
+import javax.media.opengl.GLCapabilities;
+import javax.media.opengl.GLDrawableFactory;
+import javax.media.opengl.GLEventListener;
+import javax.media.opengl.GLOffscreenAutoDrawable;
+import javax.media.opengl.GLProfile;
+import javax.media.opengl.glu.GLU;
+
+/**
+ * Renders the race without a window, for producing videos on machines
+ * without a display (e.g. with a software OpenGL such as Mesa llvmpipe).
+ *
+ * Frames are drawn into an offscreen drawable at a fixed time step. Each
+ * frame is read back asynchronously into one of two pixel buffer objects
+ * and mapped one frame later, so the read back of a frame overlaps with
+ * drawing the next one. A background thread writes the frames as a PNG
+ * sequence or as raw BGRA video frames, e.g. into a pipe to ffmpeg:
+ * {@code ffmpeg -f rawvideo -pix_fmt bgra -s 1280x720 -r 30 -i - -vf vflip race.mp4}
+ */
+class HeadlessRenderer implements GLEventListener {
+
+    /** Number of frame buffers cycling between the renderer and the writer. */
+    private final static int frameBuffers = 3;
+
+    /** Frames between two throughput reports. */
+    private final static int reportInterval = 100;
+
+    /** The race that is rendered. */
+    private final RobotRace race;
+
+    /** Size of the frames. */
+    private final int width, height;
+
+    /** Frames per second of animation time. */
+    private final double fps;
+
+    /** The number of frames to render. */
+    private final int frames;
+
+    /** Directory for the PNG sequence, or null to write raw frames to the stream. */
+    private final File directory;
+
+    /** Destination of the raw frames, or null when writing PNG files. */
+    private final OutputStream raw;
+
+    /** The two pixel buffer objects frames are read into alternately. */
+    private final int[] pbo = new int[2];
+
+    /** Empty frames ready to be filled, and filled frames waiting to be written. */
+    private final BlockingQueue<int[]> free = new ArrayBlockingQueue<int[]>(frameBuffers);
+    private final BlockingQueue<int[]> filled = new ArrayBlockingQueue<int[]>(frameBuffers);
+
+    /** Marker telling the writer that no more frames will follow. */
+    private final static int[] endOfStream = new int[0];
+
+    /** The frame being rendered. */
+    private int frame = 0;
+
+    /** Error raised by the writer, rethrown on the render thread. */
+    private volatile Exception writeError;
+
+    /**
+     * Constructs a headless renderer.
+     * @param race      The race to render.
+     * @param width     Width of the frames.
+     * @param height    Height of the frames.
+     * @param fps       Frames per second of animation time.
+     * @param frames    The number of frames to render.
+     * @param output    Directory for a PNG sequence, or "-" for raw frames on standard output.
+     */
+    public HeadlessRenderer(RobotRace race, int width, int height, double fps, int frames, String output) {
+        this.race = race;
+        this.width = width;
+        this.height = height;
+        this.fps = fps;
+        this.frames = frames;
+        if("-".equals(output)) {
+            this.directory = null;
+            this.raw = new BufferedOutputStream(System.out, 1 << 20);
+        } else {
+            this.directory = new File(output);
+            this.raw = null;
+            this.directory.mkdirs();
+        }
+        for(int i = 0; i < frameBuffers; i++)
+            free.add(new int[width*height]);
+    }
+
+    /**
+     * Renders all frames and waits until they are written.
+     */
+    public void run() throws Exception {
+        // The robots and cameras have to follow the fixed time step instead of the wall clock.
+        Camera.useAnimationTime = true;
+
+        GLProfile profile = GLProfile.get(GLProfile.GL2);
+        GLCapabilities capabilities = new GLCapabilities(profile);
+        capabilities.setOnscreen(false);
+        capabilities.setDoubleBuffered(false);
+        capabilities.setDepthBits(24);
+        GLOffscreenAutoDrawable drawable = GLDrawableFactory.getFactory(profile)
+                .createOffscreenAutoDrawable(null, capabilities, null, width, height);
+        drawable.addGLEventListener(this);
+
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                write();
+            }
+        }, "frame-writer");
+        writer.start();
+
+        long start = System.nanoTime();
+        long intervalStart = start;
+        try {
+            // One extra display call maps the read back of the last frame.
+            while(frame <= frames && writeError == null) {
+                drawable.display();
+                if(frame % reportInterval == 0) {
+                    long now = System.nanoTime();
+                    System.err.printf("Frame %d/%d, %.1f frames per second%n",
+                            Math.min(frame, frames), frames, reportInterval/((now - intervalStart)*1e-9));
+                    intervalStart = now;
+                }
+            }
+        } finally {
+            filled.put(endOfStream);
+            writer.join();
+            drawable.destroy();
+        }
+        if(writeError != null)
+            throw writeError;
+
+        double seconds = (System.nanoTime() - start)*1e-9;
+        System.err.printf("Rendered %d frames in %.1f s, %.1f frames per second%n", frames, seconds, frames/seconds);
+    }
+
+    @Override
+    public void init(GLAutoDrawable drawable) {
+        GL2 gl = drawable.getGL().getGL2();
+        race.gl = gl;
+        race.glu = new GLU();
+        race.glut = new GLUT();
+        race.gs.w = width;
+        race.gs.h = height;
+        race.initialize();
+
+        // Two pixel buffer objects, one is read into while the other is mapped.
+        gl.glGenBuffers(2, pbo, 0);
+        for(int i = 0; i < 2; i++) {
+            gl.glBindBuffer(GL_PIXEL_PACK_BUFFER, pbo[i]);
+            gl.glBufferData(GL_PIXEL_PACK_BUFFER, 4L*width*height, null, GL_STREAM_READ);
+        }
+        gl.glBindBuffer(GL_PIXEL_PACK_BUFFER, 0);
+    }
+
+    @Override
+    public void display(GLAutoDrawable drawable) {
+        GL2 gl = drawable.getGL().getGL2();
+        if(frame < frames) {
+            // Draw the next frame at a fixed time step.
+            race.gs.tAnim = (float)(frame/fps);
+            race.setView();
+            race.drawScene();
+
+            // Start reading the frame back, this returns without waiting for the GPU.
+            gl.glBindBuffer(GL_PIXEL_PACK_BUFFER, pbo[frame % 2]);
+            gl.glReadPixels(0, 0, width, height, GL_BGRA, GL_UNSIGNED_BYTE, 0);
+        }
+
+        // Map the frame read back during the previous call, which has finished by now.
+        if(frame > 0) {
+            gl.glBindBuffer(GL_PIXEL_PACK_BUFFER, pbo[(frame - 1) % 2]);
+            ByteBuffer mapped = gl.glMapBuffer(GL_PIXEL_PACK_BUFFER, GL_READ_ONLY);
+            if(mapped == null) {
+                // Out of memory, or the driver does not map pixel buffers for reading; stops the render loop.
+                if(writeError == null)
+                    writeError = new IOException("Cannot map the pixel buffer of frame " + (frame - 1)
+                            + " (OpenGL error 0x" + Integer.toHexString(gl.glGetError()) + ")");
+            } else {
+                int[] pixels = null;
+                try {
+                    pixels = free.take();
+                    IntBuffer source = mapped.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+                    source.get(pixels);
+                    filled.put(pixels);
+                    pixels = null;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    // A frame that was taken but not passed on goes back, so no frame is lost.
+                    if(pixels != null)
+                        free.offer(pixels);
+                    gl.glUnmapBuffer(GL_PIXEL_PACK_BUFFER);
+                }
+            }
+        }
+        gl.glBindBuffer(GL_PIXEL_PACK_BUFFER, 0);
+        frame++;
+    }
+
+    @Override
+    public void reshape(GLAutoDrawable drawable, int x, int y, int width, int height) {
+    }
+
+    @Override
+    public void dispose(GLAutoDrawable drawable) {
+        GL2 gl = drawable.getGL().getGL2();
+        race.dispose();
+        gl.glDeleteBuffers(2, pbo, 0);
+    }
+
+    /**
+     * Writes filled frames until the end of the stream, runs on the writer thread.
+     */
+    private void write() {
+        BufferedImage image = directory == null ? null : new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        byte[] bytes = raw == null ? null : new byte[4*width*height];
+        int written = 0;
+        try {
+            for(int[] pixels = filled.take(); pixels != endOfStream; pixels = filled.take()) {
+                // After an error the frames are only passed back, so the renderer never blocks.
+                if(writeError == null) {
+                    try {
+                        if(image != null) {
+                            // OpenGL stores the bottom row first, images the top row.
+                            int[] target = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+                            for(int y = 0; y < height; y++)
+                                System.arraycopy(pixels, y*width, target, (height - 1 - y)*width, width);
+                            ImageIO.write(image, "png", new File(directory, String.format("frame%05d.png", written)));
+                        } else {
+                            // Raw frames keep the OpenGL row order, flip them in the encoder.
+                            ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().put(pixels);
+                            raw.write(bytes);
+                        }
+                        written++;
+                    } catch (IOException e) {
+                        writeError = e;
+                    }
+                }
+                free.put(pixels);
+            }
+            if(raw != null && writeError == null)
+                raw.flush();
+        } catch (IOException e) {
+            writeError = e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
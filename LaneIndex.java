@@ -0,0 +1,278 @@
+package robotrace;
+
+/**
+ * Spatial index of the robots along the track.
+ *
+ * Every lane keeps the indices of its robots sorted by progress. Robots
+ * only move a little each tick, so the order is restored with an
+ * insertion sort that is linear for an almost sorted lane. Neighbour
+ * lookups are constant time and range queries use a binary search, so
+ * collision handling never needs to compare every pair of robots.
+ * Progress is compared within a lap, only collisions wrap around the
+ * start of a closed track.
+ */
+class LaneIndex {
+
+    /** Length of a robot along the track, robots closer than this collide. */
+    private final static double robotLength = 0.6;
+
+    /** The robots in the index. */
+    private final Robot[] robots;
+
+    /** Per lane the robot indices, sorted by ascending progress. */
+    private final int[][] order;
+
+    /** The number of robots in each lane. */
+    private final int[] count;
+
+    /** The position of each robot within the order of its lane. */
+    private final int[] slot;
+
+    /** Per lane search cursors of nearest(), kept to avoid allocating per query. */
+    private final int[] below = new int[RaceTrack.laneCount];
+    private final int[] above = new int[RaceTrack.laneCount];
+
+    /**
+     * Constructs an index over the given robots, using their current lanes.
+     */
+    public LaneIndex(Robot[] robots) {
+        this.robots = robots;
+        this.order = new int[RaceTrack.laneCount][robots.length];
+        this.count = new int[RaceTrack.laneCount];
+        this.slot = new int[robots.length];
+
+        for(int i = 0; i < robots.length; i++)
+            insert(i, robots[i].lane);
+    }
+
+    /**
+     * Restores the order of every lane after the robots have moved.
+     */
+    public void update() {
+        for(int lane = 0; lane < order.length; lane++) {
+            int[] robotsInLane = order[lane];
+            for(int j = 1; j < count[lane]; j++) {
+                int robot = robotsInLane[j];
+                float progress = robots[robot].progress;
+
+                // Shift faster robots up until the right spot is found.
+                int k = j - 1;
+                while(k >= 0 && robots[robotsInLane[k]].progress > progress) {
+                    robotsInLane[k+1] = robotsInLane[k];
+                    slot[robotsInLane[k+1]] = k+1;
+                    k--;
+                }
+                robotsInLane[k+1] = robot;
+                slot[robot] = k+1;
+            }
+        }
+    }
+
+    /**
+     * Resolves robots running into the robot ahead of them.
+     * A robot that catches up overtakes through a free neighbouring lane,
+     * or otherwise stays behind and matches the speed of the robot ahead.
+     * @param track The track the robots are racing on.
+     */
+    public void resolveCollisions(RaceTrack track) {
+        // The minimum distance between robots expressed in progress.
+        double gap = robotLength/track.getLength();
+
+        for(int lane = 0; lane < order.length; lane++) {
+            // Walk from the front so every robot is checked against an already resolved robot.
+            // The count is read every step, robots that overtake leave the lane.
+            for(int j = count[lane] - 1; j >= 0; j--) {
+                Robot robot = robots[order[lane][j]];
+                Robot ahead;
+                double aheadProgress;
+                if(j + 1 < count[lane]) {
+                    ahead = robots[order[lane][j+1]];
+                    aheadProgress = ahead.progress;
+                } else if(track.isClosed() && j > 0) {
+                    // The front robot runs into the last robot, which is a lap ahead.
+                    ahead = robots[order[lane][0]];
+                    aheadProgress = ahead.progress + 1;
+                } else {
+                    continue;
+                }
+                if(aheadProgress - robot.progress >= gap)
+                    continue;
+
+                int free = findFreeLane(lane, robot.progress, gap, track.isClosed());
+                if(free >= 0) {
+                    // Overtake, the robots above j have been handled already.
+                    changeLane(order[lane][j], free);
+                } else {
+                    // Blocked, stay behind the robot ahead.
+                    robot.progress = (float)Math.max(0, aheadProgress - gap);
+                    robot.speed = Math.min(robot.speed, ahead.speed);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the robot directly ahead in the same lane, or -1 if there is none.
+     */
+    public int ahead(int robot) {
+        int lane = robots[robot].lane;
+        int next = slot[robot] + 1;
+        return next < count[lane] ? order[lane][next] : -1;
+    }
+
+    /**
+     * Returns the robot directly behind in the same lane, or -1 if there is none.
+     */
+    public int behind(int robot) {
+        int lane = robots[robot].lane;
+        int previous = slot[robot] - 1;
+        return previous >= 0 ? order[lane][previous] : -1;
+    }
+
+    /**
+     * Finds all robots in a lane with from <= progress <= to.
+     * @param out Receives the robot indices, must be large enough.
+     * @return The number of robots found.
+     */
+    public int range(int lane, double from, double to, int[] out) {
+        int found = 0;
+        for(int j = lowerBound(lane, from); j < count[lane]; j++) {
+            int robot = order[lane][j];
+            if(robots[robot].progress > to)
+                break;
+            out[found++] = robot;
+        }
+        return found;
+    }
+
+    /**
+     * Finds the k robots closest in progress to the given progress, over all lanes.
+     * Each lane is searched outwards from its binary search position,
+     * always taking the closest remaining candidate of all lanes.
+     * @param out Receives the robot indices, closest first, must hold k entries.
+     * @return The number of robots found, at most k.
+     */
+    public int nearest(double progress, int k, int[] out) {
+        int lanes = order.length;
+        for(int lane = 0; lane < lanes; lane++) {
+            above[lane] = lowerBound(lane, progress);
+            below[lane] = above[lane] - 1;
+        }
+
+        int found = 0;
+        while(found < k) {
+            int best = -1;
+            double bestDistance = Double.MAX_VALUE;
+            for(int lane = 0; lane < lanes; lane++) {
+                if(below[lane] >= 0) {
+                    int robot = order[lane][below[lane]];
+                    double distance = progress - robots[robot].progress;
+                    if(distance < bestDistance) {
+                        bestDistance = distance;
+                        best = robot;
+                    }
+                }
+                if(above[lane] < count[lane]) {
+                    int robot = order[lane][above[lane]];
+                    double distance = robots[robot].progress - progress;
+                    if(distance < bestDistance) {
+                        bestDistance = distance;
+                        best = robot;
+                    }
+                }
+            }
+            if(best < 0)
+                break;
+
+            // Move the cursor that produced the best candidate outwards.
+            int lane = robots[best].lane;
+            if(below[lane] >= 0 && order[lane][below[lane]] == best)
+                below[lane]--;
+            else
+                above[lane]++;
+            out[found++] = best;
+        }
+        return found;
+    }
+
+    /**
+     * Returns a neighbouring lane with no robot within gap of the given progress,
+     * or -1 if both neighbouring lanes are occupied.
+     * @param closed Whether the gap wraps around the start of the track.
+     */
+    private int findFreeLane(int lane, double progress, double gap, boolean closed) {
+        // Prefer overtaking on the inside.
+        for(int candidate = lane - 1; candidate <= lane + 1; candidate += 2) {
+            if(candidate < 0 || candidate >= order.length)
+                continue;
+            if(occupied(candidate, progress - gap, progress + gap))
+                continue;
+            if(closed && (occupied(candidate, progress - gap + 1, progress + gap + 1)
+                    || occupied(candidate, progress - gap - 1, progress + gap - 1)))
+                continue;
+            return candidate;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns whether a lane has a robot with from <= progress <= to.
+     */
+    private boolean occupied(int lane, double from, double to) {
+        int j = lowerBound(lane, from);
+        return j < count[lane] && robots[order[lane][j]].progress <= to;
+    }
+
+    /**
+     * Moves a robot to another lane, keeping both lanes sorted.
+     */
+    private void changeLane(int robot, int lane) {
+        remove(robot);
+        robots[robot].lane = lane;
+        insert(robot, lane);
+    }
+
+    /**
+     * Removes a robot from the order of its lane.
+     */
+    private void remove(int robot) {
+        int lane = robots[robot].lane;
+        int[] robotsInLane = order[lane];
+        for(int j = slot[robot]; j < count[lane] - 1; j++) {
+            robotsInLane[j] = robotsInLane[j+1];
+            slot[robotsInLane[j]] = j;
+        }
+        count[lane]--;
+    }
+
+    /**
+     * Inserts a robot into the order of a lane at the position of its progress.
+     */
+    private void insert(int robot, int lane) {
+        int[] robotsInLane = order[lane];
+        int position = lowerBound(lane, robots[robot].progress);
+        for(int j = count[lane]; j > position; j--) {
+            robotsInLane[j] = robotsInLane[j-1];
+            slot[robotsInLane[j]] = j;
+        }
+        robotsInLane[position] = robot;
+        slot[robot] = position;
+        count[lane]++;
+    }
+
+    /**
+     * Returns the first position in a lane with a progress of at least the given progress.
+     */
+    private int lowerBound(int lane, double progress) {
+        int low = 0;
+        int high = count[lane];
+        while(low < high) {
+            int middle = (low + high) >>> 1;
+            if(robots[order[lane][middle]].progress < progress)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        return low;
+    }
+}
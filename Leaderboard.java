@@ -0,0 +1,120 @@
+package robotrace;
+
+/**
+ * Ranking of the robots by the distance they have covered in the race.
+ *
+ * The ranking is kept sorted between ticks and repaired with an insertion
+ * sort after the robots have moved. A robot only moves past the few robots
+ * it overtook since the last tick, so an update costs a constant amount
+ * of work per robot plus one swap per overtake. The leader, the top k and
+ * the rank of any robot are then read directly from the arrays.
+ * Every swap is an overtake, which is reported to the listener.
+ */
+class Leaderboard {
+
+    /**
+     * Receives the overtakes found while the ranking is restored.
+     */
+    interface Listener {
+        /**
+         * Called when a robot moves up past another robot.
+         * @param robot  The robot that overtook.
+         * @param passed The robot it passed.
+         * @param rank   The rank the robot took over, 0 for the lead.
+         */
+        void overtake(int robot, int passed, int rank);
+    }
+
+    /** The robots in the race. */
+    private final Robot[] robots;
+
+    /** Robot indices ordered from the leader to the last robot. */
+    private final int[] ranking;
+
+    /** The rank of every robot, 0 being the leader. */
+    private final int[] rank;
+
+    /** Receives the overtakes, may be null. */
+    private Listener listener;
+
+    /**
+     * Constructs a leaderboard over the given robots, in their initial order.
+     */
+    public Leaderboard(Robot[] robots) {
+        this.robots = robots;
+        this.ranking = new int[robots.length];
+        this.rank = new int[robots.length];
+        for(int i = 0; i < robots.length; i++) {
+            ranking[i] = i;
+            rank[i] = i;
+        }
+        update();
+    }
+
+    /**
+     * Restores the ranking after the robots have moved.
+     */
+    public void update() {
+        for(int j = 1; j < ranking.length; j++) {
+            int robot = ranking[j];
+            double distance = robots[robot].raceDistance();
+
+            // Move the robot up past every robot it overtook.
+            int k = j - 1;
+            while(k >= 0 && robots[ranking[k]].raceDistance() < distance) {
+                if(listener != null)
+                    listener.overtake(robot, ranking[k], k);
+                ranking[k+1] = ranking[k];
+                rank[ranking[k+1]] = k+1;
+                k--;
+            }
+            ranking[k+1] = robot;
+            rank[robot] = k+1;
+        }
+    }
+
+    /**
+     * Sets the listener receiving the overtakes of the following updates.
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Returns the index of the leading robot.
+     */
+    public int leader() {
+        return ranking[0];
+    }
+
+    /**
+     * Returns the index of the robot at the given rank, 0 being the leader.
+     */
+    public int robotAt(int position) {
+        return ranking[position];
+    }
+
+    /**
+     * Returns the rank of the given robot, 0 being the leader.
+     */
+    public int rankOf(int robot) {
+        return rank[robot];
+    }
+
+    /**
+     * Copies the indices of the first k robots into out, leader first.
+     * @return The number of robots copied, less than k if there are fewer robots.
+     */
+    public int top(int k, int[] out) {
+        int n = Math.min(k, ranking.length);
+        System.arraycopy(ranking, 0, out, 0, n);
+        return n;
+    }
+
+    /**
+     * Returns the number of robots in the ranking.
+     */
+    public int size() {
+        return ranking.length;
+    }
+}
@@ -0,0 +1,407 @@
+package robotrace;
+
+import com.jogamp.common.nio.Buffers;
+import java.nio.FloatBuffer;
+import static javax.media.opengl.GL.GL_DYNAMIC_DRAW;
+import static javax.media.opengl.GL.GL_STATIC_DRAW;
+import static javax.media.opengl.GL2.GL_MODELVIEW_MATRIX;
+import static javax.media.opengl.GL2ES2.GL_COMPILE_STATUS;
+import static javax.media.opengl.GL2ES2.GL_FRAGMENT_SHADER;
+import static javax.media.opengl.GL2ES2.GL_LINK_STATUS;
+import static javax.media.opengl.GL2ES2.GL_VERTEX_SHADER;
+import static javax.media.opengl.GL2ES3.GL_UNIFORM_BUFFER;
+import javax.media.opengl.GL2;
+import javax.media.opengl.GLException;
+
+/**
+ * Per pixel lighting through GLSL programs, replacing the fixed-function
+ * lights and materials.
+ *
+ * The light and camera are stored once per view in a uniform buffer, and
+ * all {@link Material} values are uploaded once into a second uniform
+ * buffer indexed by material id (the ordinal of the material). Drawing
+ * code only switches the material id, instead of setting every material
+ * property with glMaterialfv. Like the textures in {@link Base}, the
+ * pipeline is shared by all drawing code.
+ */
+class Lighting {
+
+    /**
+     * Texture modes: lit material, 2D texture replacing the color, or lit
+     * 1D texture with the ambient occlusion in the second texture coordinate.
+     */
+    final static int noTexture = 0;
+    final static int texture2D = 1;
+    final static int texture1D = 2;
+
+    /** Binding points of the uniform buffers. */
+    final static int frameBinding = 0;
+    final static int materialBinding = 1;
+
+    /** Texture unit of the 1D texture, the 2D textures use unit 0. */
+    final static int texture1DUnit = 1;
+
+    /** Texture unit of the wide shadow cascade, the near cascade uses the next unit. */
+    final static int shadowUnit = 3;
+
+    /** Direction towards the sun, which stays fixed in the world so its shadows can be cached. */
+    final static Vector sun = new Vector(0.5, 0.3, 0.8).normalized();
+
+    /**
+     * Size in floats of the frame uniform buffer: view matrix, light position, light color,
+     * ambient, sun direction, sun color, the two shadow matrices and the number of cascades.
+     */
+    private final static int frameFloats = 16 + 4 + 4 + 4 + 4 + 4 + 2*16 + 4;
+
+    /**
+     * Declarations shared by all programs: the uniform buffers and the lighting function.
+     * The light follows the camera, the sun is fixed and casts shadows.
+     */
+    final static String common =
+        "layout(std140) uniform Frame {\n" +
+        "    mat4 view;\n" +
+        "    vec4 lightPosition;\n" +
+        "    vec4 lightColor;\n" +
+        "    vec4 ambient;\n" +
+        "    vec4 sunDirection;\n" +
+        "    vec4 sunColor;\n" +
+        "    mat4 shadowMatrix[2];\n" +
+        "    vec4 shadowCascades;\n" +
+        "};\n" +
+        "uniform sampler2DShadow shadowWide;\n" +
+        "uniform sampler2DShadow shadowNear;\n" +
+        "struct MaterialData {\n" +
+        "    vec4 diffuse;\n" +
+        "    vec4 specular;\n" +
+        "};\n" +
+        "layout(std140) uniform Materials {\n" +
+        "    MaterialData materials[" + Material.values().length + "];\n" +
+        "};\n" +
+        "float sunlight(vec3 position, vec3 n) {\n" +
+        "    if(shadowCascades.x < 0.5)\n" +
+        "        return 1.0;\n" +
+        "    vec4 p = vec4(position + 0.05*n, 1.0);\n" +
+        "    if(shadowCascades.x > 1.5) {\n" +
+        "        vec4 s = shadowMatrix[1]*p;\n" +
+        "        if(all(greaterThan(s.xy, vec2(0.01))) && all(lessThan(s.xy, vec2(0.99))))\n" +
+        "            return texture(shadowNear, s.xyz);\n" +
+        "    }\n" +
+        "    vec4 s = shadowMatrix[0]*p;\n" +
+        "    return s.z >= 1.0 ? 1.0 : texture(shadowWide, s.xyz);\n" +
+        "}\n" +
+        "vec3 light(vec3 diffuseColor, vec4 specularColor, float occlusion, vec3 position, vec3 normal) {\n" +
+        "    vec3 n = normalize(normal);\n" +
+        "    vec3 v = normalize(-position);\n" +
+        "    vec3 l = normalize(lightPosition.xyz - position*lightPosition.w);\n" +
+        "    float diffuse = max(dot(n, l), 0.0);\n" +
+        "    float specular = diffuse > 0.0 ? pow(max(dot(n, normalize(l + v)), 0.0), specularColor.w) : 0.0;\n" +
+        "    float sunDiffuse = max(dot(n, sunDirection.xyz), 0.0);\n" +
+        "    float sunSpecular = sunDiffuse > 0.0 ? pow(max(dot(n, normalize(sunDirection.xyz + v)), 0.0), specularColor.w) : 0.0;\n" +
+        "    float visible = sunDiffuse > 0.0 ? sunlight(position, n) : 0.0;\n" +
+        "    return diffuseColor*(ambient.rgb*occlusion + lightColor.rgb*diffuse + sunColor.rgb*sunDiffuse*visible)\n" +
+        "         + specularColor.rgb*(lightColor.rgb*specular + sunColor.rgb*sunSpecular*visible);\n" +
+        "}\n" +
+        "vec4 shade(int id, vec3 position, vec3 normal) {\n" +
+        "    MaterialData m = materials[id];\n" +
+        "    return vec4(light(m.diffuse.rgb, m.specular, 1.0, position, normal), m.diffuse.a);\n" +
+        "}\n";
+
+    /** Vertex shader of the default program, for the fixed-function style geometry. */
+    private final static String vertexShader =
+        "#version 150 compatibility\n" +
+        "out vec3 position;\n" +
+        "out vec3 normal;\n" +
+        "out vec4 texCoord;\n" +
+        "void main() {\n" +
+        "    position = (gl_ModelViewMatrix*gl_Vertex).xyz;\n" +
+        "    normal = gl_NormalMatrix*gl_Normal;\n" +
+        "    texCoord = gl_MultiTexCoord0;\n" +
+        "    gl_Position = ftransform();\n" +
+        "}\n";
+
+    /** Fragment shader of the default program. */
+    private final static String fragmentShader =
+        "#version 150 compatibility\n" +
+        common +
+        "uniform int materialId;\n" +
+        "uniform int textureMode;\n" +
+        "uniform sampler2D texture2d;\n" +
+        "uniform sampler1D texture1d;\n" +
+        "in vec3 position;\n" +
+        "in vec3 normal;\n" +
+        "in vec4 texCoord;\n" +
+        "void main() {\n" +
+        "    if(textureMode == " + texture2D + ")\n" +
+        "        gl_FragColor = texture(texture2d, texCoord.st);\n" +
+        "    else if(textureMode == " + texture1D + ")\n" +
+        "        gl_FragColor = vec4(light(texture(texture1d, texCoord.s).rgb, vec4(0.0, 0.0, 0.0, 1.0), texCoord.t,\n" +
+        "                                  position, gl_FrontFacing ? normal : -normal), 1.0);\n" +
+        "    else\n" +
+        "        gl_FragColor = shade(materialId, position, gl_FrontFacing ? normal : -normal);\n" +
+        "}\n";
+
+    /** Shaders of the depth only program, used to draw shadow casters. */
+    private final static String depthVertexShader =
+        "#version 150 compatibility\n" +
+        "void main() {\n" +
+        "    gl_Position = ftransform();\n" +
+        "}\n";
+    final static String depthFragmentShader =
+        "#version 150 compatibility\n" +
+        "void main() {\n" +
+        "}\n";
+
+    /** The default program and its uniforms. */
+    private static int program;
+
+    /** The depth only program. */
+    private static int depthProgram;
+
+    /** Whether only depth is drawn, in which case materials and textures are ignored. */
+    private static boolean depthOnly = false;
+    private static int materialLocation;
+    private static int textureModeLocation;
+
+    /** The frame and material uniform buffers. */
+    private static int frameBuffer;
+    private static int materialBuffer;
+
+    /** Contents of the frame uniform buffer, reused every view. */
+    private final static FloatBuffer frameData = Buffers.newDirectFloatBuffer(frameFloats);
+
+    /** Color of the light, of the ambient light and of the sun. */
+    private final static float[] lightColor = {0.6f, 0.6f, 0.6f, 1f};
+    private final static float[] ambientColor = {0.2f, 0.2f, 0.2f, 1f};
+    private final static float[] sunColor = {0.6f, 0.6f, 0.55f, 1f};
+
+    /** The camera matrix of the current view and its inverse. */
+    private final static float[] view = new float[16];
+    private final static float[] inverseView = new float[16];
+
+    /** The eye to shadow texture matrix of a cascade. */
+    private final static float[] shadowMatrix = new float[16];
+
+    /** The material and texture mode currently set, to skip redundant changes. */
+    private static int currentMaterial = -1;
+    private static int currentTextureMode = -1;
+
+    /**
+     * Compiles the default program and creates the uniform buffers.
+     * Must be called once with a current context before drawing.
+     */
+    public static void initialize(GL2 gl) {
+        program = createProgram(gl, vertexShader, fragmentShader);
+        depthProgram = createProgram(gl, depthVertexShader, depthFragmentShader);
+        materialLocation = gl.glGetUniformLocation(program, "materialId");
+        textureModeLocation = gl.glGetUniformLocation(program, "textureMode");
+        gl.glUseProgram(program);
+        gl.glUniform1i(gl.glGetUniformLocation(program, "texture2d"), 0);
+        gl.glUniform1i(gl.glGetUniformLocation(program, "texture1d"), texture1DUnit);
+        gl.glUseProgram(0);
+
+        int[] buffers = new int[2];
+        gl.glGenBuffers(2, buffers, 0);
+        frameBuffer = buffers[0];
+        materialBuffer = buffers[1];
+
+        gl.glBindBuffer(GL_UNIFORM_BUFFER, frameBuffer);
+        gl.glBufferData(GL_UNIFORM_BUFFER, frameFloats*4, null, GL_DYNAMIC_DRAW);
+
+        // The materials never change, upload them once as diffuse and specular (shininess in w).
+        Material[] all = Material.values();
+        FloatBuffer materials = Buffers.newDirectFloatBuffer(8*all.length);
+        for(Material material : all) {
+            materials.put(material.diffuse);
+            materials.put(material.specular, 0, 3);
+            materials.put(material.shininess);
+        }
+        materials.flip();
+        gl.glBindBuffer(GL_UNIFORM_BUFFER, materialBuffer);
+        gl.glBufferData(GL_UNIFORM_BUFFER, materials.capacity()*4, materials, GL_STATIC_DRAW);
+        gl.glBindBuffer(GL_UNIFORM_BUFFER, 0);
+
+        gl.glBindBufferBase(GL_UNIFORM_BUFFER, frameBinding, frameBuffer);
+        gl.glBindBufferBase(GL_UNIFORM_BUFFER, materialBinding, materialBuffer);
+    }
+
+    /**
+     * Compiles and links a program and connects it to the shared uniform buffers and shadows.
+     * @param attributes Names of the vertex attributes, bound to locations 0, 1, 2, ...
+     */
+    static int createProgram(GL2 gl, String vertexSource, String fragmentSource, String... attributes) {
+        int result = gl.glCreateProgram();
+        gl.glAttachShader(result, compile(gl, GL_VERTEX_SHADER, vertexSource));
+        gl.glAttachShader(result, compile(gl, GL_FRAGMENT_SHADER, fragmentSource));
+        for(int i = 0; i < attributes.length; i++)
+            gl.glBindAttribLocation(result, i, attributes[i]);
+        gl.glLinkProgram(result);
+
+        int[] status = new int[1];
+        gl.glGetProgramiv(result, GL_LINK_STATUS, status, 0);
+        if(status[0] == 0) {
+            byte[] log = new byte[4096];
+            int[] length = new int[1];
+            gl.glGetProgramInfoLog(result, log.length, length, 0, log, 0);
+            throw new GLException("Could not link program: " + new String(log, 0, length[0]));
+        }
+
+        // Blocks that are not used by the program are optimized away.
+        int frameIndex = gl.glGetUniformBlockIndex(result, "Frame");
+        if(frameIndex >= 0)
+            gl.glUniformBlockBinding(result, frameIndex, frameBinding);
+        int materialIndex = gl.glGetUniformBlockIndex(result, "Materials");
+        if(materialIndex >= 0)
+            gl.glUniformBlockBinding(result, materialIndex, materialBinding);
+
+        // The shadow cascades always use the same texture units.
+        gl.glUseProgram(result);
+        gl.glUniform1i(gl.glGetUniformLocation(result, "shadowWide"), shadowUnit);
+        gl.glUniform1i(gl.glGetUniformLocation(result, "shadowNear"), shadowUnit + 1);
+        gl.glUseProgram(0);
+        return result;
+    }
+
+    /**
+     * Compiles a shader, throwing an exception with the compiler output on errors.
+     */
+    private static int compile(GL2 gl, int type, String source) {
+        int shader = gl.glCreateShader(type);
+        gl.glShaderSource(shader, 1, new String[] {source}, null, 0);
+        gl.glCompileShader(shader);
+
+        int[] status = new int[1];
+        gl.glGetShaderiv(shader, GL_COMPILE_STATUS, status, 0);
+        if(status[0] == 0) {
+            byte[] log = new byte[4096];
+            int[] length = new int[1];
+            gl.glGetShaderInfoLog(shader, log.length, length, 0, log, 0);
+            throw new GLException("Could not compile shader: " + new String(log, 0, length[0]));
+        }
+        return shader;
+    }
+
+    /**
+     * Places the lights for the current view and activates the default program.
+     * Call after the camera has been set.
+     * @param camera  The camera of the current view.
+     * @param shadows The shadows of the sun, or null to draw without shadows.
+     */
+    public static void begin(GL2 gl, Camera camera, ShadowMap shadows) {
+        gl.glGetFloatv(GL_MODELVIEW_MATRIX, view, 0);
+
+        // The light comes from the camera, rotated 10 degrees up and 10 degrees to the left.
+        double angle = Math.toRadians(10);
+        Vector eyeRepos = camera.eye.subtract(camera.center);
+        Vector horizontalAxis = eyeRepos.cross(camera.up).normalized();
+        Vector verticalAxis = horizontalAxis.cross(eyeRepos).normalized();
+        Vector light = rotate(rotate(eyeRepos, verticalAxis, -angle), horizontalAxis, angle);
+
+        // The frame data follows the layout of the Frame block.
+        frameData.clear();
+        frameData.put(view);
+        putDirection(light);
+        frameData.put(lightColor);
+        frameData.put(ambientColor);
+        putDirection(sun);
+        frameData.put(sunColor);
+
+        // The shaders look up shadows from eye space, undo the camera before the shadow matrix.
+        Matrix4.invertRigid(view, inverseView);
+        int cascades = shadows == null ? 0 : shadows.getCascades();
+        for(int c = 0; c < 2; c++) {
+            if(c < cascades)
+                Matrix4.multiply(shadows.getMatrix(c), inverseView, shadowMatrix);
+            frameData.put(shadowMatrix);
+        }
+        frameData.put(cascades).put(0f).put(0f).put(0f);
+        frameData.flip();
+
+        gl.glBindBuffer(GL_UNIFORM_BUFFER, frameBuffer);
+        gl.glBufferSubData(GL_UNIFORM_BUFFER, 0, frameFloats*4, frameData);
+        gl.glBindBuffer(GL_UNIFORM_BUFFER, 0);
+
+        gl.glUseProgram(program);
+        currentMaterial = -1;
+        currentTextureMode = -1;
+        setTextureMode(gl, noTexture);
+    }
+
+    /**
+     * Transforms a world direction to eye space and adds it to the frame data.
+     */
+    private static void putDirection(Vector d) {
+        // A direction (w = 0) is transformed by the rotation part of the camera matrix.
+        frameData.put((float)(view[0]*d.x() + view[4]*d.y() + view[8]*d.z()));
+        frameData.put((float)(view[1]*d.x() + view[5]*d.y() + view[9]*d.z()));
+        frameData.put((float)(view[2]*d.x() + view[6]*d.y() + view[10]*d.z()));
+        frameData.put(0f);
+    }
+
+    /**
+     * Activates the default (or depth only) program again after drawing with another program.
+     * The material and texture mode are kept.
+     */
+    public static void resume(GL2 gl) {
+        gl.glUseProgram(depthOnly ? depthProgram : program);
+    }
+
+    /**
+     * Starts drawing shadow casters: only depth is written and materials are ignored.
+     */
+    public static void beginDepth(GL2 gl) {
+        depthOnly = true;
+        gl.glUseProgram(depthProgram);
+    }
+
+    /**
+     * Stops drawing shadow casters.
+     */
+    public static void endDepth(GL2 gl) {
+        depthOnly = false;
+        gl.glUseProgram(0);
+    }
+
+    /**
+     * Returns whether only depth is drawn, for drawing code with its own programs.
+     */
+    public static boolean isDepthOnly() {
+        return depthOnly;
+    }
+
+    /**
+     * Deactivates the default program, e.g. before drawing text.
+     */
+    public static void end(GL2 gl) {
+        gl.glUseProgram(0);
+    }
+
+    /**
+     * Selects the material of the next drawn geometry.
+     */
+    public static void setMaterial(GL2 gl, Material material) {
+        if(!depthOnly && material.ordinal() != currentMaterial) {
+            currentMaterial = material.ordinal();
+            gl.glUniform1i(materialLocation, currentMaterial);
+        }
+    }
+
+    /**
+     * Selects whether the next drawn geometry shows a texture instead of its material.
+     * @param mode One of noTexture, texture2D or texture1D.
+     */
+    public static void setTextureMode(GL2 gl, int mode) {
+        if(!depthOnly && mode != currentTextureMode) {
+            currentTextureMode = mode;
+            gl.glUniform1i(textureModeLocation, mode);
+        }
+    }
+
+    /**
+     * Rotates a vector around a unit axis (Rodrigues' rotation formula).
+     */
+    private static Vector rotate(Vector v, Vector axis, double angle) {
+        double cos = Math.cos(angle);
+        double sin = Math.sin(angle);
+        return v.scale(cos).add(axis.cross(v).scale(sin)).add(axis.scale(axis.dot(v)*(1 - cos)));
+    }
+}
@@ -1,7 +1,8 @@
 package robotrace;
 
 /**
-* Materials that can be used for the robots.
+* Materials that can be used for the robots and the scenery.
+* The ordinal of a material is its id in the shaders, see {@link Lighting}.
 */
 public enum Material {
 
@@ -35,7 +36,55 @@ public enum Material {
     ORANGE (
         new float[] {1f, 0.35f, 0f, 1.0f},
         new float[] {0.35f, 0.35f, 0.35f, 1.0f},
-        10f);
+        10f),
+
+    /**
+     * Leaves of the trees.
+     */
+    LEAVES (
+        new float[] {0f, 0.39f, 0f, 1.0f},
+        new float[] {0f, 0.39f, 0f, 1.0f},
+        2f),
+
+    /**
+     * Semi-transparent water.
+     */
+    WATER (
+        new float[] {0.5f, 0.5f, 0.5f, 0.3f},
+        new float[] {0.5f, 0.5f, 0.5f, 0.3f},
+        20f),
+
+    /**
+     * Red of the x-axis.
+     */
+    RED (
+        new float[] {1f, 0f, 0f, 1.0f},
+        new float[] {1f, 0f, 0f, 1.0f},
+        20f),
+
+    /**
+     * Green of the y-axis.
+     */
+    GREEN (
+        new float[] {0f, 1f, 0f, 1.0f},
+        new float[] {0f, 1f, 0f, 1.0f},
+        20f),
+
+    /**
+     * Blue of the z-axis.
+     */
+    BLUE (
+        new float[] {0f, 0f, 1f, 1.0f},
+        new float[] {0f, 0f, 1f, 1.0f},
+        20f),
+
+    /**
+     * Yellow of the origin.
+     */
+    YELLOW (
+        new float[] {1f, 1f, 0f, 1.0f},
+        new float[] {1f, 1f, 0f, 1.0f},
+        20f);
 
     /** The diffuse RGBA reflectance of the material. */
     float[] diffuse;
@@ -0,0 +1,51 @@
+package robotrace;
+
+/**
+ * Operations on 4x4 matrices stored column major in float arrays, the
+ * layout OpenGL uses for glGetFloatv and uniform buffers.
+ */
+class Matrix4 {
+
+    /** Maps clip coordinates in [-1, 1] to texture coordinates in [0, 1]. */
+    final static float[] bias = {
+        0.5f, 0f, 0f, 0f,
+        0f, 0.5f, 0f, 0f,
+        0f, 0f, 0.5f, 0f,
+        0.5f, 0.5f, 0.5f, 1f
+    };
+
+    private Matrix4() {
+    }
+
+    /**
+     * Computes out = a * b. The output may not be one of the inputs.
+     */
+    static void multiply(float[] a, float[] b, float[] out) {
+        for(int column = 0; column < 4; column++) {
+            for(int row = 0; row < 4; row++) {
+                float sum = 0;
+                for(int k = 0; k < 4; k++)
+                    sum += a[k*4+row]*b[column*4+k];
+                out[column*4+row] = sum;
+            }
+        }
+    }
+
+    /**
+     * Inverts a matrix that only rotates and translates, such as a camera
+     * matrix set with gluLookAt. The output may not be the input.
+     */
+    static void invertRigid(float[] m, float[] out) {
+        // The inverse rotation is the transpose.
+        for(int column = 0; column < 3; column++) {
+            for(int row = 0; row < 3; row++)
+                out[column*4+row] = m[row*4+column];
+            out[column*4+3] = 0;
+        }
+
+        // The inverse translation is the translation rotated back.
+        for(int row = 0; row < 3; row++)
+            out[12+row] = -(out[row]*m[12] + out[4+row]*m[13] + out[8+row]*m[14]);
+        out[15] = 1;
+    }
+}
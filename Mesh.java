@@ -0,0 +1,236 @@
+package robotrace;
+
+import com.jogamp.common.nio.Buffers;
+import java.nio.FloatBuffer;
+import static javax.media.opengl.GL.GL_ARRAY_BUFFER;
+import static javax.media.opengl.GL.GL_FLOAT;
+import static javax.media.opengl.GL.GL_LINES;
+import static javax.media.opengl.GL.GL_STATIC_DRAW;
+import static javax.media.opengl.GL.GL_TRIANGLES;
+import static javax.media.opengl.fixedfunc.GLPointerFunc.GL_NORMAL_ARRAY;
+import static javax.media.opengl.fixedfunc.GLPointerFunc.GL_VERTEX_ARRAY;
+import javax.media.opengl.GL2;
+
+/**
+ * A primitive shape in a vertex buffer, replacing the GLUT shapes.
+ *
+ * GLUT generates its shapes vertex by vertex on every call. These meshes
+ * are generated once per shape and number of slices, uploaded on their
+ * first draw, and shared by all drawing code. Every shape has unit size,
+ * the size is set with a scale on the modelview matrix:
+ * <ul>
+ * <li>cube: from -0.5 to 0.5, like glutSolidCube(1);</li>
+ * <li>sphere: radius 1 around the origin, like glutSolidSphere(1, slices, slices);</li>
+ * <li>cylinder: radius 1 from z = 0 to 1 with caps, like glutSolidCylinder(1, 1, slices, 1);</li>
+ * <li>cone: radius 1 at z = 0 to a point at z = 1 with a base, like glutSolidCone(1, 1, slices, 1).</li>
+ * </ul>
+ */
+class Mesh {
+
+    /** Floats per vertex: position and normal. */
+    private final static int vertexFloats = 6;
+
+    /** Largest number of slices, meshes are cached per number of slices. */
+    private final static int maxSlices = 128;
+
+    /** The cached meshes. */
+    private static Mesh cube, wireCube;
+    private final static Mesh[] spheres = new Mesh[maxSlices + 1];
+    private final static Mesh[] cylinders = new Mesh[maxSlices + 1];
+    private final static Mesh[] cones = new Mesh[maxSlices + 1];
+
+    /** GL_TRIANGLES or GL_LINES. */
+    private final int mode;
+
+    /** The vertices until they are uploaded. */
+    private FloatBuffer vertices;
+
+    /** Number of vertices. */
+    private final int count;
+
+    /** The vertex buffer, 0 before the first draw. */
+    private int buffer = 0;
+
+    private Mesh(int mode, FloatBuffer vertices) {
+        this.mode = mode;
+        this.vertices = vertices;
+        this.count = vertices.position()/vertexFloats;
+        vertices.flip();
+    }
+
+    /**
+     * Draws the mesh with the current modelview matrix and material.
+     */
+    public void draw(GL2 gl) {
+        if(buffer == 0) {
+            int[] buffers = new int[1];
+            gl.glGenBuffers(1, buffers, 0);
+            buffer = buffers[0];
+            gl.glBindBuffer(GL_ARRAY_BUFFER, buffer);
+            gl.glBufferData(GL_ARRAY_BUFFER, vertices.limit()*4L, vertices, GL_STATIC_DRAW);
+            vertices = null;
+        } else {
+            gl.glBindBuffer(GL_ARRAY_BUFFER, buffer);
+        }
+        gl.glEnableClientState(GL_VERTEX_ARRAY);
+        gl.glEnableClientState(GL_NORMAL_ARRAY);
+        gl.glVertexPointer(3, GL_FLOAT, vertexFloats*4, 0);
+        gl.glNormalPointer(GL_FLOAT, vertexFloats*4, 3*4);
+        gl.glDrawArrays(mode, 0, count);
+        gl.glDisableClientState(GL_VERTEX_ARRAY);
+        gl.glDisableClientState(GL_NORMAL_ARRAY);
+        gl.glBindBuffer(GL_ARRAY_BUFFER, 0);
+    }
+
+    /**
+     * Returns the cube.
+     */
+    public static Mesh cube() {
+        if(cube == null) {
+            FloatBuffer out = Buffers.newDirectFloatBuffer(6*6*vertexFloats);
+            for(int axis = 0; axis < 3; axis++) {
+                for(int sign = -1; sign <= 1; sign += 2) {
+                    // The two other axes, in the order that makes the face point outwards.
+                    int u = (axis + (sign > 0 ? 1 : 2)) % 3, v = (axis + (sign > 0 ? 2 : 1)) % 3;
+                    float[] n = new float[3];
+                    n[axis] = sign;
+                    float[][] corners = {{-1, -1}, {1, -1}, {1, 1}, {-1, -1}, {1, 1}, {-1, 1}};
+                    for(float[] corner : corners) {
+                        float[] p = new float[3];
+                        p[axis] = 0.5f*sign;
+                        p[u] = 0.5f*corner[0];
+                        p[v] = 0.5f*corner[1];
+                        vertex(out, p[0], p[1], p[2], n[0], n[1], n[2]);
+                    }
+                }
+            }
+            cube = new Mesh(GL_TRIANGLES, out);
+        }
+        return cube;
+    }
+
+    /**
+     * Returns the edges of the cube.
+     */
+    public static Mesh wireCube() {
+        if(wireCube == null) {
+            FloatBuffer out = Buffers.newDirectFloatBuffer(12*2*vertexFloats);
+            // Every edge runs along one axis, at one of the four corners of the other two.
+            for(int axis = 0; axis < 3; axis++) {
+                int u = (axis + 1) % 3, v = (axis + 2) % 3;
+                for(int corner = 0; corner < 4; corner++) {
+                    float[] p = new float[3];
+                    p[u] = (corner & 1) == 0 ? -0.5f : 0.5f;
+                    p[v] = (corner & 2) == 0 ? -0.5f : 0.5f;
+                    for(int end = -1; end <= 1; end += 2) {
+                        p[axis] = 0.5f*end;
+                        vertex(out, p[0], p[1], p[2], 0, 0, 1);
+                    }
+                }
+            }
+            wireCube = new Mesh(GL_LINES, out);
+        }
+        return wireCube;
+    }
+
+    /**
+     * Returns the sphere with the given number of slices and stacks.
+     */
+    public static Mesh sphere(int slices) {
+        slices = Math.min(slices, maxSlices);
+        if(spheres[slices] == null) {
+            FloatBuffer out = Buffers.newDirectFloatBuffer(6*slices*slices*vertexFloats);
+            float[] a = new float[3], b = new float[3], c = new float[3], d = new float[3];
+            for(int i = 0; i < slices; i++) {
+                for(int j = 0; j < slices; j++) {
+                    spherePoint(a, i, j, slices);
+                    spherePoint(b, i + 1, j, slices);
+                    spherePoint(c, i + 1, j + 1, slices);
+                    spherePoint(d, i, j + 1, slices);
+                    // On the unit sphere the normal is the position.
+                    for(float[] p : new float[][] {a, d, c, a, c, b})
+                        vertex(out, p[0], p[1], p[2], p[0], p[1], p[2]);
+                }
+            }
+            spheres[slices] = new Mesh(GL_TRIANGLES, out);
+        }
+        return spheres[slices];
+    }
+
+    /**
+     * Returns the cylinder with the given number of slices.
+     */
+    public static Mesh cylinder(int slices) {
+        slices = Math.min(slices, maxSlices);
+        if(cylinders[slices] == null) {
+            FloatBuffer out = Buffers.newDirectFloatBuffer(12*slices*vertexFloats);
+            for(int i = 0; i < slices; i++) {
+                double a0 = 2*Math.PI*i/slices, a1 = 2*Math.PI*(i + 1)/slices;
+                float c0 = (float)Math.cos(a0), s0 = (float)Math.sin(a0);
+                float c1 = (float)Math.cos(a1), s1 = (float)Math.sin(a1);
+                // The side.
+                vertex(out, c0, s0, 0, c0, s0, 0);
+                vertex(out, c1, s1, 0, c1, s1, 0);
+                vertex(out, c1, s1, 1, c1, s1, 0);
+                vertex(out, c0, s0, 0, c0, s0, 0);
+                vertex(out, c1, s1, 1, c1, s1, 0);
+                vertex(out, c0, s0, 1, c0, s0, 0);
+                // The bottom and the top.
+                vertex(out, 0, 0, 0, 0, 0, -1);
+                vertex(out, c1, s1, 0, 0, 0, -1);
+                vertex(out, c0, s0, 0, 0, 0, -1);
+                vertex(out, 0, 0, 1, 0, 0, 1);
+                vertex(out, c0, s0, 1, 0, 0, 1);
+                vertex(out, c1, s1, 1, 0, 0, 1);
+            }
+            cylinders[slices] = new Mesh(GL_TRIANGLES, out);
+        }
+        return cylinders[slices];
+    }
+
+    /**
+     * Returns the cone with the given number of slices.
+     */
+    public static Mesh cone(int slices) {
+        slices = Math.min(slices, maxSlices);
+        if(cones[slices] == null) {
+            FloatBuffer out = Buffers.newDirectFloatBuffer(6*slices*vertexFloats);
+            // A cone of radius 1 and height 1 has normals (cos, sin, 1) / sqrt(2).
+            float k = (float)Math.sqrt(0.5);
+            for(int i = 0; i < slices; i++) {
+                double a0 = 2*Math.PI*i/slices, a1 = 2*Math.PI*(i + 1)/slices, am = (a0 + a1)/2;
+                float c0 = (float)Math.cos(a0), s0 = (float)Math.sin(a0);
+                float c1 = (float)Math.cos(a1), s1 = (float)Math.sin(a1);
+                float cm = (float)Math.cos(am), sm = (float)Math.sin(am);
+                vertex(out, c0, s0, 0, k*c0, k*s0, k);
+                vertex(out, c1, s1, 0, k*c1, k*s1, k);
+                vertex(out, 0, 0, 1, k*cm, k*sm, k);
+                // The base.
+                vertex(out, 0, 0, 0, 0, 0, -1);
+                vertex(out, c1, s1, 0, 0, 0, -1);
+                vertex(out, c0, s0, 0, 0, 0, -1);
+            }
+            cones[slices] = new Mesh(GL_TRIANGLES, out);
+        }
+        return cones[slices];
+    }
+
+    /**
+     * Computes a point on the unit sphere at a slice and a stack.
+     */
+    private static void spherePoint(float[] out, int slice, int stack, int slices) {
+        double theta = 2*Math.PI*slice/slices;
+        double phi = Math.PI*stack/slices;
+        out[0] = (float)(Math.sin(phi)*Math.cos(theta));
+        out[1] = (float)(Math.sin(phi)*Math.sin(theta));
+        out[2] = (float)Math.cos(phi);
+    }
+
+    /**
+     * Writes a vertex: its position and normal.
+     */
+    private static void vertex(FloatBuffer out, float x, float y, float z, float nx, float ny, float nz) {
+        out.put(x).put(y).put(z);
+        out.put(nx).put(ny).put(nz);
+    }
+}
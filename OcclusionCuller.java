@@ -0,0 +1,171 @@
+package robotrace;
+
+import java.util.Arrays;
+import static javax.media.opengl.GL2ES2.GL_QUERY_RESULT;
+import static javax.media.opengl.GL2ES2.GL_QUERY_RESULT_AVAILABLE;
+import static javax.media.opengl.GL2GL3.GL_SAMPLES_PASSED;
+import javax.media.opengl.GL2;
+
+/**
+ * Skips objects hidden behind other geometry, using occlusion queries on
+ * their bounding boxes.
+ *
+ * After a view has drawn its visible objects, the bounding box of every
+ * object in the frustum is drawn inside a query, without writing color or
+ * depth. The result is only read once the GPU has it available, usually a
+ * frame later; until then the object keeps its last known visibility, so
+ * reading a result never stalls the pipeline. An object that becomes
+ * visible is therefore drawn one frame late, which is hard to notice.
+ *
+ * Every view has its own cullers, since what is hidden depends on the camera.
+ */
+class OcclusionCuller {
+
+    /** Whether occlusion culling is used, switched off with -Drobotrace.occlusion=false. */
+    final static boolean enabled = Boolean.parseBoolean(System.getProperty("robotrace.occlusion", "true"));
+
+    /** The query of every object, 0 before its first test. */
+    private int[] queries = new int[0];
+
+    /** Whether the query of an object has been issued and not yet read. */
+    private boolean[] pending = new boolean[0];
+
+    /** The last known visibility of every object. */
+    private boolean[] visible = new boolean[0];
+
+    /** The camera position and near distance of the current view. */
+    private Vector eye = Vector.O;
+    private double near = 0;
+
+    /** Number of objects found hidden in the current view. */
+    private int hidden = 0;
+
+    /** Buffer receiving query results. */
+    private final int[] result = new int[1];
+
+    /**
+     * Reads the query results that have become available, without waiting
+     * for the others. Called at the start of a view, before {@link #isVisible}.
+     * @param eye   The camera position of the view.
+     * @param near  Distance to the near plane of the view.
+     */
+    public void begin(GL2 gl, Vector eye, double near) {
+        this.eye = eye;
+        this.near = near;
+        hidden = 0;
+        for(int id = 0; id < queries.length; id++) {
+            if(!pending[id])
+                continue;
+            gl.glGetQueryObjectiv(queries[id], GL_QUERY_RESULT_AVAILABLE, result, 0);
+            if(result[0] == 0)
+                continue;
+            gl.glGetQueryObjectiv(queries[id], GL_QUERY_RESULT, result, 0);
+            visible[id] = result[0] > 0;
+            pending[id] = false;
+        }
+    }
+
+    /**
+     * Returns whether an object was visible at its last test.
+     * Objects that were never tested are visible.
+     */
+    public boolean isVisible(int id) {
+        if(!enabled || id >= visible.length || visible[id])
+            return true;
+        hidden++;
+        return false;
+    }
+
+    /**
+     * Returns the number of objects {@link #isVisible} found hidden in the current view.
+     */
+    public int getHidden() {
+        return hidden;
+    }
+
+    /**
+     * Forgets all visibility, e.g. when the objects are replaced.
+     */
+    public void reset() {
+        Arrays.fill(visible, true);
+        Arrays.fill(pending, false);
+    }
+
+    /**
+     * Prepares drawing bounding boxes: no color, depth or lighting.
+     */
+    public static void beginTests(GL2 gl) {
+        Lighting.beginDepth(gl);
+        gl.glColorMask(false, false, false, false);
+        gl.glDepthMask(false);
+    }
+
+    /**
+     * Restores drawing after the bounding boxes.
+     */
+    public static void endTests(GL2 gl) {
+        gl.glDepthMask(true);
+        gl.glColorMask(true, true, true, true);
+        Lighting.endDepth(gl);
+        Lighting.resume(gl);
+    }
+
+    /**
+     * Tests the bounding box of an object, unless its previous test is
+     * still pending. Must be called between {@link #beginTests} and {@link #endTests}.
+     */
+    public void test(GL2 gl, int id, double minX, double minY, double minZ, double maxX, double maxY, double maxZ) {
+        if(!enabled)
+            return;
+        if(id >= queries.length) {
+            int length = Math.max(id + 1, 2*queries.length);
+            queries = Arrays.copyOf(queries, length);
+            pending = Arrays.copyOf(pending, length);
+            int old = visible.length;
+            visible = Arrays.copyOf(visible, length);
+            Arrays.fill(visible, old, length, true);
+        }
+        if(pending[id])
+            return;
+
+        // A box around the camera is cut by the near plane, it is always visible.
+        if(eye.x() > minX - near && eye.x() < maxX + near
+                && eye.y() > minY - near && eye.y() < maxY + near
+                && eye.z() > minZ - near && eye.z() < maxZ + near) {
+            visible[id] = true;
+            return;
+        }
+
+        if(queries[id] == 0) {
+            gl.glGenQueries(1, result, 0);
+            queries[id] = result[0];
+        }
+        gl.glBeginQuery(GL_SAMPLES_PASSED, queries[id]);
+        gl.glBegin(GL2.GL_QUAD_STRIP);
+        // The four sides.
+        gl.glVertex3d(minX, minY, minZ);
+        gl.glVertex3d(minX, minY, maxZ);
+        gl.glVertex3d(maxX, minY, minZ);
+        gl.glVertex3d(maxX, minY, maxZ);
+        gl.glVertex3d(maxX, maxY, minZ);
+        gl.glVertex3d(maxX, maxY, maxZ);
+        gl.glVertex3d(minX, maxY, minZ);
+        gl.glVertex3d(minX, maxY, maxZ);
+        gl.glVertex3d(minX, minY, minZ);
+        gl.glVertex3d(minX, minY, maxZ);
+        gl.glEnd();
+        gl.glBegin(GL2.GL_QUADS);
+        // The bottom and the top.
+        gl.glVertex3d(minX, minY, minZ);
+        gl.glVertex3d(maxX, minY, minZ);
+        gl.glVertex3d(maxX, maxY, minZ);
+        gl.glVertex3d(minX, maxY, minZ);
+        gl.glVertex3d(minX, minY, maxZ);
+        gl.glVertex3d(maxX, minY, maxZ);
+        gl.glVertex3d(maxX, maxY, maxZ);
+        gl.glVertex3d(minX, maxY, maxZ);
+        gl.glEnd();
+        gl.glEndQuery(GL_SAMPLES_PASSED);
+        pending[id] = true;
+    }
+}
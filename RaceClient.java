@@ -0,0 +1,248 @@
+package robotrace;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Shows the race of a {@link RaceServer} instead of simulating it,
+ * started with -Drobotrace.connect=&lt;host&gt;:&lt;port&gt;.
+ *
+ * A thread receives the snapshots and acknowledges every one of them.
+ * The renderer draws the race {@link #delay} seconds behind the newest
+ * snapshot and interpolates between the two snapshots around that time,
+ * so robots move smoothly although snapshots arrive a few times slower
+ * than frames are drawn and some of them are lost. When no snapshot is
+ * new enough the newest one is held.
+ */
+class RaceClient implements Runnable {
+
+    /** How far the drawn race runs behind the server, in seconds. */
+    private final static double delay = 0.1;
+
+    /** How long to wait for a snapshot before announcing the client again, in milliseconds. */
+    private final static int retry = 1000;
+
+    /** The server. */
+    private final InetSocketAddress server;
+    private final DatagramSocket socket;
+
+    /** Received snapshots by sequence modulo the length, used as baselines and for interpolation. */
+    private final Snapshot[] history = new Snapshot[RaceServer.history];
+    private final AtomicReferenceArray<Snapshot> received = new AtomicReferenceArray<Snapshot>(RaceServer.history);
+
+    /** Server animation time minus local time in seconds, NaN before the first snapshot. */
+    private volatile double offset = Double.NaN;
+
+    /** The state drawn, filled by {@link #latest}. */
+    private final FrameState state;
+
+    /** Number of tracks here, snapshots of other tracks are rejected. */
+    private final int tracks;
+
+    /** Bytes and snapshots received in the current second, and when it started. */
+    private long bytes = 0;
+    private int count = 0;
+    private long secondStart = System.nanoTime();
+
+    /** Bytes and snapshots received in the last second, and the latency of the newest snapshot in milliseconds. */
+    private volatile long bandwidth = 0;
+    private volatile int snapshots = 0;
+    private volatile long latency = 0;
+
+    /** Frames drawn without a snapshot after them, since the last {@link #resetHeld}. */
+    private int held = 0;
+
+    /** Datagrams that were not a snapshot of this race. */
+    private volatile int rejected = 0;
+
+    /**
+     * Connects when -Drobotrace.connect is given, returns null otherwise.
+     */
+    public static RaceClient fromProperties(int robots, int tracks) {
+        String address = System.getProperty("robotrace.connect");
+        if(address == null)
+            return null;
+        try {
+            int colon = address.lastIndexOf(':');
+            RaceClient client = new RaceClient(robots, tracks,
+                    new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1))));
+            Thread thread = new Thread(client, "race client");
+            thread.setDaemon(true);
+            thread.start();
+            return client;
+        } catch(IOException ex) {
+            System.err.println("Not connected: " + ex);
+            return null;
+        }
+    }
+
+    /**
+     * Opens a socket to a server, the thread is started by the caller.
+     */
+    public RaceClient(int robots, int tracks, InetSocketAddress server) throws IOException {
+        this.server = server;
+        this.tracks = tracks;
+        this.socket = new DatagramSocket();
+        this.socket.setSoTimeout(retry);
+        this.state = new FrameState(robots);
+    }
+
+    /**
+     * Receives and acknowledges snapshots.
+     */
+    @Override
+    public void run() {
+        byte[] data = new byte[65536];
+        DatagramPacket packet = new DatagramPacket(data, data.length);
+        long newest = 0;
+        try {
+            acknowledge(0);
+            while(true) {
+                try {
+                    socket.receive(packet);
+                } catch(SocketTimeoutException ex) {
+                    // The server may not have been running yet, or has forgotten this client.
+                    acknowledge(0);
+                    continue;
+                }
+                ByteBuffer in = ByteBuffer.wrap(data, 0, packet.getLength());
+                if(!in.hasRemaining() || in.get() != RaceServer.snapshotPacket)
+                    continue;
+                Snapshot snapshot;
+                try {
+                    snapshot = Snapshot.read(in, history, state.phases.length, tracks);
+                } catch(RuntimeException ex) {
+                    // Cut short, corrupted or from another race: drop it, never the connection.
+                    rejected++;
+                    continue;
+                }
+                if(snapshot == null) {
+                    // The baseline is gone, ask for a full snapshot.
+                    acknowledge(0);
+                    continue;
+                }
+                int slot = (int)(snapshot.sequence % history.length);
+                history[slot] = snapshot;
+                received.set(slot, snapshot);
+                acknowledge(snapshot.sequence);
+                measure(packet.getLength(), snapshot);
+
+                // Follow the clock of the server, smoothing out the jitter of the network.
+                if(snapshot.sequence > newest) {
+                    newest = snapshot.sequence;
+                    double sample = snapshot.tAnim - System.nanoTime()*1e-9;
+                    double current = offset;
+                    offset = Double.isNaN(current) || Math.abs(sample - current) > 1 ? sample : current + (sample - current)*0.05;
+                }
+            }
+        } catch(IOException ex) {
+            System.err.println("Disconnected: " + ex);
+        }
+    }
+
+    /**
+     * Tells the server the newest snapshot received, 0 for none.
+     */
+    private void acknowledge(long sequence) throws IOException {
+        byte[] ack = new byte[9];
+        ByteBuffer.wrap(ack).put(RaceServer.ackPacket).putLong(sequence);
+        socket.send(new DatagramPacket(ack, ack.length, server));
+    }
+
+    /**
+     * Counts a received snapshot for the metrics.
+     */
+    private void measure(int length, Snapshot snapshot) {
+        long now = System.nanoTime();
+        bytes += length;
+        count++;
+        latency = System.currentTimeMillis() - snapshot.sent;
+        if(now - secondStart >= 1000000000L) {
+            bandwidth = bytes;
+            snapshots = count;
+            bytes = count = 0;
+            secondStart = now;
+        }
+    }
+
+    /**
+     * Returns the state to draw now, interpolated between the snapshots
+     * around the delayed server time. Only called by the renderer.
+     */
+    public FrameState latest() {
+        double current = offset;
+        if(Double.isNaN(current))
+            return state;
+        double time = System.nanoTime()*1e-9 + current - delay;
+
+        // The newest snapshot at or before the time, and the oldest one after it.
+        Snapshot before = null, after = null;
+        for(int i = 0; i < received.length(); i++) {
+            Snapshot s = received.get(i);
+            if(s == null)
+                continue;
+            if(s.tAnim <= time && (before == null || s.tAnim > before.tAnim))
+                before = s;
+            if(s.tAnim > time && (after == null || s.tAnim < after.tAnim))
+                after = s;
+        }
+        if(before != null && after != null) {
+            Snapshot.interpolate(before, after, (time - before.tAnim)/(after.tAnim - before.tAnim), state);
+        } else {
+            // Too far behind or ahead of the snapshots, hold the nearest one.
+            Snapshot nearest = before != null ? before : after;
+            if(nearest != null)
+                Snapshot.interpolate(nearest, nearest, 0, state);
+            held++;
+        }
+        return state;
+    }
+
+    /**
+     * Returns the bytes received in the last second.
+     */
+    public long getBandwidth() {
+        return bandwidth;
+    }
+
+    /**
+     * Returns the snapshots received in the last second.
+     */
+    public int getSnapshots() {
+        return snapshots;
+    }
+
+    /**
+     * Returns the time from sending to receiving the newest snapshot, in
+     * milliseconds. Only meaningful when the clocks of server and client agree.
+     */
+    public long getLatency() {
+        return latency;
+    }
+
+    /**
+     * Returns the number of datagrams that were not a snapshot of this race.
+     */
+    public int getRejected() {
+        return rejected;
+    }
+
+    /**
+     * Returns the number of frames that held a snapshot instead of interpolating.
+     */
+    public int getHeld() {
+        return held;
+    }
+
+    /**
+     * Starts counting held frames over again.
+     */
+    public void resetHeld() {
+        held = 0;
+    }
+}
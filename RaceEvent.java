@@ -0,0 +1,66 @@
+package robotrace;
+
+/**
+ * Something worth filming that happened in the race.
+ */
+class RaceEvent {
+
+    /**
+     * The kinds of events, with the priority of their shots and the
+     * camera mode that films them best.
+     */
+    enum Type {
+        /** Two robots running close together, filmed from the robot behind. */
+        CLOSE_BATTLE(1, 3),
+        /** A robot passing another, filmed from the rail behind it. */
+        OVERTAKE(2, 2),
+        /** A new robot in the lead, filmed from the helicopter. */
+        LEADER_CHANGE(3, 1);
+
+        /** Higher priorities cut away from shots of lower priority. */
+        final int priority;
+
+        /** The camera mode of the shot: 1 helicopter, 2 motorcycle, 3 first person. */
+        final int cameraMode;
+
+        Type(int priority, int cameraMode) {
+            this.priority = priority;
+            this.cameraMode = cameraMode;
+        }
+    }
+
+    /** The kind of event. */
+    final Type type;
+
+    /** The robot the event is about, and the other robot involved. */
+    final int robot;
+    final int other;
+
+    /** The rank of the robot when the event happened, 0 being the leader. */
+    final int rank;
+
+    /** The animation time of the event. */
+    final float time;
+
+    public RaceEvent(Type type, int robot, int other, int rank, float time) {
+        this.type = type;
+        this.robot = robot;
+        this.other = other;
+        this.rank = rank;
+        this.time = time;
+    }
+
+    /**
+     * Returns whether this event makes a better shot than another, which may be null:
+     * a higher priority, then a better rank, then the newest.
+     */
+    public boolean isBetterThan(RaceEvent event) {
+        if(event == null)
+            return true;
+        if(type.priority != event.type.priority)
+            return type.priority > event.type.priority;
+        if(rank != event.rank)
+            return rank < event.rank;
+        return time >= event.time;
+    }
+}
@@ -0,0 +1,225 @@
+package robotrace;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Sends the race simulated here to {@link RaceClient}s over UDP, started
+ * with -Drobotrace.serve=&lt;port&gt;.
+ *
+ * Clients announce themselves by acknowledging the newest snapshot they
+ * received, 0 for none. Every client gets the snapshots as the difference
+ * to the snapshot it acknowledged last, or in full when that one is no
+ * longer kept. A lost datagram therefore only makes the next ones a bit
+ * larger. Clients that have not been heard from for a while are dropped.
+ *
+ * The server never blocks the simulation: acknowledgements are read and
+ * snapshots sent without waiting, at most {@link #rate} times a second.
+ */
+class RaceServer {
+
+    /** Types of datagrams. */
+    final static byte snapshotPacket = 1, ackPacket = 2;
+
+    /** Snapshots sent per second. */
+    private final static int rate = 30;
+
+    /** Number of snapshots kept as baselines. */
+    final static int history = 64;
+
+    /** Clients silent for longer than this are dropped, in nanoseconds. */
+    private final static long timeout = 5000000000L;
+
+    /**
+     * A client and the newest snapshot it has.
+     */
+    private static class Client {
+        long acked = 0;
+        long lastHeard;
+    }
+
+    /** The socket, never blocking. */
+    private final DatagramChannel channel;
+
+    /** The connected clients by address. */
+    private final Map<SocketAddress, Client> clients = new HashMap<SocketAddress, Client>();
+
+    /** The snapshots sent last, and when they were sent in System.nanoTime(). */
+    private final Snapshot[] sent = new Snapshot[history];
+    private final long[] sentAt = new long[history];
+
+    /** Largest payload of a UDP datagram, in bytes. */
+    private final static int maxDatagram = 65507;
+
+    /** Buffer for incoming and outgoing datagrams, large enough for any snapshot. */
+    private final ByteBuffer buffer;
+
+    /** Sequence number of the last snapshot, and when it was sent. */
+    private long sequence = 0;
+    private long lastSend = 0;
+
+    /** Bytes sent in the current second, and when it started. */
+    private long bytes = 0;
+    private long secondStart = System.nanoTime();
+
+    /** Bytes sent in the last second, the average round trip time in milliseconds and the number of clients. */
+    private volatile long bandwidth = 0;
+    private volatile double roundTrip = 0;
+    private volatile int clientCount = 0;
+
+    /**
+     * Starts a server when -Drobotrace.serve is given, returns null otherwise.
+     * Also returns null when a snapshot of the robots may not fit in a datagram.
+     */
+    public static RaceServer fromProperties(int robots) {
+        String port = System.getProperty("robotrace.serve");
+        if(port == null)
+            return null;
+        if(1 + Snapshot.maxBytes(robots) > maxDatagram) {
+            System.err.println("Not serving: " + robots + " robots, at most "
+                    + maxRobots() + " robots fit in a datagram");
+            return null;
+        }
+        try {
+            return new RaceServer(Integer.parseInt(port), robots);
+        } catch(IOException ex) {
+            System.err.println("Not serving: " + ex);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the most robots a snapshot can hold.
+     */
+    public static int maxRobots() {
+        int robots = 0;
+        while(1 + Snapshot.maxBytes(robots + 1) <= maxDatagram)
+            robots++;
+        return robots;
+    }
+
+    /**
+     * Opens the server socket on a port, for a race of a number of robots.
+     */
+    public RaceServer(int port, int robots) throws IOException {
+        if(1 + Snapshot.maxBytes(robots) > maxDatagram)
+            throw new IllegalArgumentException("At most " + maxRobots() + " robots fit in a datagram");
+        buffer = ByteBuffer.allocateDirect(1 + Snapshot.maxBytes(robots));
+        channel = DatagramChannel.open();
+        channel.configureBlocking(false);
+        channel.bind(new InetSocketAddress(port));
+    }
+
+    /**
+     * Sends a state of the simulation to the clients, unless a snapshot was sent very recently.
+     * Called by the simulation after every step.
+     */
+    public void publish(FrameState state) {
+        long now = System.nanoTime();
+        receive(now);
+        if(now - lastSend < 1000000000L/rate)
+            return;
+        lastSend = now;
+
+        Snapshot snapshot = Snapshot.of(state, ++sequence);
+        snapshot.sent = System.currentTimeMillis();
+        int slot = (int)(sequence % history);
+        sent[slot] = snapshot;
+        sentAt[slot] = now;
+
+        Iterator<Map.Entry<SocketAddress, Client>> it = clients.entrySet().iterator();
+        while(it.hasNext()) {
+            Map.Entry<SocketAddress, Client> entry = it.next();
+            Client client = entry.getValue();
+            if(now - client.lastHeard > timeout) {
+                it.remove();
+                continue;
+            }
+            Snapshot baseline = sent[(int)(client.acked % history)];
+            if(client.acked == 0 || baseline == null || baseline.sequence != client.acked)
+                baseline = null;
+            buffer.clear();
+            buffer.put(snapshotPacket);
+            snapshot.write(buffer, baseline);
+            buffer.flip();
+            try {
+                bytes += channel.send(buffer, entry.getKey());
+            } catch(IOException ex) {
+                // The client is gone, it times out.
+            }
+        }
+        clientCount = clients.size();
+
+        if(now - secondStart >= 1000000000L) {
+            bandwidth = bytes;
+            bytes = 0;
+            secondStart = now;
+        }
+    }
+
+    /**
+     * Reads the acknowledgements that have arrived.
+     */
+    private void receive(long now) {
+        double totalTrip = 0;
+        int trips = 0;
+        while(true) {
+            buffer.clear();
+            SocketAddress from;
+            try {
+                from = channel.receive(buffer);
+            } catch(IOException ex) {
+                break;
+            }
+            if(from == null)
+                break;
+            buffer.flip();
+            if(buffer.remaining() < 9 || buffer.get() != ackPacket)
+                continue;
+            long ack = buffer.getLong();
+            Client client = clients.get(from);
+            if(client == null) {
+                client = new Client();
+                clients.put(from, client);
+            }
+            client.lastHeard = now;
+
+            // The newest acknowledgement wins, 0 asks for a full snapshot.
+            client.acked = ack;
+            int slot = (int)(ack % history);
+            if(ack != 0 && sent[slot] != null && sent[slot].sequence == ack) {
+                totalTrip += (now - sentAt[slot])/1e6;
+                trips++;
+            }
+        }
+        if(trips > 0)
+            roundTrip = totalTrip/trips;
+    }
+
+    /**
+     * Returns the number of connected clients.
+     */
+    public int getClients() {
+        return clientCount;
+    }
+
+    /**
+     * Returns the bytes sent to all clients in the last second.
+     */
+    public long getBandwidth() {
+        return bandwidth;
+    }
+
+    /**
+     * Returns the round trip time of the last acknowledgements, in milliseconds.
+     */
+    public double getRoundTrip() {
+        return roundTrip;
+    }
+}
@@ -1,11 +1,7 @@
 package robotrace;
 
 import com.jogamp.opengl.util.gl2.GLUT;
-import static javax.media.opengl.GL.GL_FRONT;
 import javax.media.opengl.GL2;
-import static javax.media.opengl.fixedfunc.GLLightingFunc.GL_DIFFUSE;
-import static javax.media.opengl.fixedfunc.GLLightingFunc.GL_SHININESS;
-import static javax.media.opengl.fixedfunc.GLLightingFunc.GL_SPECULAR;
 import javax.media.opengl.glu.GLU;
 
 /**
@@ -13,15 +9,18 @@ import javax.media.opengl.glu.GLU;
  */
 class RaceTrack {
     
-    /** The width of one lane. The total width of the track is 4 * laneWidth. */
+    /** The number of lanes on the track. */
+    final static int laneCount = 4;
+    
+    /** The width of one lane. The total width of the track is laneCount * laneWidth. */
     private final static float laneWidth = 1.22f;
-    private final static float trackWidth = 4 * laneWidth;
+    final static float trackWidth = laneCount * laneWidth;
     
     /** based on how many points a curve / line / spline should be drawn. (0 < stepSize <= 1) **/
     private final float stepSize = 0.0001f;
     
-    /** Array with location of trees on this track */
-    private Vector[] treeLocations = new Vector[]{};
+    /** The trees along this track */
+    private TreeRenderer trees = new TreeRenderer(0);
 
     /** Array with 3N control points, where N is the number of segments. */
     private Vector[] controlPoints = null;
@@ -32,10 +31,34 @@ class RaceTrack {
     /* The length of the bezier segments based on control points given. */
     private double[] lengthDistribution = null;
     
+    /** Number of samples in the precomputed track profile. */
+    private final static int profileSamples = 1024;
+    
+    /** Distance along the track from the start to each profile sample. */
+    private final double[] arcLength = new double[profileSamples];
+    
+    /** Curvature (1 / radius) of the track at each profile sample. */
+    private final double[] curvature = new double[profileSamples];
+    
+    /** Slope (rise over run) of the track at each profile sample. */
+    private final double[] slope = new double[profileSamples];
+    
+    /** Answers queries about points relative to the middle of the track. */
+    private TrackQuery query;
+    
+    /** The recorded surface and walls of the track. */
+    private final CommandList surface = new CommandList(new CommandList.Recording() {
+        @Override
+        public void record(GL2 gl) {
+            drawSurface(gl);
+        }
+    });
+    
     /**
      * Constructor for the default track.
      */
     public RaceTrack() {
+        computeProfile();
     }
     
     /**
@@ -75,21 +98,24 @@ class RaceTrack {
             }
             lengthDistribution = lengths;
         }
+        computeProfile();
     }
     
     /**
-     * Constructor for a spline track.
+     * Replaces the trees along this track.
      */
-    public RaceTrack(Vector[] controlPoints, Vector[] treeLocations) {
-        this(controlPoints);
-        
-        this.treeLocations = treeLocations;
+    public void setTrees(TreeRenderer trees) {
+        this.trees = trees;
     }
 
     /**
      * Draws this track, based on the control points.
+     * @param frustum   The viewing volume, trees outside of it are skipped.
+     * @param eye       The camera position, distant trees are drawn with less detail.
+     * @param occlusion Skips the trees hidden from the view, or null to draw all trees.
+     * @return The number of trees drawn.
      */
-    public void draw(GL2 gl, GLU glu, GLUT glut) {
+    public int draw(GL2 gl, GLU glu, GLUT glut, Frustum frustum, Vector eye, OcclusionCuller occlusion) {
         //enable 2D textures and set the required parameters
         gl.glEnable(gl.GL_TEXTURE_2D);
         gl.glTexEnvi(gl.GL_TEXTURE_ENV, gl.GL_TEXTURE_ENV_MODE, gl.GL_REPLACE);
@@ -97,7 +123,36 @@ class RaceTrack {
         gl.glTexParameteri(gl.GL_TEXTURE_2D, gl.GL_TEXTURE_WRAP_T, gl.GL_CLAMP);
         gl.glTexParameteri(gl.GL_TEXTURE_2D, gl.GL_TEXTURE_MIN_FILTER, gl.GL_LINEAR);
         gl.glTexParameteri(gl.GL_TEXTURE_2D, gl.GL_TEXTURE_MAG_FILTER, gl.GL_LINEAR);
+        Lighting.setTextureMode(gl, Lighting.texture2D);
 
+        // The surface and walls never change, they are recorded once and replayed.
+        surface.call(gl);
+        
+        gl.glDisable(gl.GL_TEXTURE_2D); //disable the 2d textures as we are going to draw non-textured trees
+        Lighting.setTextureMode(gl, Lighting.noTexture);
+        /** Drawing trees at all tree-points **/
+        return trees.draw(gl, frustum, eye, occlusion);
+    }
+    
+    /**
+     * Deletes the recorded surface, before the context is disposed.
+     */
+    public void dispose(GL2 gl) {
+        surface.delete(gl);
+    }
+    
+    /**
+     * Tests which trees are hidden from the view that was drawn last.
+     * Must be called between {@link OcclusionCuller#beginTests} and {@link OcclusionCuller#endTests}.
+     */
+    public void testOcclusion(GL2 gl, OcclusionCuller occlusion) {
+        trees.testTiles(gl, occlusion);
+    }
+    
+    /**
+     * Draws the surface and walls of the track, recorded into {@link #surface}.
+     */
+    private void drawSurface(GL2 gl) {
         if (null == controlPoints) {
             /**
              * Drawing the top of the racetrack
@@ -290,96 +345,6 @@ class RaceTrack {
             }
             gl.glEnd();
         }
-        gl.glDisable(gl.GL_TEXTURE_2D); //disable the 2d textures as we are going to draw non-textured trees
-        /** Drawing trees at all tree-points **/
-        int sizeFactor = 0;
-        for(Vector location : treeLocations) {
-            sizeFactor++;
-            gl.glPushMatrix();
-                // Translate to the correct location
-                gl.glTranslated(location.x(), location.y(), location.z());
-            
-                // Set the materials for the trunk of the tree
-                gl.glMaterialfv(GL_FRONT, GL_DIFFUSE, Material.WOOD.diffuse, 0);
-                gl.glMaterialfv(GL_FRONT, GL_SPECULAR, Material.WOOD.specular, 0);
-                gl.glMaterialf(GL_FRONT, GL_SHININESS, Material.WOOD.shininess);
-
-                // Draw the Tree trunk
-                // With random width/height
-                double width = 0.1+Math.abs(Math.cos(sizeFactor));
-                double height = 0.3+2*Math.abs(Math.cos(sizeFactor));
-                glut.glutSolidCylinder(width, height, 15, 15);
-
-                // setting materials for the leafs
-                float[] green = {0f, 0.39f, 0f, 1f};
-                gl.glMaterialfv(GL_FRONT, GL_DIFFUSE, green, 0);
-                gl.glMaterialfv(GL_FRONT, GL_SPECULAR, green, 0);
-                
-                gl.glPushMatrix();
-                    gl.glTranslated(0, 0, height*0.85);
-                    
-                    // Randomize the leaf shape between cone and balls
-                    if(Math.tan(sizeFactor*sizeFactor) > 0) {
-                        // Draw a big base cone
-                        glut.glutSolidCone(width*2.1, height, 15, 15);
-                        
-                        // With a smaller cone ontop
-                        gl.glPushMatrix();
-                            gl.glTranslated(0, 0, height*0.4);
-                            glut.glutSolidCone(width*1.9, height, 15, 15);
-                        gl.glPopMatrix();
-                        
-                        // And an even smalled ontop of that
-                        gl.glPushMatrix();
-                            gl.glTranslated(0, 0, height*0.8);
-                            glut.glutSolidCone(width*1.6, height, 15, 15);
-                        gl.glPopMatrix();
-                    } else {
-                        // draw 4 spheres at the base with one ontop to represent leaves.
-                        gl.glPushMatrix();
-                            gl.glTranslated(width/2, width/2, 0);
-                            glut.glutSolidSphere(width*0.9, 15, 15);
-                        gl.glPopMatrix();
-                        
-                        gl.glPushMatrix();
-                            gl.glTranslated(width/2, width/-2, 0);
-                            glut.glutSolidSphere(width*0.9, 15, 15);
-                        gl.glPopMatrix();
-                        
-                        gl.glPushMatrix();
-                            gl.glTranslated(width/-2, width/-2, 0);
-                            glut.glutSolidSphere(width*0.9, 15, 15);
-                        gl.glPopMatrix();
-                        
-                        gl.glPushMatrix();
-                            gl.glTranslated(width/-2, width/2, 0);
-                            glut.glutSolidSphere(width*0.9, 15, 15);
-                        gl.glPopMatrix();
-                        
-                        gl.glPushMatrix();
-                            gl.glTranslated(0, width/2, width/2);
-                            glut.glutSolidSphere(width*0.9, 15, 15);
-                        gl.glPopMatrix();
-                        
-                        gl.glPushMatrix();
-                            gl.glTranslated(0, width/-2, width/2);
-                            glut.glutSolidSphere(width*0.9, 15, 15);
-                        gl.glPopMatrix();
-                        
-                        gl.glPushMatrix();
-                            gl.glTranslated(width/-2, 0, width/2);
-                            glut.glutSolidSphere(width*0.9, 15, 15);
-                        gl.glPopMatrix();
-                        
-                        gl.glPushMatrix();
-                            gl.glTranslated(width/2, 0, width/2);
-                            glut.glutSolidSphere(width*0.9, 15, 15);
-                        gl.glPopMatrix();
-                    }
-                gl.glPopMatrix();
-            
-            gl.glPopMatrix();
-        }
     }
     
     /**
@@ -419,6 +384,143 @@ class RaceTrack {
         } 
     }
     
+    /**
+     * Returns whether the end of the track connects to its start,
+     * so robots can run multiple laps.
+     */
+    public boolean isClosed() {
+        if (null == controlPoints)
+            return true;
+        Vector start = controlPoints[0];
+        Vector end = controlPoints[controlPoints.length-1];
+        return start.x() == end.x() && start.y() == end.y() && start.z() == end.z();
+    }
+    
+    /**
+     * Returns the index of the profile sample just before 0 <= t <= 1.
+     */
+    public int getProfileIndex(double t) {
+        int index = (int)(t*(profileSamples-1));
+        return Math.max(0, Math.min(index, profileSamples-2));
+    }
+    
+    /**
+     * Returns the curvature (1 / radius) of the track at a profile sample.
+     */
+    public double getCurvature(int index) {
+        return curvature[index];
+    }
+    
+    /**
+     * Returns the slope (rise over run) of the track at a profile sample.
+     */
+    public double getSlope(int index) {
+        return slope[index];
+    }
+    
+    /**
+     * Returns the distance needed to advance t by 1 around a profile sample.
+     * Multiply a distance by the inverse of this to get the progress it covers.
+     */
+    public double getDistancePerProgress(int index) {
+        return (arcLength[index+1]-arcLength[index])*(profileSamples-1);
+    }
+    
+    /**
+     * Returns the distance along the track from the start to 0 <= t <= 1.
+     */
+    public double getArcLength(double t) {
+        int index = getProfileIndex(t);
+        double fraction = t*(profileSamples-1) - index;
+        return arcLength[index] + fraction*(arcLength[index+1]-arcLength[index]);
+    }
+    
+    /**
+     * Returns the t at which the given distance from the start is reached,
+     * the inverse of {@link #getArcLength(double)}.
+     */
+    public double getProgressAt(double distance) {
+        // Binary search for the last sample before the distance.
+        int low = 0;
+        int high = profileSamples-2;
+        while(low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if(arcLength[middle] <= distance)
+                low = middle;
+            else
+                high = middle - 1;
+        }
+        double segment = arcLength[low+1]-arcLength[low];
+        double fraction = segment > 0 ? (distance-arcLength[low])/segment : 0;
+        fraction = Math.max(0, Math.min(fraction, 1));
+        return (low + fraction)/(profileSamples-1);
+    }
+    
+    /**
+     * Returns the total length of the track.
+     */
+    public double getLength() {
+        return arcLength[profileSamples-1];
+    }
+    
+    /**
+     * Finds where (x, y) lies relative to the middle of the track.
+     * @param out   Receives the distance, arc length, lateral offset and lane.
+     */
+    public void query(double x, double y, TrackQuery.Result out) {
+        query.query(x, y, out);
+    }
+    
+    /**
+     * Samples the track once at equal steps of t to find the length, curvature
+     * and slope along it, so the robots can look them up in constant time.
+     */
+    private void computeProfile() {
+        double[] middle = new double[2*profileSamples];
+        double[] side = new double[2*profileSamples];
+        Vector[] points = new Vector[profileSamples];
+        Vector[] tangents = new Vector[profileSamples];
+        for(int i = 0; i < profileSamples; i++) {
+            double t = (double)i/(profileSamples-1);
+            points[i] = getLanePoint(0, t);
+            
+            // Bezier segments with coinciding control points have no tangent at their ends.
+            Vector tangent = getLaneTangent(0, t);
+            if(tangent.length() > 1e-9)
+                tangents[i] = tangent.normalized();
+            else
+                tangents[i] = i > 0 ? tangents[i-1] : Vector.O;
+            if(i > 0)
+                arcLength[i] = arcLength[i-1] + points[i].subtract(points[i-1]).length();
+            
+            // The middle of the track lies halfway between the first and the last lane.
+            Vector outer = getLanePoint(laneCount-1, t);
+            middle[2*i] = (points[i].x()+outer.x())/2;
+            middle[2*i+1] = (points[i].y()+outer.y())/2;
+            double across = Math.hypot(outer.x()-points[i].x(), outer.y()-points[i].y());
+            side[2*i] = (outer.x()-points[i].x())/across;
+            side[2*i+1] = (outer.y()-points[i].y())/across;
+        }
+        query = new TrackQuery(middle, side, arcLength, laneWidth, laneCount);
+        
+        for(int i = 0; i < profileSamples; i++) {
+            // Use the neighbouring samples, clamped at both ends of the track.
+            int prev = Math.max(i-1, 0);
+            int next = Math.min(i+1, profileSamples-1);
+            double distance = arcLength[next]-arcLength[prev];
+            if(distance <= 0)
+                continue;
+            
+            // Curvature is the change in direction per distance traveled.
+            curvature[i] = tangents[next].subtract(tangents[prev]).length()/distance;
+            
+            // Slope is the change in height per horizontal distance traveled.
+            double rise = points[next].z()-points[prev].z();
+            double run = Math.sqrt(Math.max(distance*distance-rise*rise, 1e-9));
+            slope[i] = rise/run;
+        }
+    }
+    
     /**
      * Finds what controlpoint segment and position the current t is in.
      * @param t The overall progress over the track 0 <= t <=1
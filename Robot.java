@@ -1,7 +1,6 @@
 package robotrace;
 
 import com.jogamp.opengl.util.gl2.GLUT;
-import static javax.media.opengl.GL.GL_FRONT;
 import static javax.media.opengl.GL.GL_LINES;
 import javax.media.opengl.GL2;
 import static javax.media.opengl.fixedfunc.GLLightingFunc.*;
@@ -11,27 +10,63 @@ import javax.media.opengl.glu.GLU;
 * Represents a Robot, to be implemented according to the Assignments.
 */
 class Robot {
-    // Progress along the track
+    // Progress along the track within the current lap
     public float progress = 0f;
     
-    /** The position of the robot. */
+    /** The number of laps this robot has completed. */
+    public int laps = 0;
+    
+    /** The lap and sector times of this robot. */
+    public final SplitTimes splits = new SplitTimes();
+    
+    /** The position of the robot, as drawn. Set with {@link #setPose}. */
     public Vector position = new Vector(1, 1, 0);
     
-    /** The direction in which the robot is running. */
+    /** The direction in which the robot is running, as drawn. */
     public Vector direction = new Vector(1, 0, 0);
+    
+    /** The progress along the track at which the robot is drawn. */
+    public float poseProgress = 0f;
+
+    /** The lane the robot is running in. */
+    public int lane = 0;
+    
+    /** The current speed of the robot along the track. */
+    public double speed = 0;
 
     /** The material from which this robot is built. */
     private final Material material;
     
+    /** The highest speed this robot can reach on a straight. */
+    private final double maxSpeed;
+    
+    /** How fast this robot gains speed. */
+    private final double acceleration;
+    
+    /** The sideways acceleration this robot can handle in a corner. */
+    private final double cornering;
+    
+    /** Acceleration caused by gravity when running up or down a slope. */
+    private final static double gravity = 9.81;
+    
+    /** Robots never slow down below this fraction of their top speed in corners. */
+    private final static double minCornerFraction = 0.2;
+    
     // GL, GLU, GLUT is stored to avoid juggling it between all drawing functions.
     // since no asynchronous functions are running in this class it gives no issues.
     private GL2 gl;
     private GLU glu;
     private GLUT glut;
     
+    // Number of slices of the round parts, chosen per draw for the level of detail.
+    private int slices;
+    
     // The animation speed of this unit. (base 1.0) with a max differeence of 10%.
     private double animationSpeed = (Math.random()*0.2)+0.9;
     
+    /** The phase of the limb animation, as drawn. */
+    public double animationPhase = 0;
+    
     /**
      * Variable to see the difference between right/left arms and legs.
      */
@@ -87,14 +122,153 @@ class Robot {
     // Leg location
     private Vector legOffset = new Vector(torsoWidth/2, 0, legHeight-torsoLegOverlap);
     
+    /**
+     * The transform hierarchy of the robot, the world matrices are only
+     * recomputed when the robot moves or a joint turns.
+     */
+    // The robot itself, placed on the track and turned in its direction.
+    private final SceneNode root = new SceneNode();
+    // The torso and head.
+    private final SceneNode torso = new SceneNode(root);
+    private final SceneNode head = new SceneNode(root);
+    private final SceneNode headShape = new SceneNode(head);
+    private final SceneNode headWire = new SceneNode(headShape);
+    // The arms and legs, indexed by LimbOrientation. The left ones are mirrored.
+    private final SceneNode[] arms = new SceneNode[2];
+    private final SceneNode[] armSpheres = new SceneNode[2];
+    private final SceneNode[] armShapes = new SceneNode[2];
+    private final SceneNode[] legs = new SceneNode[2];
+    private final SceneNode[] legSticks = new SceneNode[2];
+    private final SceneNode[] legJoints = new SceneNode[2];
+    private final SceneNode[] legPins = new SceneNode[2];
+    private final SceneNode[] legShapes = new SceneNode[2];
+    
     /**
      * Constructs the robot with initial parameters.
+     * @param material      The material from which this robot is built.
+     * @param maxSpeed      The highest speed this robot can reach on a straight.
+     * @param acceleration  How fast this robot gains speed, braking goes twice as fast.
+     * @param cornering     The sideways acceleration this robot can handle in a corner.
      */
-    public Robot(Material material
-        /* add other parameters that characterize this robot */) {
+    public Robot(Material material, double maxSpeed, double acceleration, double cornering) {
         this.material = material;
+        this.maxSpeed = maxSpeed;
+        this.acceleration = acceleration;
+        this.cornering = cornering;
+        
+        // The parts that never move relative to their parent are set once.
+        torso.setTranslation(0, 0, headOffset.z()-(torsoHeight/2)).setScale(torsoWidth, torsoDepth, torsoHeight);
+        head.setTranslation(this.headOffset.x(), this.headOffset.y(), this.headOffset.z());
+        headShape.setTranslation(0, 0, headHeight).setScale(headWidth, headDepth, headHeight);
+        headWire.setScale(2, 2, 2);
+        for(LimbOrientation orientation : LimbOrientation.values()) {
+            int i = orientation.ordinal();
+            SceneNode mirror = new SceneNode(root);
+            if(orientation == LimbOrientation.LEFT)
+                mirror.setScale(-1, 1, 1);
+            
+            arms[i] = new SceneNode(mirror).setTranslation(this.armOffset.x(), this.armOffset.y(), this.armOffset.z());
+            armSpheres[i] = new SceneNode(arms[i]).setScale(0.1, 0.1, 0.1);
+            armShapes[i] = new SceneNode(arms[i]).setTranslation(armWidth/2, 0, armHeight/-2).setScale(armWidth, armDepth, armHeight);
+            
+            legs[i] = new SceneNode(mirror).setTranslation(this.legOffset.x(), this.legOffset.y(), this.legOffset.z());
+            legSticks[i] = new SceneNode(new SceneNode(legs[i]).setTranslation(0, 0, torsoLegOverlap/2)).setScale(0.1, 0.1, 0.1);
+            SceneNode joint = new SceneNode(legs[i]).setRotation(90, 0, 1, 0);
+            legJoints[i] = new SceneNode(joint).setScale(torsoLegOverlap*0.9, torsoLegOverlap*0.9, legWidth*1.1);
+            legPins[i] = new SceneNode(joint).setScale(torsoLegOverlap*0.2, torsoLegOverlap*0.2, legWidth*1.5);
+            legShapes[i] = new SceneNode(legs[i]).setTranslation(legWidth/2, 0, (legHeight/-2)+torsoLegOverlap).setScale(legWidth, legDepth, legHeight-0.15);
+        }
+    }
+    
+    /**
+     * Advances the speed and progress of this robot over the given track.
+     * Only uses the precomputed track profile, so this takes constant time.
+     * @param track The track the robot is racing on.
+     * @param dt    Time passed since the last update.
+     * @param time  The race time after this update.
+     */
+    public void advance(RaceTrack track, double dt, double time) {
+        int index = track.getProfileIndex(this.progress);
+        
+        // The robot can take a corner as long as speed^2 * curvature stays below its cornering ability.
+        double limit = this.maxSpeed;
+        double curvature = track.getCurvature(index);
+        if(curvature > 0)
+            limit = Math.max(Math.min(limit, Math.sqrt(this.cornering/curvature)), this.maxSpeed*minCornerFraction);
+        
+        // Running uphill costs acceleration, running downhill gives some.
+        double slope = track.getSlope(index);
+        double accel = this.acceleration - gravity*slope/Math.sqrt(1+slope*slope);
+        
+        // Accelerate towards the limit, or brake when above it.
+        if(this.speed < limit)
+            this.speed = Math.min(limit, this.speed + accel*dt);
+        else
+            this.speed = Math.max(limit, this.speed - 2*this.acceleration*dt);
+        this.speed = Math.max(this.speed, 0);
+        
+        double next = this.progress + this.speed*dt/track.getDistancePerProgress(index);
+        if(next >= 1) {
+            if(track.isClosed()) {
+                // Start the next lap.
+                next -= 1;
+                this.laps++;
+            } else {
+                // Avoiding looping the robot around the track. (doesn't look real otherwise on the L and C track)
+                next = 1;
+            }
+        }
+        this.progress = (float)next;
+        
+        // Reaching the end of an open track counts as finishing a lap, at the
+        // start of the next one. The robot then stands still and its splits are complete.
+        if(this.progress >= 1) {
+            if(this.splits.getLapCount() <= this.laps)
+                this.splits.update(time, this.laps + 1, 0);
+        } else {
+            this.splits.update(time, this.laps, this.progress);
+        }
+    }
 
-        // code goes here ...
+    /**
+     * Returns how far this robot has come in the race, used to rank the robots.
+     */
+    public double raceDistance() {
+        return this.laps + this.progress;
+    }
+    
+    /**
+     * Returns the name of this robot, after the material it is built from.
+     */
+    public String getName() {
+        return this.material.name();
+    }
+    
+    /**
+     * Returns the phase of the limb animation.
+     * Computed during the simulation so drawing only reads the phase.
+     * @param tAnim Time since the start of the animation
+     */
+    public double phaseAt(float tAnim) {
+        return tAnim*2*this.animationSpeed;
+    }
+    
+    /**
+     * Places the robot where it is drawn, from a state published by the simulation.
+     * Only called by the renderer, the simulation never reads the pose.
+     * The position and direction are updated in place.
+     * @param state The state to draw.
+     * @param i     The index of this robot in the state.
+     */
+    public void setPose(FrameState state, int i) {
+        this.position.x = state.positions[3*i];
+        this.position.y = state.positions[3*i+1];
+        this.position.z = state.positions[3*i+2];
+        this.direction.x = state.directions[3*i];
+        this.direction.y = state.directions[3*i+1];
+        this.direction.z = state.directions[3*i+2];
+        this.animationPhase = state.phases[i];
+        this.poseProgress = state.progress[i];
     }
 
     /**
@@ -104,22 +278,20 @@ class Robot {
      * @param glut  The glut object
      * @param stickFigure   Whether a stick figure should be drawn instead of an real robot.
      * @param tAnim Time since the start of the animation
+     * @param slices Number of slices (and stacks) of the round parts.
      */
-    public void draw(GL2 gl, GLU glu, GLUT glut, boolean stickFigure, float tAnim) {
+    public void draw(GL2 gl, GLU glu, GLUT glut, boolean stickFigure, float tAnim, int slices) {
         this.gl = gl;
         this.glu = glu;
         this.glut = glut;
+        this.slices = slices;
         
         // Use the materials given to the robot to draw parts.
-        gl.glMaterialfv(GL_FRONT, GL_DIFFUSE, this.material.diffuse, 0);
-        gl.glMaterialfv(GL_FRONT, GL_SPECULAR, this.material.specular, 0);
-        gl.glMaterialf(GL_FRONT, GL_SHININESS, this.material.shininess);
+        Lighting.setMaterial(gl, this.material);
         
         
-        gl.glPushMatrix();
-        
         // Translate the robot to the correct coordinates.
-        gl.glTranslated(this.position.x(), this.position.y(), this.position.z());
+        root.setTranslation(this.position.x(), this.position.y(), this.position.z());
         
         // cos alpha = (A.B)/(|A|*|B|)
         // A = Vector.Y, B=this.direction.normalized()
@@ -138,8 +310,17 @@ class Robot {
             angle = angle*-1;
         
         // Apply the rotation
-        gl.glRotated(angle, 0f, 0f, 1f);
+        root.setRotation(angle, 0f, 0f, 1f);
+        
+        // Turn the arms over the course of the animation over 45 degrees, shifted 10 degrees,
+        // and the legs over 50 degrees, shifted 25 degrees.
+        arms[LimbOrientation.LEFT.ordinal()].setRotation((Math.abs(Math.cos(this.animationPhase))*45)-10, 1, 0, 0);
+        arms[LimbOrientation.RIGHT.ordinal()].setRotation((Math.abs(Math.cos(this.animationPhase+(Math.PI/2)))*45)-10, 1, 0, 0);
+        legs[LimbOrientation.LEFT.ordinal()].setRotation((Math.abs(Math.cos(this.animationPhase+(Math.PI/2)))*50)-25, 1, 0, 0);
+        legs[LimbOrientation.RIGHT.ordinal()].setRotation((Math.abs(Math.cos(this.animationPhase))*50)-25, 1, 0, 0);
         
+        // Only the parts that moved since the last draw get new world matrices.
+        root.update();
         
         // Draw torso
         drawTorso(stickFigure);
@@ -158,8 +339,6 @@ class Robot {
         
         // Draw right leg
         drawLeg(Robot.LimbOrientation.RIGHT, stickFigure,  tAnim);
-                
-        gl.glPopMatrix();
     }
     
     /**
@@ -168,16 +347,10 @@ class Robot {
      * @param tAnim Time since the animation started.
      */
     private void drawHead(boolean stickFigure, float tAnim) {
-        gl.glPushMatrix();
-        // Done in 2 translations incase we want headanimations lateron
-        gl.glTranslated(this.headOffset.x(), this.headOffset.y(), this.headOffset.z());
+        // Done in 2 nodes incase we want headanimations lateron
         if(stickFigure) {
-            gl.glPushMatrix();
-                // Translate head to correct position.
-                gl.glTranslated(0, 0, headHeight);
-                // Scale head according to given dimensions.
-                gl.glScaled(headWidth, headDepth, headHeight);
-                glut.glutWireCube(2f);
+            headWire.push(gl);
+                Mesh.wireCube().draw(gl);
             gl.glPopMatrix();
         } else {
             //enable 2D textures and set the parameters
@@ -189,12 +362,9 @@ class Robot {
             gl.glTexParameteri(gl.GL_TEXTURE_2D, gl.GL_TEXTURE_MAG_FILTER, gl.GL_LINEAR);
             int m = getMaterial(); //an integer representing the material of the robot
             Base.head.bind(gl);
+            Lighting.setTextureMode(gl, Lighting.texture2D);
             // actual drawing
-            gl.glPushMatrix();
-                // Translate head to correct position.
-                gl.glTranslated(0, 0, headHeight);
-                // Scale head according to given dimensions.
-                gl.glScaled(headWidth, headDepth, headHeight);
+            headShape.push(gl);
                 
                 // Since everything is scaled and translated we can assume the head is a cube around the origin.
                 
@@ -264,8 +434,8 @@ class Robot {
                 gl.glEnd();
             gl.glPopMatrix();
         }
-        gl.glPopMatrix();
         gl.glDisable(gl.GL_TEXTURE_2D);
+        Lighting.setTextureMode(gl, Lighting.noTexture);
     }
     
     /**
@@ -273,8 +443,8 @@ class Robot {
      * @param stickFigure   Whether a stick figure should be drawn instead of an real robot.
      */
     private void drawTorso(boolean stickFigure) {
-        gl.glPushMatrix();
         if(stickFigure){
+            root.push(gl);
             // Some straight line representing torso height.
             gl.glColor3d(0, 0, 0);
             gl.glBegin(GL_LINES);
@@ -293,6 +463,7 @@ class Robot {
             gl.glVertex3d(this.legOffset.x(), 0f, this.legOffset.z()+(torsoLegOverlap/2));
             gl.glVertex3d(this.legOffset.x()*-1, 0f, this.legOffset.z()+(torsoLegOverlap/2));
             gl.glEnd();
+            gl.glPopMatrix();
         } else {
             gl.glEnable(gl.GL_TEXTURE_2D);
             gl.glTexEnvi(gl.GL_TEXTURE_ENV, gl.GL_TEXTURE_ENV_MODE, gl.GL_REPLACE);
@@ -302,11 +473,8 @@ class Robot {
             gl.glTexParameteri(gl.GL_TEXTURE_2D, gl.GL_TEXTURE_MAG_FILTER, gl.GL_LINEAR);
             int m = getMaterial(); //an integer representing the material of the robot
             Base.torso.bind(gl);
-            gl.glPushMatrix();
-                // Translate torso to correct position.
-                gl.glTranslated(0, 0, headOffset.z()-(torsoHeight/2));
-                // Scale torso according to given dimensions.
-                gl.glScaled(torsoWidth, torsoDepth, torsoHeight);
+            Lighting.setTextureMode(gl, Lighting.texture2D);
+            torso.push(gl);
                 
                 // top
                 gl.glBegin(gl.GL_QUADS);
@@ -374,8 +542,8 @@ class Robot {
                 gl.glEnd();
             gl.glPopMatrix();
         }
-        gl.glPopMatrix();
         gl.glDisable(gl.GL_TEXTURE_2D);
+        Lighting.setTextureMode(gl, Lighting.noTexture);
     }
     
     
@@ -386,43 +554,29 @@ class Robot {
      * @param tAnim         Time since the animation started.
      */
     private void drawArm(Robot.LimbOrientation orientation, boolean stickFigure, float tAnim) {
-        gl.glPushMatrix();
-        
-        // Mirror the arm so we only need code for drawing one arm.
-        if(orientation == Robot.LimbOrientation.LEFT)
-            gl.glScaled(-1, 1, 1);
-        
-        // Translate the arm to the correct position
-        gl.glTranslated(this.armOffset.x(), this.armOffset.y(), this.armOffset.z());
-        
-        // Rotate the arm over the course of the animation over 45 degrees, shifted 10 degrees.
-        if(orientation == Robot.LimbOrientation.LEFT)
-            gl.glRotated((Math.abs(Math.cos(tAnim*2*this.animationSpeed))*45)-10, 1, 0, 0);
-        else
-            gl.glRotated((Math.abs(Math.cos(tAnim*2*this.animationSpeed+(Math.PI/2)))*45)-10, 1, 0, 0);
+        // The arm is mirrored, placed and turned by its node, so we only need code for drawing one arm.
+        int i = orientation.ordinal();
         
         if(stickFigure) {
             // Drawing an stick representation of the arm.
-            
             // Sphere at the attachmentpoint.
-            glut.glutSolidSphere(0.1, 15, 15);
+            armSpheres[i].push(gl);
+                Mesh.sphere(slices).draw(gl);
+            gl.glPopMatrix();
             
-            // Line representing the arm.
-            gl.glBegin(GL_LINES);
-            gl.glVertex3d(0f, 0f, 0f);
-            gl.glVertex3d(0f, 0f, this.armHeight*-1);
-            gl.glEnd();
+            arms[i].push(gl);
+                // Line representing the arm.
+                gl.glBegin(GL_LINES);
+                gl.glVertex3d(0f, 0f, 0f);
+                gl.glVertex3d(0f, 0f, this.armHeight*-1);
+                gl.glEnd();
+            gl.glPopMatrix();
         } else {
             // Drawing the actual robot
-            gl.glPushMatrix();
-                // Translate arm to correct position.
-                gl.glTranslated(armWidth/2, 0, armHeight/-2);
-                // Scale arm according to given dimensions.
-                gl.glScaled(armWidth, armDepth, armHeight);
-                glut.glutSolidCube(1);
+            armShapes[i].push(gl);
+                Mesh.cube().draw(gl);
             gl.glPopMatrix();
         }
-        gl.glPopMatrix();
     }
     
     
@@ -433,52 +587,36 @@ class Robot {
      * @param tAnim         Time since the animation started.
      */
     private void drawLeg(Robot.LimbOrientation orientation, boolean stickFigure, float tAnim) {
-        gl.glPushMatrix();
-        
-        // Mirror the arm so we only need code for drawing one arm.
-        if(orientation == Robot.LimbOrientation.LEFT)
-            gl.glScaled(-1, 1, 1);
-        
-        gl.glTranslated(this.legOffset.x(), this.legOffset.y(), this.legOffset.z());
-                
-        // Rotate the arm over the course of the animation over 50 degrees, shifted 25 degrees.
-        if(orientation == Robot.LimbOrientation.LEFT)
-            gl.glRotated((Math.abs(Math.cos(tAnim*2*this.animationSpeed+(Math.PI/2)))*50)-25, 1, 0, 0);
-        else
-            gl.glRotated((Math.abs(Math.cos(tAnim*2*this.animationSpeed))*50)-25, 1, 0, 0);
+        // The leg is mirrored, placed and turned by its node, so we only need code for drawing one leg.
+        int i = orientation.ordinal();
         
         if(stickFigure) {
-            gl.glPushMatrix();
-                gl.glTranslated(0,0,torsoLegOverlap/2);
+            // Sphere at the attachmentpoint.
+            legSticks[i].push(gl);
+                Mesh.sphere(slices).draw(gl);
+            gl.glPopMatrix();
             
-                // Sphere at the attachmentpoint.
-                glut.glutSolidSphere(0.1, 15, 15);
-
-                // Line representing the arm.
+            legs[i].push(gl);
+                // Line representing the leg.
                 gl.glBegin(GL_LINES);
-                gl.glVertex3d(0f, 0f, 0f);
-                gl.glVertex3d(0f, 0f, this.legHeight*-1);
+                gl.glVertex3d(0f, 0f, torsoLegOverlap/2);
+                gl.glVertex3d(0f, 0f, torsoLegOverlap/2-this.legHeight);
                 gl.glEnd();
             gl.glPopMatrix();
         } else {
             // Drawing a rotated cylinder to make leg-attachment to body seem less weird
-            gl.glPushMatrix();
-                // rotate the cylinder
-                gl.glRotated(90, 0, 1, 0);
-                glut.glutSolidCylinder(torsoLegOverlap*0.9, legWidth*1.1, 15, 15);
-                glut.glutSolidCylinder(torsoLegOverlap*0.2, legWidth*1.5, 5, 5);
+            legJoints[i].push(gl);
+                Mesh.cylinder(slices).draw(gl);
+            gl.glPopMatrix();
+            legPins[i].push(gl);
+                Mesh.cylinder(5).draw(gl);
             gl.glPopMatrix();
             
             // Drawing the leg
-            gl.glPushMatrix();
-                // Translate leg to correct position.
-                gl.glTranslated(legWidth/2, 0, (legHeight/-2)+torsoLegOverlap);
-                // Scale leg according to given dimensions.
-                gl.glScaled(legWidth, legDepth, legHeight-0.15);
-                glut.glutSolidCube(1);
+            legShapes[i].push(gl);
+                Mesh.cube().draw(gl);
             gl.glPopMatrix();
         }
-        gl.glPopMatrix();
     }
     
     int getMaterial() {
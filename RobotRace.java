@@ -1,17 +1,14 @@
 package robotrace;
 
-import com.jogamp.opengl.math.Quaternion;
 import static java.lang.Math.*;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
 import static javax.media.opengl.GL.*;
 import static javax.media.opengl.GL2.*;
-import static javax.media.opengl.fixedfunc.GLLightingFunc.GL_DIFFUSE;
-import static javax.media.opengl.fixedfunc.GLLightingFunc.GL_LIGHT0;
-import static javax.media.opengl.fixedfunc.GLLightingFunc.GL_LIGHTING;
-import static javax.media.opengl.fixedfunc.GLLightingFunc.GL_POSITION;
 import static javax.media.opengl.fixedfunc.GLLightingFunc.GL_SMOOTH;
-import static javax.media.opengl.fixedfunc.GLLightingFunc.GL_SPECULAR;
 
 /**
  * Handles all of the RobotRace graphics functionality,
@@ -66,13 +63,51 @@ import static javax.media.opengl.fixedfunc.GLLightingFunc.GL_SPECULAR;
  * above) or add additional textured primitives
  * to the GLUT object.
  */
-public class RobotRace extends Base {
+public class RobotRace extends Base implements ShadowMap.Casters {
     
     /** Array of the four robots. */
     private final Robot[] robots;
     
-    /** Instance of the camera. */
-    private final Camera camera;
+    /** The race, simulated apart from drawing. Null when the race comes from a server. */
+    private final Simulation simulation;
+    
+    /** Receives the race from a server, null when the race is simulated here. */
+    private final RaceClient client;
+    
+    /** The simulation state drawn in the current frame. */
+    private FrameState state;
+    
+    /** Number of robots shown on the leaderboard. */
+    private final static int leaderboardSize = 4;
+    
+    /** Paces the frames, chosen with -Drobotrace.pacing=vsync|uncapped|<fps>. Headless frames are not paced. */
+    private final FramePacer pacer = new FramePacer(System.getProperty("robotrace.headless") != null
+            ? "uncapped" : System.getProperty("robotrace.pacing", "vsync"));
+    
+    /** Lowers the resolution of the scene when the GPU falls behind, null when off. */
+    private final DynamicResolution resolution = DynamicResolution.fromProperties();
+    
+    /** Size the scene is drawn at in the current frame, the window size unless the resolution is lowered. */
+    private int renderWidth, renderHeight;
+    
+    /** The views on the race, each with its own camera. */
+    private final Viewport[] viewports;
+    
+    /** Robots further away from the camera than this are drawn with less detail. */
+    final static double lodDistance = 15;
+    
+    /** Number of slices of round shapes close to and far from the camera. */
+    final static int highDetail = 15;
+    final static int lowDetail = 6;
+    
+    /** Height of a robot, used for its bounding sphere. */
+    private final static double robotHeight = 2.5;
+    
+    /** Horizontal distance from the center of a robot to the end of its arms and legs. */
+    private final static double robotRadius = 0.6;
+    
+    /** Camera rail along each race track. */
+    private final CameraRail[] cameraRails;
     
     /** Instance of the race track. */
     private final RaceTrack[] raceTracks;
@@ -80,8 +115,28 @@ public class RobotRace extends Base {
     /** Instance of the terrain. */
     private final Terrain terrain;
     
-    Robot focus;
-    boolean update;
+    /** Transparent geometry of the view being drawn. */
+    private final TransparentPass transparentPass = new TransparentPass();
+    
+    /** Shadows of the sun. */
+    private final ShadowMap shadowMap = new ShadowMap();
+    
+    /** The track the static shadow casters and the tree occlusion were computed for. */
+    private int shadowTrack = -1;
+    
+    /** Whether the draw counts are shown, with -Drobotrace.stats=true. */
+    private final static boolean showStats = Boolean.getBoolean("robotrace.stats");
+    
+    /** Robots and trees drawn, and robots and tree tiles found hidden, over all views of a frame. */
+    private int drawnRobots, drawnTrees, hiddenRobots, hiddenTiles;
+    
+    /** The axis frame and its arrows for the x, y and z axis. */
+    private final SceneNode axisFrame = new SceneNode();
+    private final SceneNode[] axisShafts = new SceneNode[3];
+    private final SceneNode[] axisTips = new SceneNode[3];
+    private final SceneNode axisOrigin = new SceneNode(axisFrame);
+    private final static Material[] axisMaterials = {Material.RED, Material.GREEN, Material.BLUE};
+    
     /**
      * Constructs this robot race by initializing robots,
      * camera, track, and terrain.
@@ -92,37 +147,35 @@ public class RobotRace extends Base {
         robots = new Robot[4];
         
         // Initialize robot 0
-        robots[0] = new Robot(Material.GOLD
-            /* add other parameters that characterize this robot */);
+        robots[0] = new Robot(Material.GOLD, 1.5, 0.5, 0.15);
         
         // Initialize robot 1
-        robots[1] = new Robot(Material.SILVER
-            /* add other parameters that characterize this robot */);
+        robots[1] = new Robot(Material.SILVER, 1.4, 0.6, 0.2);
         
         // Initialize robot 2
-        robots[2] = new Robot(Material.WOOD
-            /* add other parameters that characterize this robot */);
+        robots[2] = new Robot(Material.WOOD, 1.3, 0.8, 0.25);
 
         // Initialize robot 3
-        robots[3] = new Robot(Material.ORANGE
-            /* add other parameters that characterize this robot */);
+        robots[3] = new Robot(Material.ORANGE, 1.6, 0.4, 0.12);
+        
+        // Spread the robots over the lanes.
+        for(int i = 0; i < robots.length; i++)
+            robots[i].lane = i % RaceTrack.laneCount;
         
-        // Initialize the camera
-        camera = new Camera();
+        // Initialize the viewports, chosen with -Drobotrace.views=single|pip|split
+        viewports = Viewport.layout(System.getProperty("robotrace.views", "single"));
         
         // Initialize the terrain
         terrain = new Terrain();
         
+        // Initialize the axis frame
+        buildAxisFrame();
+        
         // Initialize the race tracks
         raceTracks = new RaceTrack[5];
         
         // Test track
-        raceTracks[0] = new RaceTrack(null, new Vector[] {
-            new Vector(0,0,terrain.heightAt(0, 0)-0.2),
-            new Vector(19,0,terrain.heightAt(19, 0)-0.2),
-            new Vector(-3.5,5.5,terrain.heightAt(-3.5f, 5.5f)-0.2),
-            new Vector(-15,15,terrain.heightAt(-15, 15)-0.2)
-        });
+        raceTracks[0] = new RaceTrack();
         
         // O-track
         raceTracks[1] = new RaceTrack(new Vector[] {
@@ -149,11 +202,6 @@ public class RobotRace extends Base {
             new Vector(10, 5, 1),
             new Vector(5, 10, 1),
             new Vector(0, 10, 1)
-        }, new Vector[] {
-            new Vector(0,0,terrain.heightAt(0, 0)-0.2),
-            new Vector(19,0,terrain.heightAt(19, 0)-0.2),
-            new Vector(-3.5,5.5,terrain.heightAt(-3.5f, 5.5f)-0.2),
-            new Vector(-15,15,terrain.heightAt(-15, 15)-0.2)
         });
         
         // L-track
@@ -175,11 +223,6 @@ public class RobotRace extends Base {
             new Vector(-5, -15, 1),
             new Vector(5, -15, 1),
             new Vector(15, -15, 1)
-        }, new Vector[] {
-            new Vector(0,0,terrain.heightAt(0, 0)-0.2),
-            new Vector(19,0,terrain.heightAt(19, 0)-0.2),
-            new Vector(-3.5,5.5,terrain.heightAt(-3.5f, 5.5f)-0.2),
-            new Vector(-12,18,terrain.heightAt(-12, 18)-0.2)
         });
         
         // C-track
@@ -201,11 +244,6 @@ public class RobotRace extends Base {
             new Vector(10, 5, 1),
             new Vector(5, 10, 1),
             new Vector(0, 10, 1)
-        }, new Vector[] {
-            new Vector(0,0,terrain.heightAt(0, 0)-0.2),
-            new Vector(19,0,terrain.heightAt(19, 0)-0.2),
-            new Vector(-3.5,5.5,terrain.heightAt(-3.5f, 5.5f)-0.2),
-            new Vector(-12,18,terrain.heightAt(-12, 18)-0.2)
         });
         
         // Custom track
@@ -228,16 +266,36 @@ public class RobotRace extends Base {
             new Vector(10, 5, 1),
             new Vector(10, 10, 1),
             new Vector(10, 15, 1)
-        }, new Vector[] {
-            new Vector(0,0,terrain.heightAt(0, 0)-0.2),
-            new Vector(19,0,terrain.heightAt(19, 0)-0.2),
-            new Vector(-3.5,5.5,terrain.heightAt(-3.5f, 5.5f)-0.2),
-            new Vector(-12,18,terrain.heightAt(-12, 18)-0.2)
         });
         
-        //starting robot to focus on
-         focus = robots[0]; 
-         update = true;
+        // Scatter trees around every track, spaced by -Drobotrace.treeSpacing.
+        double treeSpacing = Double.parseDouble(System.getProperty("robotrace.treeSpacing", "3"));
+        for(int i = 0; i < raceTracks.length; i++)
+            raceTracks[i].setTrees(Scenery.scatter(terrain, raceTracks[i], treeSpacing, i));
+        
+        // Sample a camera rail along every track
+        cameraRails = new CameraRail[raceTracks.length];
+        for(int i = 0; i < raceTracks.length; i++)
+            cameraRails[i] = new CameraRail(raceTracks[i]);
+        
+        // Start the race, with the focus on the first robot, or follow the race of a server.
+        client = RaceClient.fromProperties(robots.length, raceTracks.length);
+        simulation = client == null ? new Simulation(robots, raceTracks) : null;
+        state = client == null ? simulation.frames.latest() : client.latest();
+        
+        // Write the split times on exit when a file is given with -Drobotrace.splits=<file>.
+        final String splitsFile = System.getProperty("robotrace.splits");
+        if(splitsFile != null) {
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                @Override
+                public void run() {
+                    // The split times only stop changing once the simulation has stopped.
+                    if(simulation != null)
+                        simulation.stop();
+                    exportSplits(splitsFile);
+                }
+            });
+        }
     }
     
     /**
@@ -246,8 +304,8 @@ public class RobotRace extends Base {
      */
     @Override
     public void initialize() {
-        // Enable blending.
-        gl.glEnable(GL_BLEND);
+        // Blending is only enabled while drawing transparent geometry.
+        gl.glDisable(GL_BLEND);
         gl.glBlendFunc(GL_SRC_ALPHA, GL_ONE_MINUS_SRC_ALPHA);
                 
         // Enable depth testing.
@@ -267,28 +325,66 @@ public class RobotRace extends Base {
         brick = loadTexture("brick.jpg");
         head = loadTexture("head.jpg");
         torso = loadTexture("torso.jpg");
+        
+        // Synchronize to the display, or not.
+        pacer.initialize(gl);
+        
+        // Compile the shaders that replace the fixed-function lighting.
+        Lighting.initialize(gl);
+        TreeRenderer.initialize(gl);
+        terrain.initialize(gl);
+        shadowMap.initialize(gl);
+    }
+    
+    /**
+     * Called before the OpenGL context is destroyed.
+     * Deletes the recorded geometry of the tracks and the terrain.
+     */
+    public void dispose() {
+        for(RaceTrack track : raceTracks)
+            track.dispose(gl);
+        terrain.dispose(gl);
     }
     
     /**
      * Configures the viewing transform.
+     * Does nothing: the director of the simulation picks the robot to focus on, and the
+     * camera of every viewport is set when that viewport is drawn.
      */
     @Override
     public void setView() {
-        int time = (int) gs.tAnim;
-        if(time%5 == 0 && update) {
-           focus = robotSwitch(focus);
-           update = false;
-           camera.varUpdate(update);
-        }
-        if(time%5 != 0) {
-            update = true;
-            camera.varUpdate(update);
-        }
+    }
+    
+    /**
+     * Moves the camera of a viewport.
+     */
+    private void updateCamera(Viewport view) {
+        // Update the view according to the camera mode and robot of interest.
+        Robot target = robots[view.followLeader ? state.ranking[0] : state.focus];
+        int mode = view.camMode == Viewport.menuMode ? gs.camMode : view.camMode;
+        Camera camera = view.camera;
+        camera.setShot(state.cameraMode);
+        camera.update(gs, mode, target, cameraRails[gs.trackNr]);
+    }
+    
+    /**
+     * Selects the part of the window of a viewport and sets its camera.
+     */
+    private void applyView(Viewport view) {
+        Camera camera = view.camera;
         
-        camera.update(gs, focus);
-        camera.varUpdate(update);
         // Select part of window.
-        gl.glViewport(0, 0, gs.w, gs.h);
+        int x = (int)(view.x*renderWidth);
+        int y = (int)(view.y*renderHeight);
+        int w = Math.max(1, (int)(view.width*renderWidth));
+        int h = Math.max(1, (int)(view.height*renderHeight));
+        gl.glViewport(x, y, w, h);
+        
+        // Clear only this part of the window.
+        gl.glEnable(GL_SCISSOR_TEST);
+        gl.glScissor(x, y, w, h);
+        gl.glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT);
+        gl.glDisable(GL_SCISSOR_TEST);
         
         // Set projection matrix.
         gl.glMatrixMode(GL_PROJECTION);
@@ -302,132 +398,211 @@ public class RobotRace extends Base {
         float fov = (float)Math.toDegrees(viewingCorner);
         
         // Set the perspective.
-        glu.gluPerspective(fov, (float)gs.w / (float)gs.h, 0.1*gs.vDist, 10.0*gs.vDist);
+        glu.gluPerspective(fov, (float)w / (float)h, 0.1*gs.vDist, 10.0*gs.vDist);
         
         // Set camera.
         gl.glMatrixMode(GL_MODELVIEW);
         gl.glLoadIdentity();
-        
-        // Update the view according to the camera mode and robot of interest.
-        // For camera modes 1 to 4, determine which robot to focus on.
         glu.gluLookAt(camera.eye.x(),    camera.eye.y(),    camera.eye.z(),
                       camera.center.x(), camera.center.y(), camera.center.z(),
                       camera.up.x(),     camera.up.y(),     camera.up.z());
+        
+        // Find what this view can see, for culling.
+        view.frustum.update(gl);
     }
     
     /**
      * Draws the entire scene.
+     * The newest state of the simulation is posed once, after which the scene
+     * is drawn for every viewport.
      */
     @Override
     public void drawScene() {
+        // Wait for the start of the frame when the frame rate is capped.
+        pacer.pace();
+        
+        // Let the race catch up with the animation time and draw its newest state.
+        // A client draws the race of the server, on the track of the server.
+        if(client != null) {
+            state = client.latest();
+            gs.trackNr = state.trackNr;
+        } else {
+            simulation.request(gs.tAnim, gs.trackNr);
+            state = simulation.frames.latest();
+        }
+        for(int i = 0; i < robots.length; i++)
+            robots[i].setPose(state, i);
+        
+        // Move the cameras first, the shadows depend on what the views look at.
+        for(Viewport view : viewports)
+            updateCamera(view);
+        
+        // Draw the shadows, the static casters only after switching tracks or moving a cascade.
+        // Another track also has other trees, their visibility starts over.
+        if(gs.trackNr != shadowTrack) {
+            shadowMap.invalidate();
+            for(Viewport view : viewports)
+                view.treeOcclusion.reset();
+            shadowTrack = gs.trackNr;
+        }
+        shadowMap.update(gl, glu, viewports, this);
+        
         // Background color.
         gl.glClearColor(0.529f, 0.8f, 0.92f, 0f);
         
-        // Clear background.
-        gl.glClear(GL_COLOR_BUFFER_BIT);
+        // Draw the scene once for every viewport, offscreen when the resolution is dynamic.
+        renderWidth = gs.w;
+        renderHeight = gs.h;
+        if(resolution != null) {
+            resolution.begin(gl, gs.w, gs.h);
+            renderWidth = resolution.getWidth();
+            renderHeight = resolution.getHeight();
+        }
+        drawnRobots = drawnTrees = hiddenRobots = hiddenTiles = 0;
+        for(Viewport view : viewports) {
+            applyView(view);
+            drawWorld(view);
+        }
+        if(resolution != null)
+            resolution.end(gl);
+        
+        // The text is placed relative to the whole window.
+        gl.glViewport(0, 0, gs.w, gs.h);
+        
+        // Format of time being displayed
+        SimpleDateFormat sdf = new SimpleDateFormat("HH:mm:ss");
+        
+        // Get the current time.
+        Calendar cal = Calendar.getInstance();
+        String time = sdf.format(cal.getTime());
+        
+        // The text is not lit, set the font color directly.
+        Lighting.end(gl);
+        gl.glColor3f(0f, 0f, 0f);
+        
+        // Draw the text
+        this.drawText(time, 10, 10);
+        
+        // Draw the leaderboard in the top left corner.
+        int shown = Math.min(leaderboardSize, robots.length);
+        for(int i = 0; i < shown; i++) {
+            int r = state.ranking[i];
+            float best = state.bestLaps[r];
+            this.drawText(String.format("%d. %-6s lap %d %3.0f%%  best %s", i+1, robots[r].getName(), state.laps[r]+1,
+                    state.progress[r]*100, Float.isNaN(best) ? "-" : String.format("%.1fs", best)), 10, 580-i*18);
+        }
         
-        // Clear depth buffer.
-        gl.glClear(GL_DEPTH_BUFFER_BIT);
+        // Draw the frame times, the draw counts and the handoff latency of the simulation above the time.
+        if(showStats) {
+            this.drawText(String.format("%s  frame %.2f ms  jitter %.2f ms  max %.2f ms", pacer.getMode(),
+                    pacer.getAverage(), pacer.getJitter(), pacer.getMaxFrame()), 10, 82);
+            if(resolution != null)
+                this.drawText(String.format("resolution %.0f%% (%dx%d)  gpu %.2f ms  target %.2f ms",
+                        resolution.getScale()*100, renderWidth, renderHeight,
+                        resolution.getGpuTime(), resolution.getTarget()), 10, 100);
+            this.drawText(String.format("robots %d (%d hidden)  trees %d (%d tiles hidden)",
+                    drawnRobots, hiddenRobots, drawnTrees, hiddenTiles), 10, 28);
+            if(client != null) {
+                this.drawText(String.format("client %.1f kB/s  %d snapshots/s  latency %d ms  %d frames held  %d rejected",
+                        client.getBandwidth()/1e3, client.getSnapshots(), client.getLatency(), client.getHeld(),
+                        client.getRejected()), 10, 46);
+                client.resetHeld();
+            } else {
+                this.drawText(String.format("simulation %.2f ms avg  %.2f ms max  %d frames repeated",
+                        simulation.frames.getAverageLatency(), simulation.frames.getMaxLatency(),
+                        simulation.frames.getRepeated()), 10, 46);
+                simulation.frames.resetLatency();
+                if(simulation.server != null)
+                    this.drawText(String.format("server %d clients  %.1f kB/s  round trip %.1f ms",
+                            simulation.server.getClients(), simulation.server.getBandwidth()/1e3,
+                            simulation.server.getRoundTrip()), 10, 64);
+            }
+        }
+    }
+    
+    /**
+     * Draws the lights, robots, track and terrain as seen from a viewport.
+     */
+    private void drawWorld(Viewport view) {
+        Camera camera = view.camera;
         
         // Set color to black.
         gl.glColor3f(0f, 0f, 0f);
         
         gl.glPolygonMode(GL_FRONT_AND_BACK, GL_FILL);
         
-        /**
-         * Light sources
-         */
         // Use smooth shading
-        gl.glShadeModel(GL_SMOOTH);  
-        // Enable lighting
-        gl.glEnable(GL_LIGHTING);    
-        // Enable light source #0 
-        gl.glEnable(GL_LIGHT0);
-        
-        // Give light source #0 a white color.
-        float[] whiteColor = {1.0f, 1.0f, 1.0f, 1.0f, 0f};
-        gl.glLightfv(GL_LIGHT0, GL_DIFFUSE, whiteColor, 0); 
-        
-        // 10 degrees expressed as radians.
-        float radRot = 10*(float)Math.PI/180;
-
-        // Vector from eye center to eye
-        Vector eyeRepos = camera.eye.subtract(camera.center);
-
-        // Use the cross-product of camera position and upvector to calculate the horizontal rotation axis.
-        Vector horizontalAxis = eyeRepos.cross(camera.up).normalized();
-
-        // Use the cross-product of camera position and the horizontal rotation axis to calculate the vertical rotation axis.
-        Vector verticalAxis = horizontalAxis.cross(eyeRepos).normalized();
-
-        // Create a quaternion and rotate up
-        Quaternion q = new Quaternion();
-        q.rotateByAngleNormalAxis(radRot, (float)horizontalAxis.x(), (float)horizontalAxis.y(), (float)horizontalAxis.z());
-
-        // Create a quaternion and rotate left
-        Quaternion q2 = new Quaternion();
-        q.rotateByAngleNormalAxis(-radRot, (float)verticalAxis.x(), (float)verticalAxis.y(), (float)verticalAxis.z());
-
-        // Combine both rotations into quaternion "q"
-        q.mult(q2);
-
-        // Create output float for the quaternion
-        float[] vecOut = {0f,0f,0f, 0f};
-
-        // Starting point of the light
-        float[] vecIn = {(float)eyeRepos.x(), (float)eyeRepos.y(), (float)eyeRepos.z()};
-
-        // Perform the rotation on the vector
-        vecOut = q.rotateVector(vecOut, 0, vecIn, 0);
-
-        // position the light
-        gl.glLightfv(GL_LIGHT0, GL_POSITION, vecOut, 0);
+        gl.glShadeModel(GL_SMOOTH);
+        
+        // Place the light for this view and light everything per pixel.
+        Lighting.begin(gl, camera, shadowMap);
         
         // Draw the axis frame.
         if (gs.showAxes)
             drawAxisFrame();
         
-        // loop through all robots to draw them.
+        // Find which robots and trees were hidden at their last test.
+        double near = 0.1*gs.vDist;
+        view.robotOcclusion.begin(gl, camera.eye, near);
+        view.treeOcclusion.begin(gl, camera.eye, near);
+        
+        // Draw the terrain and the race track first, they hide most of the rest.
+        terrain.draw(gl, glu, glut);
+        drawnTrees += raceTracks[gs.trackNr].draw(gl, glu, glut, view.frustum, camera.eye, view.treeOcclusion);
+        
+        // loop through all robots to draw the ones this view can see.
         for(int i = 0; i < robots.length; i++)
         {
-            // The stepsize of the robot
-            double incr = 0.0005*Math.random();
+            Vector position = robots[i].position;
+            if(!view.frustum.containsSphere(position.x(), position.y(), position.z()+robotHeight/2, robotHeight))
+                continue;
+            if(!view.robotOcclusion.isVisible(i))
+                continue;
             
-            // Avoiding looping the robot around the track. (doesn't look real otherwise on the L and C track)
-            if(robots[i].progress + incr <= 1)
-                robots[i].progress += incr;
-            else
-                robots[i].progress = 1;
-            
-            // setup the location and direction of the robot
-            robots[i].position = raceTracks[gs.trackNr].getLanePoint(i, robots[i].progress);
-            robots[i].direction = raceTracks[gs.trackNr].getLaneTangent(i, robots[i].progress).normalized();
+            // Distant robots are drawn with less detail.
+            double distance = position.subtract(camera.eye).length();
+            int slices = distance > lodDistance ? lowDetail : highDetail;
             
             // draw the robot
-            robots[i].draw(gl, glu, glut, gs.showStick, gs.tAnim);
+            robots[i].draw(gl, glu, glut, gs.showStick, gs.tAnim, slices);
+            drawnRobots++;
         }
         
-        // Draw the race track.
-        raceTracks[gs.trackNr].draw(gl, glu, glut);
-        
-        // Draw the terrain.
-        terrain.draw(gl, glu, glut);
-        
-        // Format of time being displayed
-        SimpleDateFormat sdf = new SimpleDateFormat("HH:mm:ss");
-        
-        // Get the current time.
-        Calendar cal = Calendar.getInstance();
-        String time = sdf.format(cal.getTime());
-        
-        // Set the font color
-        float[] black = {0f, 0.0f, 0f, 1f};
-        gl.glMaterialfv(GL_FRONT, GL_DIFFUSE, black, 0);
-        gl.glMaterialfv(GL_FRONT, GL_SPECULAR, black, 0);
-        gl.glColor4d(1, 1, 1, 1);
+        // Test the bounding boxes against everything drawn, the results are used from the next frame on.
+        if(OcclusionCuller.enabled) {
+            OcclusionCuller.beginTests(gl);
+            for(int i = 0; i < robots.length; i++) {
+                Vector position = robots[i].position;
+                if(view.frustum.containsSphere(position.x(), position.y(), position.z()+robotHeight/2, robotHeight))
+                    view.robotOcclusion.test(gl, i, position.x()-robotRadius, position.y()-robotRadius, position.z(),
+                            position.x()+robotRadius, position.y()+robotRadius, position.z()+robotHeight);
+            }
+            raceTracks[gs.trackNr].testOcclusion(gl, view.treeOcclusion);
+            OcclusionCuller.endTests(gl);
+        }
+        hiddenRobots += view.robotOcclusion.getHidden();
+        hiddenTiles += view.treeOcclusion.getHidden();
         
-        // Draw the text
-        this.drawText(time, 10, 10);
+        // Draw the water and other transparent geometry over the opaque scene, far to near.
+        transparentPass.add(terrain, camera.eye);
+        transparentPass.draw(gl);
+    }
+    
+    /**
+     * Draws the shadow casters: the robots, or the track, trees and terrain.
+     */
+    @Override
+    public void drawShadowCasters(Frustum frustum, Vector center, boolean dynamic) {
+        if(dynamic) {
+            for(int i = 0; i < robots.length; i++) {
+                Vector position = robots[i].position;
+                if(frustum.containsSphere(position.x(), position.y(), position.z()+robotHeight/2, robotHeight))
+                    robots[i].draw(gl, glu, glut, gs.showStick, gs.tAnim, lowDetail);
+            }
+        } else {
+            raceTracks[gs.trackNr].draw(gl, glu, glut, frustum, center, null);
+            terrain.draw(gl, glu, glut);
+        }
     }
     
     /**
@@ -435,93 +610,85 @@ public class RobotRace extends Base {
      * and origin (yellow).
      */
     public void drawAxisFrame() {
-        // Red arrow for X-Axis
-        float[] red = {1f, 0f, 0f, 1f};
-        gl.glMaterialfv(GL_FRONT, GL_DIFFUSE, red, 0);
-        gl.glMaterialfv(GL_FRONT, GL_SPECULAR, red, 0);
-        // Cube part
-        gl.glPushMatrix();
-            gl.glTranslatef(0.5f, 0f, 0f);
-            gl.glScalef(0.85f, 0.05f, 0.05f);
-            glut.glutSolidCube(1f);
-        gl.glPopMatrix();
-        // Cone Part
-        gl.glPushMatrix();
-            gl.glRotatef(90f, 0f, 1f, 0f);
-            gl.glTranslatef(0f, 0f, 0.9f);
-            glut.glutSolidCone(0.08f, 0.1f, 100, 100);
-        gl.glPopMatrix();
-        
+        for(int axis = 0; axis < 3; axis++) {
+            Lighting.setMaterial(gl, axisMaterials[axis]);
+            // Cube part
+            axisShafts[axis].push(gl);
+                Mesh.cube().draw(gl);
+            gl.glPopMatrix();
+            // Cone Part
+            axisTips[axis].push(gl);
+                Mesh.cone(100).draw(gl);
+            gl.glPopMatrix();
+        }
         
-        // Green arrow for Y-axis
-        float[] green = {0f, 1f, 0f, 1f};
-        gl.glMaterialfv(GL_FRONT, GL_DIFFUSE, green, 0);
-        gl.glMaterialfv(GL_FRONT, GL_SPECULAR, green, 0);
-        // Cube part
-        gl.glPushMatrix();
-            gl.glTranslatef(0f, 0.5f, 0f);
-            gl.glScalef(0.08f, 0.85f, 0.05f);
-            glut.glutSolidCube(1f);
-        gl.glPopMatrix();
-        // Cone Part
-        gl.glPushMatrix();
-            gl.glRotatef(90f, -1f, 0f, 0f);
-            gl.glTranslatef(0f, 0f, 0.9f);
-            glut.glutSolidCone(0.08f, 0.1f, 100, 100);
+        // Yellow Sphere at origin
+        Lighting.setMaterial(gl, Material.YELLOW);
+        axisOrigin.push(gl);
+            Mesh.sphere(100).draw(gl);
         gl.glPopMatrix();
+    }
+    
+    /**
+     * Builds the arrows of the axis frame. They never move, so their
+     * world matrices are computed once.
+     */
+    private void buildAxisFrame() {
+        // Red arrow for X-Axis, the cone is turned from z to x.
+        axisShafts[0] = new SceneNode(axisFrame).setTranslation(0.5, 0, 0).setScale(0.85, 0.05, 0.05);
+        axisTips[0] = new SceneNode(axisFrame).setTranslation(0.9, 0, 0).setRotation(90, 0, 1, 0).setScale(0.08, 0.08, 0.1);
+        
+        // Green arrow for Y-axis, the cone is turned from z to y.
+        axisShafts[1] = new SceneNode(axisFrame).setTranslation(0, 0.5, 0).setScale(0.08, 0.85, 0.05);
+        axisTips[1] = new SceneNode(axisFrame).setTranslation(0, 0.9, 0).setRotation(90, -1, 0, 0).setScale(0.08, 0.08, 0.1);
         
         // Blue arrow for Z-axis
-        float[] blue = {0f, 0f, 1f, 1f};
-        gl.glMaterialfv(GL_FRONT, GL_DIFFUSE, blue, 0);
-        gl.glMaterialfv(GL_FRONT, GL_SPECULAR, blue, 0);
-        // Cube part
-        gl.glPushMatrix();
-            gl.glTranslatef(0f, 0f, 0.5f);
-            gl.glScalef(0.05f, 0.05f, 0.85f);
-            glut.glutSolidCube(1f);
-        gl.glPopMatrix();
-        // Cone Part
-        gl.glPushMatrix();
-            gl.glTranslatef(0f, 0f, 0.9f);
-            glut.glutSolidCone(0.05f, 0.1f, 100, 100);
-        gl.glPopMatrix();
+        axisShafts[2] = new SceneNode(axisFrame).setTranslation(0, 0, 0.5).setScale(0.05, 0.05, 0.85);
+        axisTips[2] = new SceneNode(axisFrame).setTranslation(0, 0, 0.9).setScale(0.05, 0.05, 0.1);
         
-        // Yellow Sphere at origin
-        float[] yellow = {1f, 1f, 0f, 1f};
-        gl.glMaterialfv(GL_FRONT, GL_DIFFUSE, yellow, 0);
-        gl.glMaterialfv(GL_FRONT, GL_SPECULAR, yellow, 0);
-        glut.glutSolidSphere(0.1f, 100, 100);
+        // Yellow sphere at the origin.
+        axisOrigin.setScale(0.1, 0.1, 0.1);
+        
+        axisFrame.update();
     }
  
     /**
-     * Picks a new robot to focus on, depending on the robots positions and last focus
-     * @param current the current robot being focused on
-     * @return  the new robot to be focused on
+     * Writes the split times of all robots to a comma separated file.
+     * @param file The file to write to.
      */
-    private Robot robotSwitch(Robot current) {
-        Robot result;
-        if(robots[0] != current && robots[0].progress >= robots[1].progress && robots[0].progress >= robots[2].progress && 
-                robots[0].progress >= robots[3].progress) {
-            result = robots[0];
-        }
-        else if(robots[1] != current && robots[1].progress >= robots[2].progress &&  robots[1].progress >= robots[3].progress) {
-            result = robots[1];
-        }
-        else if(robots[2] != current && robots[2].progress >= robots[3].progress) {
-            result = robots[2];
+    private void exportSplits(String file) {
+        try (Writer out = new FileWriter(file)) {
+            out.write("robot,lap,time");
+            for(int s = 1; s <= SplitTimes.sectors; s++)
+                out.write(",sector" + s);
+            out.write('\n');
+            for(Robot robot : robots)
+                robot.splits.writeCsv(robot.getName(), out);
+        } catch (IOException e) {
+            System.err.println("Could not write split times to " + file + ": " + e.getMessage());
         }
-        else {
-            result = robots[3];
-        }
-        return result;
     }
+    
     /**
      * Main program execution body, delegates to an instance of
      * the RobotRace implementation.
+     * 
+     * With -Drobotrace.headless=<directory> (or "-" for raw frames on standard output)
+     * the race is rendered offscreen instead, configured with -Drobotrace.frames,
+     * -Drobotrace.fps and -Drobotrace.size=<width>x<height>.
      */
-    public static void main(String args[]) {
+    public static void main(String args[]) throws Exception {
         RobotRace robotRace = new RobotRace();
-        robotRace.run();
+        String output = System.getProperty("robotrace.headless");
+        if(output == null) {
+            robotRace.run();
+            return;
+        }
+        
+        String[] size = System.getProperty("robotrace.size", "1280x720").split("x");
+        new HeadlessRenderer(robotRace, Integer.parseInt(size[0]), Integer.parseInt(size[1]),
+                Double.parseDouble(System.getProperty("robotrace.fps", "30")),
+                Integer.parseInt(System.getProperty("robotrace.frames", "900")), output).run();
     } 
     
     /**
@@ -0,0 +1,158 @@
+package robotrace;
+
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Simulation stage that advances all robots before anything is drawn.
+ *
+ * Each robot only reads the (immutable) race track and writes its own
+ * state, so the robots are split over a fork-join pool and updated in
+ * parallel. Interaction between robots is resolved sequentially through
+ * the lane index in between moving the robots and placing them on the
+ * track. The poses are written into preallocated flat buffers, from
+ * which the simulation publishes them to the renderer.
+ */
+class RobotUpdater {
+
+    /** Below this number of robots a task is run sequentially. */
+    private final static int THRESHOLD = 64;
+
+    /** The robots that are updated. */
+    private final Robot[] robots;
+
+    /** Spatial index used to let the robots interact. */
+    final LaneIndex laneIndex;
+
+    /** Position of every robot, stored as x, y, z per robot. */
+    final double[] positions;
+
+    /** Normalized running direction of every robot, stored as x, y, z per robot. */
+    final double[] directions;
+
+    /** Animation phase of every robot. */
+    final double[] phases;
+
+    /** The track the current update runs on. */
+    private RaceTrack track;
+
+    /** The animation time of the current update. */
+    private float tAnim;
+    
+    /** Time passed since the previous update. */
+    private double dt;
+    
+    /** The animation time of the previous update, negative before the first one. */
+    private float lastTAnim = -1;
+    
+    /** Longest time step simulated at once, so a stalled frame does not teleport robots. */
+    private final static double maxStep = 0.1;
+
+    /**
+     * Constructs an updater with buffers for the given robots.
+     */
+    public RobotUpdater(Robot[] robots) {
+        this.robots = robots;
+        this.laneIndex = new LaneIndex(robots);
+        this.positions = new double[3 * robots.length];
+        this.directions = new double[3 * robots.length];
+        this.phases = new double[robots.length];
+    }
+
+    /**
+     * Advances all robots over the given track.
+     * @param track The track the robots are racing on.
+     * @param tAnim Time since the start of the animation.
+     */
+    public void update(RaceTrack track, float tAnim) {
+        this.track = track;
+        this.tAnim = tAnim;
+        
+        // The step is clamped so pausing or resetting the animation does not move robots backwards.
+        this.dt = lastTAnim < 0 ? 0 : Math.max(0, Math.min(tAnim-lastTAnim, maxStep));
+        this.lastTAnim = tAnim;
+
+        // Move all robots on their own.
+        run(false);
+        
+        // Let the robots block and overtake each other.
+        laneIndex.update();
+        laneIndex.resolveCollisions(track);
+        
+        // Place the robots on the track.
+        run(true);
+    }
+
+    /**
+     * Runs one of the parallel stages over all robots.
+     * @param pose Whether to place the robots on the track instead of advancing them.
+     */
+    private void run(boolean pose) {
+        // Forking is only worth it when there is enough work to split.
+        if(robots.length <= THRESHOLD) {
+            if(pose)
+                pose(0, robots.length);
+            else
+                advance(0, robots.length);
+        } else {
+            Workers.pool.invoke(new Stage(0, robots.length, pose));
+        }
+    }
+
+    /**
+     * Advances the speed and progress of the robots in the range [from, to).
+     */
+    private void advance(int from, int to) {
+        for(int i = from; i < to; i++)
+            robots[i].advance(track, dt, tAnim);
+    }
+
+    /**
+     * Computes the position, direction and animation of the robots in the range [from, to).
+     */
+    private void pose(int from, int to) {
+        for(int i = from; i < to; i++) {
+            Robot robot = robots[i];
+
+            // setup the location and direction of the robot, only in the flat buffers.
+            // The robot objects are posed by the renderer, from a published frame state.
+            Vector position = track.getLanePoint(robot.lane, robot.progress);
+            Vector direction = track.getLaneTangent(robot.lane, robot.progress).normalized();
+            positions[3*i] = position.x();
+            positions[3*i+1] = position.y();
+            positions[3*i+2] = position.z();
+            directions[3*i] = direction.x();
+            directions[3*i+1] = direction.y();
+            directions[3*i+2] = direction.z();
+            phases[i] = robot.phaseAt(tAnim);
+        }
+    }
+
+    /**
+     * Fork-join task that halves its range until it is small enough.
+     */
+    private class Stage extends RecursiveAction {
+        private final static long serialVersionUID = 1L;
+        private final int from;
+        private final int to;
+        private final boolean pose;
+
+        Stage(int from, int to, boolean pose) {
+            this.from = from;
+            this.to = to;
+            this.pose = pose;
+        }
+
+        @Override
+        protected void compute() {
+            if(to - from <= THRESHOLD) {
+                if(pose)
+                    pose(from, to);
+                else
+                    advance(from, to);
+            } else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new Stage(from, middle, pose), new Stage(middle, to, pose));
+            }
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package robotrace;
+
+import java.util.Arrays;
+import javax.media.opengl.GL2;
+
+/**
+ * A node of a transform hierarchy, such as robot, torso and arm.
+ *
+ * Every node has a local transform, a translation, a rotation and a
+ * scale applied in that order like glTranslate, glRotate and glScale,
+ * and caches its world matrix: the world matrix of its parent times its
+ * local matrix. Changing the local transform only marks the node dirty;
+ * {@link #update()} then recomputes the world matrices of dirty nodes and
+ * of their descendants, and leaves the rest of the hierarchy untouched.
+ * Static parts therefore cost nothing per frame, and animated parts only
+ * cost the joints that actually moved.
+ */
+class SceneNode {
+
+    /** The parent, or null for a root. */
+    private final SceneNode parent;
+
+    /** The children of this node. */
+    private SceneNode[] children = new SceneNode[0];
+
+    /** The local transform: translation, rotation in degrees about an axis, and scale. */
+    private double tx, ty, tz;
+    private double angle, ax, ay, az = 1;
+    private double sx = 1, sy = 1, sz = 1;
+
+    /** Local and world matrix, column major like OpenGL. */
+    private final float[] local = new float[16];
+    private final float[] world = new float[16];
+
+    /** Whether the local transform changed since the last update. */
+    private boolean dirty = true;
+
+    /**
+     * Creates a root node.
+     */
+    public SceneNode() {
+        this(null);
+    }
+
+    /**
+     * Creates a node and adds it to the children of its parent.
+     * @param parent    The parent, or null for a root.
+     */
+    public SceneNode(SceneNode parent) {
+        this.parent = parent;
+        if(parent != null) {
+            parent.children = Arrays.copyOf(parent.children, parent.children.length + 1);
+            parent.children[parent.children.length - 1] = this;
+        }
+    }
+
+    /**
+     * Sets the translation, like glTranslate.
+     */
+    public SceneNode setTranslation(double x, double y, double z) {
+        if(x != tx || y != ty || z != tz) {
+            tx = x;
+            ty = y;
+            tz = z;
+            dirty = true;
+        }
+        return this;
+    }
+
+    /**
+     * Sets the rotation, like glRotate.
+     * @param angle The angle in degrees.
+     */
+    public SceneNode setRotation(double angle, double x, double y, double z) {
+        if(angle != this.angle || x != ax || y != ay || z != az) {
+            this.angle = angle;
+            ax = x;
+            ay = y;
+            az = z;
+            dirty = true;
+        }
+        return this;
+    }
+
+    /**
+     * Sets the scale, like glScale.
+     */
+    public SceneNode setScale(double x, double y, double z) {
+        if(x != sx || y != sy || z != sz) {
+            sx = x;
+            sy = y;
+            sz = z;
+            dirty = true;
+        }
+        return this;
+    }
+
+    /**
+     * Recomputes the world matrices of the dirty nodes of the hierarchy
+     * below this node. Called on a root once its transforms are set.
+     */
+    public void update() {
+        update(false);
+    }
+
+    private void update(boolean parentChanged) {
+        boolean changed = dirty || parentChanged;
+        if(dirty) {
+            computeLocal();
+            dirty = false;
+        }
+        if(changed) {
+            if(parent == null)
+                System.arraycopy(local, 0, world, 0, 16);
+            else
+                Matrix4.multiply(parent.world, local, world);
+        }
+        for(SceneNode child : children)
+            child.update(changed);
+    }
+
+    /**
+     * Computes local = T * R * S.
+     */
+    private void computeLocal() {
+        double length = Math.sqrt(ax*ax + ay*ay + az*az);
+        double x = ax/length, y = ay/length, z = az/length;
+        double radians = Math.toRadians(angle);
+        double c = Math.cos(radians), s = Math.sin(radians), t = 1 - c;
+
+        // The rotation about a unit axis, as documented for glRotate.
+        double[] r = {
+            t*x*x + c,   t*x*y + s*z, t*x*z - s*y,
+            t*x*y - s*z, t*y*y + c,   t*y*z + s*x,
+            t*x*z + s*y, t*y*z - s*x, t*z*z + c
+        };
+        double[] scale = {sx, sy, sz};
+        for(int column = 0; column < 3; column++) {
+            for(int row = 0; row < 3; row++)
+                local[column*4+row] = (float)(r[column*3+row]*scale[column]);
+            local[column*4+3] = 0;
+        }
+        local[12] = (float)tx;
+        local[13] = (float)ty;
+        local[14] = (float)tz;
+        local[15] = 1;
+    }
+
+    /**
+     * Returns the cached world matrix, valid after {@link #update()}.
+     */
+    public float[] getWorld() {
+        return world;
+    }
+
+    /**
+     * Pushes the modelview matrix and multiplies it with the world matrix
+     * of this node. Must be matched by a glPopMatrix.
+     */
+    public void push(GL2 gl) {
+        gl.glPushMatrix();
+        gl.glMultMatrixf(world, 0);
+    }
+}
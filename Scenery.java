@@ -0,0 +1,233 @@
+package robotrace;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Scatters trees over the terrain around a race track.
+ *
+ * The trees are placed with Poisson-disk sampling (Bridson), so no two
+ * trees are closer than the spacing while the terrain is still covered
+ * evenly. Points under water or too close to the track are rejected.
+ *
+ * Accepted points are stored in a background grid with at most one point
+ * per cell. The grid is split into tiles that are sampled in parallel in
+ * four phases: tiles of the same phase are at least one tile apart, so
+ * they never look at each others points, while tiles of later phases
+ * take the points of earlier phases into account.
+ */
+class Scenery {
+
+    /** Candidates tried around an accepted point before it is retired. */
+    private final static int attempts = 30;
+
+    /** Width and height of a tile in grid cells. */
+    private final static int tileCells = 16;
+
+    /** Depth the trees are sunk into the terrain, so their trunks never float. */
+    private final static double sink = 0.2;
+
+    /** The terrain the trees are placed on. */
+    private final Terrain terrain;
+
+    /** The track the trees keep clear of. */
+    private final RaceTrack track;
+
+    /** Minimal distance between two trees. */
+    private final double spacing;
+
+    /** Size of a grid cell, small enough to hold only one point. */
+    private final double cellSize;
+
+    /** The corner of the grid and its number of columns and rows. */
+    private final double minX, minY, maxX, maxY;
+    private final int columns, rows;
+
+    /** Seed of the random numbers, every tile derives its own generator. */
+    private final long seed;
+
+    /** The tree in every cell: position, width, height and variant, NaN x for empty cells. */
+    private final float[] treeX, treeY, treeWidth, treeHeight;
+    private final byte[] treeVariant;
+
+    /**
+     * Scatters trees around a track.
+     * @param spacing   Minimal distance between two trees.
+     * @param seed      Seed of the random numbers, equal seeds give equal forests.
+     * @return The trees, ready to be drawn.
+     */
+    public static TreeRenderer scatter(Terrain terrain, RaceTrack track, double spacing, long seed) {
+        Scenery scenery = new Scenery(terrain, track, spacing, seed);
+        scenery.sample();
+        return scenery.toTrees();
+    }
+
+    private Scenery(Terrain terrain, RaceTrack track, double spacing, long seed) {
+        this.terrain = terrain;
+        this.track = track;
+        this.spacing = spacing;
+        this.seed = seed;
+        this.cellSize = spacing/Math.sqrt(2);
+        this.minX = terrain.minX;
+        this.minY = terrain.minY;
+        this.maxX = terrain.maxX;
+        this.maxY = terrain.maxY;
+        this.columns = (int)Math.ceil((maxX - minX)/cellSize);
+        this.rows = (int)Math.ceil((maxY - minY)/cellSize);
+
+        int cells = columns*rows;
+        treeX = new float[cells];
+        treeY = new float[cells];
+        treeWidth = new float[cells];
+        treeHeight = new float[cells];
+        treeVariant = new byte[cells];
+        Arrays.fill(treeX, Float.NaN);
+    }
+
+    /**
+     * Samples all tiles, phase by phase.
+     */
+    private void sample() {
+        int tilesX = (columns + tileCells - 1)/tileCells;
+        int tilesY = (rows + tileCells - 1)/tileCells;
+        for(int phase = 0; phase < 4; phase++) {
+            final List<Tile> tiles = new ArrayList<Tile>();
+            for(int ty = phase/2; ty < tilesY; ty += 2) {
+                for(int tx = phase % 2; tx < tilesX; tx += 2)
+                    tiles.add(new Tile(tx, ty, ty*tilesX + tx));
+            }
+            Workers.pool.invoke(new RecursiveAction() {
+                private final static long serialVersionUID = 1L;
+
+                @Override
+                protected void compute() {
+                    invokeAll(tiles);
+                }
+            });
+        }
+    }
+
+    /**
+     * Copies the accepted points into the instance data of the tree renderer.
+     */
+    private TreeRenderer toTrees() {
+        int count = 0;
+        for(int cell = 0; cell < treeX.length; cell++) {
+            if(!Float.isNaN(treeX[cell]))
+                count++;
+        }
+        TreeRenderer trees = new TreeRenderer(count);
+        int i = 0;
+        for(int cell = 0; cell < treeX.length; cell++) {
+            if(Float.isNaN(treeX[cell]))
+                continue;
+            float x = treeX[cell], y = treeY[cell];
+            trees.set(i++, x, y, terrain.heightAt(x, y) - sink, treeWidth[cell], treeHeight[cell], treeVariant[cell]);
+        }
+        return trees;
+    }
+
+    /**
+     * Poisson-disk sampling of one tile, only writing the cells of that tile.
+     */
+    private class Tile extends RecursiveAction {
+
+        private final static long serialVersionUID = 1L;
+
+        /** The cells of this tile. */
+        private final int fromColumn, toColumn, fromRow, toRow;
+
+        /** Random numbers of this tile. */
+        private final Random random;
+
+        /** Answer of the distance to the track, reused for every candidate. */
+        private final TrackQuery.Result nearest = new TrackQuery.Result();
+
+        /** Cells of the points that may still get neighbours. */
+        private final int[] active = new int[tileCells*tileCells];
+        private int activeCount = 0;
+
+        Tile(int tx, int ty, int index) {
+            fromColumn = tx*tileCells;
+            toColumn = Math.min(fromColumn + tileCells, columns);
+            fromRow = ty*tileCells;
+            toRow = Math.min(fromRow + tileCells, rows);
+            random = new Random(seed*1000003 + index);
+        }
+
+        @Override
+        protected void compute() {
+            double x0 = minX + fromColumn*cellSize, x1 = Math.min(minX + toColumn*cellSize, maxX);
+            double y0 = minY + fromRow*cellSize, y1 = Math.min(minY + toRow*cellSize, maxY);
+
+            // Start from random points, so parts of the tile cut off by water or the track are reached too.
+            for(int start = 0; start < attempts; start++) {
+                if(!tryPoint(x0 + random.nextDouble()*(x1 - x0), y0 + random.nextDouble()*(y1 - y0)))
+                    continue;
+
+                // Grow from the accepted points until none of them has room left (Bridson).
+                while(activeCount > 0) {
+                    int a = random.nextInt(activeCount);
+                    int cell = active[a];
+                    boolean found = false;
+                    for(int k = 0; k < attempts && !found; k++) {
+                        double angle = 2*Math.PI*random.nextDouble();
+                        double distance = spacing*(1 + random.nextDouble());
+                        found = tryPoint(treeX[cell] + distance*Math.cos(angle), treeY[cell] + distance*Math.sin(angle));
+                    }
+                    if(!found)
+                        active[a] = active[--activeCount];
+                }
+            }
+        }
+
+        /**
+         * Accepts a point when it lies in this tile, has no neighbour
+         * within the spacing, lies above water and is clear of the track.
+         */
+        private boolean tryPoint(double x, double y) {
+            int column = (int)((x - minX)/cellSize);
+            int row = (int)((y - minY)/cellSize);
+            if(x < minX || y < minY || x > maxX || y > maxY
+                    || column < fromColumn || column >= toColumn || row < fromRow || row >= toRow)
+                return false;
+            int cell = row*columns + column;
+            if(!Float.isNaN(treeX[cell]))
+                return false;
+
+            // A point closer than the spacing lies at most two cells away.
+            double spacing2 = spacing*spacing;
+            for(int r = Math.max(row - 2, 0); r <= Math.min(row + 2, rows - 1); r++) {
+                for(int c = Math.max(column - 2, 0); c <= Math.min(column + 2, columns - 1); c++) {
+                    float other = treeX[r*columns + c];
+                    if(Float.isNaN(other))
+                        continue;
+                    double dx = other - x, dy = treeY[r*columns + c] - y;
+                    if(dx*dx + dy*dy < spacing2)
+                        return false;
+                }
+            }
+
+            if(terrain.heightAt((float)x, (float)y) < 0)
+                return false;
+
+            // The crown of a tree reaches about twice its width, keep it off the track.
+            float u = random.nextFloat();
+            float width = 0.1f + u;
+            track.query(x, y, nearest);
+            if(nearest.distance < RaceTrack.trackWidth/2 + 2.1*width)
+                return false;
+
+            treeX[cell] = (float)x;
+            treeY[cell] = (float)y;
+            treeWidth[cell] = width;
+            treeHeight[cell] = 0.3f + 2*u;
+            treeVariant[cell] = random.nextBoolean() ? (byte)TreeRenderer.coneTree : (byte)TreeRenderer.sphereTree;
+            active[activeCount++] = cell;
+            return true;
+        }
+    }
+}
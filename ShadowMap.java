@@ -0,0 +1,265 @@
+package robotrace;
+
+import static javax.media.opengl.GL.GL_CLAMP_TO_EDGE;
+import static javax.media.opengl.GL.GL_DEPTH_ATTACHMENT;
+import static javax.media.opengl.GL.GL_DEPTH_BUFFER_BIT;
+import static javax.media.opengl.GL.GL_DEPTH_COMPONENT24;
+import static javax.media.opengl.GL.GL_FRAMEBUFFER;
+import static javax.media.opengl.GL.GL_LEQUAL;
+import static javax.media.opengl.GL.GL_LINEAR;
+import static javax.media.opengl.GL.GL_NEAREST;
+import static javax.media.opengl.GL.GL_NONE;
+import static javax.media.opengl.GL.GL_POLYGON_OFFSET_FILL;
+import static javax.media.opengl.GL.GL_TEXTURE0;
+import static javax.media.opengl.GL.GL_TEXTURE_2D;
+import static javax.media.opengl.GL.GL_TEXTURE_MAG_FILTER;
+import static javax.media.opengl.GL.GL_TEXTURE_MIN_FILTER;
+import static javax.media.opengl.GL.GL_TEXTURE_WRAP_S;
+import static javax.media.opengl.GL.GL_TEXTURE_WRAP_T;
+import static javax.media.opengl.GL.GL_UNSIGNED_INT;
+import static javax.media.opengl.GL.GL_VIEWPORT;
+import static javax.media.opengl.GL2.GL_DEPTH_COMPONENT;
+import static javax.media.opengl.GL2.GL_MODELVIEW;
+import static javax.media.opengl.GL2.GL_MODELVIEW_MATRIX;
+import static javax.media.opengl.GL2.GL_PROJECTION;
+import static javax.media.opengl.GL2.GL_PROJECTION_MATRIX;
+import static javax.media.opengl.GL2ES2.GL_TEXTURE_COMPARE_FUNC;
+import static javax.media.opengl.GL2ES2.GL_TEXTURE_COMPARE_MODE;
+import static javax.media.opengl.GL2ES3.GL_COMPARE_REF_TO_TEXTURE;
+import static javax.media.opengl.GL2ES3.GL_DRAW_FRAMEBUFFER;
+import static javax.media.opengl.GL2ES3.GL_DRAW_FRAMEBUFFER_BINDING;
+import static javax.media.opengl.GL2ES3.GL_READ_FRAMEBUFFER;
+import static javax.media.opengl.GL2ES3.GL_READ_FRAMEBUFFER_BINDING;
+import javax.media.opengl.GL2;
+import javax.media.opengl.glu.GLU;
+
+/**
+ * Shadows of the sun, cast by the scenery and the robots.
+ *
+ * The scene is drawn from the sun into depth textures (cascades): a wide
+ * cascade covering the whole terrain, and for views close to the robots
+ * a near cascade with more detail around the point they look at. Static
+ * casters (terrain, track and trees) are drawn only when a cascade is
+ * moved or the scene changes, into a cached depth texture. Every frame
+ * the cached depth is copied with glBlitFramebuffer and only the robots
+ * are drawn on top, so the cost per frame depends on the number of
+ * robots rather than on the size of the scene.
+ */
+class ShadowMap {
+
+    /**
+     * Draws the geometry that casts shadows.
+     */
+    interface Casters {
+        /**
+         * Draws the static or the dynamic shadow casters.
+         * @param frustum   The volume covered by the cascade, for culling.
+         * @param center    The center of the cascade, for level of detail.
+         * @param dynamic   Whether to draw the moving casters instead of the static ones.
+         */
+        void drawShadowCasters(Frustum frustum, Vector center, boolean dynamic);
+    }
+
+    /** The cascades. */
+    final static int wide = 0;
+    final static int near = 1;
+
+    /** Size in texels of a cascade. */
+    private final static int size = 2048;
+
+    /** Half the width of the area covered by each cascade. */
+    private final static double[] extent = {30, 12};
+
+    /** Distance from the cascade center to the sun camera. */
+    private final static double[] distance = {60, 40};
+
+    /** Views with the eye closer than this to the point they look at use the near cascade. */
+    private final static double nearRange = 10;
+
+    /** Depth texture with only the static casters, and the one used for drawing, per cascade. */
+    private final int[] staticTexture = new int[2];
+    private final int[] frameTexture = new int[2];
+
+    /** Framebuffers rendering into the textures above. */
+    private final int[] staticBuffer = new int[2];
+    private final int[] frameBuffer = new int[2];
+
+    /** Whether the static casters of a cascade have to be drawn again. */
+    private final boolean[] dirty = {true, true};
+
+    /** Center of each cascade on the ground, the near one moves in steps of half its extent. */
+    private final Vector[] centers = {Vector.O, Vector.O};
+
+    /** Culling volume of each cascade. */
+    private final Frustum[] frustums = {new Frustum(), new Frustum()};
+
+    /** World to shadow texture matrix of each cascade. */
+    private final float[][] matrices = {new float[16], new float[16]};
+
+    /** Number of cascades used this frame. */
+    private int cascades = 1;
+
+    /** Scratch space for reading matrices and state from OpenGL. */
+    private final float[] projection = new float[16];
+    private final float[] modelView = new float[16];
+    private final float[] combined = new float[16];
+    private final int[] viewport = new int[4];
+    private final int[] bindings = new int[2];
+
+    /**
+     * Creates the depth textures and framebuffers.
+     */
+    public void initialize(GL2 gl) {
+        gl.glGenTextures(2, staticTexture, 0);
+        gl.glGenTextures(2, frameTexture, 0);
+        gl.glGenFramebuffers(2, staticBuffer, 0);
+        gl.glGenFramebuffers(2, frameBuffer, 0);
+        for(int c = 0; c < 2; c++) {
+            createTarget(gl, staticTexture[c], staticBuffer[c]);
+            createTarget(gl, frameTexture[c], frameBuffer[c]);
+
+            // The shaders compare against the depth with hardware filtering.
+            gl.glBindTexture(GL_TEXTURE_2D, frameTexture[c]);
+            gl.glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_COMPARE_MODE, GL_COMPARE_REF_TO_TEXTURE);
+            gl.glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_COMPARE_FUNC, GL_LEQUAL);
+        }
+        gl.glBindTexture(GL_TEXTURE_2D, 0);
+        gl.glBindFramebuffer(GL_FRAMEBUFFER, 0);
+    }
+
+    /**
+     * Creates a depth texture and a framebuffer drawing only into it.
+     */
+    private void createTarget(GL2 gl, int texture, int buffer) {
+        gl.glBindTexture(GL_TEXTURE_2D, texture);
+        gl.glTexImage2D(GL_TEXTURE_2D, 0, GL_DEPTH_COMPONENT24, size, size, 0, GL_DEPTH_COMPONENT, GL_UNSIGNED_INT, null);
+        gl.glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
+        gl.glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
+        gl.glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
+        gl.glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
+        gl.glBindFramebuffer(GL_FRAMEBUFFER, buffer);
+        gl.glFramebufferTexture2D(GL_FRAMEBUFFER, GL_DEPTH_ATTACHMENT, GL_TEXTURE_2D, texture, 0);
+        gl.glDrawBuffer(GL_NONE);
+        gl.glReadBuffer(GL_NONE);
+    }
+
+    /**
+     * Draws the static casters again before the next frame, e.g. after switching tracks.
+     */
+    public void invalidate() {
+        dirty[wide] = true;
+        dirty[near] = true;
+    }
+
+    /**
+     * Returns the number of cascades of the current frame.
+     */
+    public int getCascades() {
+        return cascades;
+    }
+
+    /**
+     * Returns the world to shadow texture matrix of a cascade.
+     */
+    public float[] getMatrix(int cascade) {
+        return matrices[cascade];
+    }
+
+    /**
+     * Draws the shadows of the current frame. Call after the cameras have
+     * been updated and before any view is drawn.
+     * @param views     The views of this frame, a close view enables the near cascade.
+     * @param casters   Draws the shadow casters.
+     */
+    public void update(GL2 gl, GLU glu, Viewport[] views, Casters casters) {
+        // Follow the first view that is close to the point it looks at.
+        cascades = 1;
+        for(Viewport view : views) {
+            Camera camera = view.camera;
+            if(camera.eye.subtract(camera.center).length() < nearRange) {
+                // Move in steps of half the extent, a whole number of texels, so the shadows do not shimmer.
+                double step = extent[near]/2;
+                double x = Math.round(camera.center.x()/step)*step;
+                double y = Math.round(camera.center.y()/step)*step;
+                if(x != centers[near].x() || y != centers[near].y()) {
+                    centers[near] = new Vector(x, y, 0);
+                    dirty[near] = true;
+                }
+                cascades = 2;
+                break;
+            }
+        }
+
+        // Keep the framebuffers and viewport of the views.
+        gl.glGetIntegerv(GL_DRAW_FRAMEBUFFER_BINDING, bindings, 0);
+        gl.glGetIntegerv(GL_READ_FRAMEBUFFER_BINDING, bindings, 1);
+        gl.glGetIntegerv(GL_VIEWPORT, viewport, 0);
+        gl.glMatrixMode(GL_PROJECTION);
+        gl.glPushMatrix();
+        gl.glMatrixMode(GL_MODELVIEW);
+        gl.glPushMatrix();
+
+        gl.glViewport(0, 0, size, size);
+        gl.glEnable(GL_POLYGON_OFFSET_FILL);
+        gl.glPolygonOffset(2f, 4f);
+        Lighting.beginDepth(gl);
+        for(int c = 0; c < cascades; c++) {
+            setCamera(gl, glu, c);
+
+            // Draw the static casters only when they changed.
+            if(dirty[c]) {
+                gl.glBindFramebuffer(GL_FRAMEBUFFER, staticBuffer[c]);
+                gl.glClear(GL_DEPTH_BUFFER_BIT);
+                casters.drawShadowCasters(frustums[c], centers[c], false);
+                dirty[c] = false;
+            }
+
+            // Start from the cached static depth and add the moving casters.
+            gl.glBindFramebuffer(GL_READ_FRAMEBUFFER, staticBuffer[c]);
+            gl.glBindFramebuffer(GL_DRAW_FRAMEBUFFER, frameBuffer[c]);
+            gl.glBlitFramebuffer(0, 0, size, size, 0, 0, size, size, GL_DEPTH_BUFFER_BIT, GL_NEAREST);
+            gl.glBindFramebuffer(GL_FRAMEBUFFER, frameBuffer[c]);
+            casters.drawShadowCasters(frustums[c], centers[c], true);
+        }
+        Lighting.endDepth(gl);
+        gl.glDisable(GL_POLYGON_OFFSET_FILL);
+
+        gl.glBindFramebuffer(GL_DRAW_FRAMEBUFFER, bindings[0]);
+        gl.glBindFramebuffer(GL_READ_FRAMEBUFFER, bindings[1]);
+        gl.glViewport(viewport[0], viewport[1], viewport[2], viewport[3]);
+        gl.glMatrixMode(GL_PROJECTION);
+        gl.glPopMatrix();
+        gl.glMatrixMode(GL_MODELVIEW);
+        gl.glPopMatrix();
+
+        // Make the shadows available to the shaders.
+        for(int c = 0; c < 2; c++) {
+            gl.glActiveTexture(GL_TEXTURE0 + Lighting.shadowUnit + c);
+            gl.glBindTexture(GL_TEXTURE_2D, frameTexture[c]);
+        }
+        gl.glActiveTexture(GL_TEXTURE0);
+    }
+
+    /**
+     * Looks at a cascade from the sun and stores its shadow matrix and frustum.
+     */
+    private void setCamera(GL2 gl, GLU glu, int c) {
+        Vector sun = Lighting.sun;
+        Vector center = centers[c];
+        double d = distance[c];
+        gl.glMatrixMode(GL_PROJECTION);
+        gl.glLoadIdentity();
+        gl.glOrtho(-extent[c], extent[c], -extent[c], extent[c], d - extent[c], d + extent[c]);
+        gl.glMatrixMode(GL_MODELVIEW);
+        gl.glLoadIdentity();
+        glu.gluLookAt(center.x() + d*sun.x(), center.y() + d*sun.y(), d*sun.z(),
+                      center.x(),         center.y(),         0,
+                      0, 0, 1);
+
+        gl.glGetFloatv(GL_PROJECTION_MATRIX, projection, 0);
+        gl.glGetFloatv(GL_MODELVIEW_MATRIX, modelView, 0);
+        Matrix4.multiply(projection, modelView, combined);
+        Matrix4.multiply(Matrix4.bias, combined, matrices[c]);
+        frustums[c].update(gl);
+    }
+}
@@ -0,0 +1,180 @@
+package robotrace;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Advances the race and publishes a {@link FrameState} after every step.
+ *
+ * The renderer only asks for the race to reach an animation time on a
+ * track. On its own thread the simulation then catches up in the
+ * background and the renderer draws the newest published state, so
+ * neither waits for the other. Without a thread (-Drobotrace.simThread=false,
+ * and always when rendering headless at a fixed time step) every request
+ * is simulated right away and the renderer draws exactly that step.
+ *
+ * Only the simulation touches the race state of the robots: their
+ * progress, lanes, laps and split times, the ranking and the shots of
+ * the auto camera.
+ */
+class Simulation implements Runnable {
+
+    /** Whether the race is simulated on its own thread. */
+    final static boolean threaded = Boolean.parseBoolean(System.getProperty("robotrace.simThread",
+            System.getProperty("robotrace.headless") == null ? "true" : "false"));
+
+    /** The robots and the tracks they race on. */
+    private final Robot[] robots;
+    private final RaceTrack[] tracks;
+
+    /** Simulation stage that advances the robots. */
+    private final RobotUpdater robotUpdater;
+
+    /** Ranking of the robots. */
+    private final Leaderboard leaderboard;
+
+    /** Picks the shots of the auto camera from the race events. */
+    private final Director director;
+
+    /** Publishes the robots to dashboards, null without telemetry. */
+    private final Telemetry telemetry;
+
+    /** Sends the race to other machines, null when not serving. */
+    final RaceServer server;
+
+    /** The published states. */
+    final FrameStateBuffer frames;
+
+    /**
+     * The animation time and track the renderer asked for, packed into one
+     * value so a step never pairs a new time with an old track: the bits of
+     * the time in the upper half, the track in the lower half.
+     */
+    private volatile long target = pack(0, 0);
+
+    /** The animation time and track of the last step, NaN before the first step. */
+    private float simulatedTime = Float.NaN;
+    private int simulatedTrack = -1;
+
+    /** The thread, null until the first request when threaded. */
+    private Thread thread;
+
+    /** Set by {@link #stop}, after which the race no longer changes. */
+    private volatile boolean stopped = false;
+
+    /**
+     * Constructs the simulation of a race.
+     */
+    public Simulation(Robot[] robots, RaceTrack[] tracks) {
+        this.robots = robots;
+        this.tracks = tracks;
+        this.robotUpdater = new RobotUpdater(robots);
+        this.leaderboard = new Leaderboard(robots);
+        this.director = new Director(robots, leaderboard);
+        this.telemetry = Telemetry.fromProperties(robots.length);
+        this.server = RaceServer.fromProperties(robots.length);
+        this.frames = new FrameStateBuffer(robots.length);
+        
+        // Publish the start of the race, so the renderer never draws an empty state.
+        step(0, 0);
+    }
+
+    /**
+     * Asks for the race to be simulated up to an animation time on a track.
+     * Called by the renderer before it takes the newest state.
+     */
+    public void request(float tAnim, int trackNr) {
+        target = pack(tAnim, trackNr);
+        if(!threaded) {
+            step(tAnim, trackNr);
+            return;
+        }
+        if(thread == null) {
+            thread = new Thread(this, "simulation");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        LockSupport.unpark(thread);
+    }
+
+    /**
+     * Steps whenever the renderer has asked for a new time or track, and
+     * parks until the next request once it has caught up.
+     */
+    @Override
+    public void run() {
+        while(!stopped) {
+            long request = target;
+            float tAnim = Float.intBitsToFloat((int)(request >>> 32));
+            int trackNr = (int)request;
+            if(tAnim != simulatedTime || trackNr != simulatedTrack)
+                step(tAnim, trackNr);
+            else
+                LockSupport.park(this);
+        }
+    }
+
+    /**
+     * Stops simulating and waits for the step in progress, after which the
+     * race state of the robots can be read from any thread.
+     */
+    public void stop() {
+        stopped = true;
+        if(thread != null) {
+            LockSupport.unpark(thread);
+            try {
+                thread.join();
+            } catch(InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        awaitStep();
+    }
+
+    /**
+     * Returns once no step is in progress; a step simulated on the renderer
+     * holds the lock until it is done.
+     */
+    private synchronized void awaitStep() {
+    }
+
+    /**
+     * Packs a request into one value.
+     */
+    private static long pack(float tAnim, int trackNr) {
+        return ((long)Float.floatToIntBits(tAnim) << 32) | (trackNr & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Advances the robots to an animation time and publishes the result.
+     */
+    private synchronized void step(float tAnim, int trackNr) {
+        if(stopped)
+            return;
+        simulatedTime = tAnim;
+        simulatedTrack = trackNr;
+        robotUpdater.update(tracks[trackNr], tAnim);
+        leaderboard.update();
+        director.tick(tAnim);
+
+        FrameState state = frames.back();
+        state.tAnim = tAnim;
+        state.trackNr = trackNr;
+        System.arraycopy(robotUpdater.positions, 0, state.positions, 0, state.positions.length);
+        System.arraycopy(robotUpdater.directions, 0, state.directions, 0, state.directions.length);
+        System.arraycopy(robotUpdater.phases, 0, state.phases, 0, state.phases.length);
+        for(int i = 0; i < robots.length; i++) {
+            state.progress[i] = robots[i].progress;
+            state.laps[i] = robots[i].laps;
+            state.bestLaps[i] = robots[i].splits.getBestLap();
+        }
+        leaderboard.top(robots.length, state.ranking);
+        state.focus = director.getFocus();
+        state.cameraMode = director.getCameraMode();
+        if(server != null)
+            server.publish(state);
+        frames.publish();
+        
+        if(telemetry != null)
+            telemetry.publish(tAnim, robots, robotUpdater.positions, leaderboard);
+    }
+}
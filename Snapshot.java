@@ -0,0 +1,236 @@
+package robotrace;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The state of the race sent from a {@link RaceServer} to its clients.
+ *
+ * Every robot is quantized to a few integers, e.g. positions in
+ * millimeters. A snapshot is encoded as the difference to an older
+ * snapshot the client already has (its baseline): for every robot a mask
+ * of the values that changed, followed by the changes as variable length
+ * integers. Most values change by small amounts between snapshots and
+ * many do not change at all, so a robot usually takes a handful of bytes.
+ * Without a baseline the difference is to all zeros.
+ */
+class Snapshot {
+
+    /** The quantized values of every robot. */
+    final static int X = 0, Y = 1, Z = 2, DX = 3, DY = 4, DZ = 5, PHASE = 6, PROGRESS = 7, LAPS = 8, RANK = 9, BEST = 10;
+    final static int fields = 11;
+
+    /** Scale of the quantized values: millimeters, 1e-4 of a unit vector, milliradians, 1e-6 of a lap, milliseconds. */
+    private final static double positionScale = 1000, directionScale = 10000, phaseScale = 1000,
+            progressScale = 1000000, timeScale = 1000;
+
+    /** Largest encoded size of the header and of a robot, in bytes: a varint takes up to five. */
+    private final static int maxHeaderBytes = 8 + 8 + 8 + 4 + 4*5, maxRobotBytes = 2 + fields*5;
+
+    /** Sequence number, 1 for the first snapshot. */
+    final long sequence;
+
+    /** Animation time, track and shot of the auto camera. */
+    final float tAnim;
+    final int trackNr;
+    final int focus;
+    final int cameraMode;
+
+    /** Number of robots. */
+    final int robots;
+
+    /** The quantized values, fields per robot. */
+    final int[] values;
+
+    /** When the server sent the snapshot, in System.currentTimeMillis(). */
+    long sent;
+
+    private Snapshot(long sequence, float tAnim, int trackNr, int focus, int cameraMode, int robots) {
+        this.sequence = sequence;
+        this.tAnim = tAnim;
+        this.trackNr = trackNr;
+        this.focus = focus;
+        this.cameraMode = cameraMode;
+        this.robots = robots;
+        this.values = new int[robots*fields];
+    }
+
+    /**
+     * Quantizes a frame state of the simulation.
+     */
+    public static Snapshot of(FrameState state, long sequence) {
+        int robots = state.phases.length;
+        Snapshot s = new Snapshot(sequence, state.tAnim, state.trackNr, state.focus, state.cameraMode, robots);
+        for(int i = 0; i < robots; i++) {
+            int at = i*fields;
+            s.values[at + X] = (int)Math.round(state.positions[3*i]*positionScale);
+            s.values[at + Y] = (int)Math.round(state.positions[3*i+1]*positionScale);
+            s.values[at + Z] = (int)Math.round(state.positions[3*i+2]*positionScale);
+            s.values[at + DX] = (int)Math.round(state.directions[3*i]*directionScale);
+            s.values[at + DY] = (int)Math.round(state.directions[3*i+1]*directionScale);
+            s.values[at + DZ] = (int)Math.round(state.directions[3*i+2]*directionScale);
+            s.values[at + PHASE] = (int)Math.round(state.phases[i]*phaseScale);
+            s.values[at + PROGRESS] = (int)Math.round(state.progress[i]*progressScale);
+            s.values[at + LAPS] = state.laps[i];
+            s.values[at + BEST] = Float.isNaN(state.bestLaps[i]) ? -1 : Math.round(state.bestLaps[i]*(float)timeScale);
+        }
+        for(int rank = 0; rank < robots; rank++)
+            s.values[state.ranking[rank]*fields + RANK] = rank;
+        return s;
+    }
+
+    /**
+     * Fills a frame state with a snapshot, or between two snapshots.
+     * The positions, directions, phases and progress are interpolated,
+     * everything else is taken from the nearest snapshot.
+     * @param a   The older snapshot.
+     * @param b   The newer snapshot, may be a.
+     * @param t   How far between a and b, from 0 to 1.
+     * @param out The state to fill.
+     */
+    public static void interpolate(Snapshot a, Snapshot b, double t, FrameState out) {
+        Snapshot near = t < 0.5 ? a : b;
+        out.tAnim = (float)(a.tAnim + (b.tAnim - a.tAnim)*t);
+        out.trackNr = near.trackNr;
+        out.focus = near.focus;
+        out.cameraMode = near.cameraMode;
+        int robots = Math.min(Math.min(a.robots, b.robots), out.phases.length);
+        for(int i = 0; i < robots; i++) {
+            int at = i*fields;
+            out.positions[3*i] = lerp(a, b, at + X, t)/positionScale;
+            out.positions[3*i+1] = lerp(a, b, at + Y, t)/positionScale;
+            out.positions[3*i+2] = lerp(a, b, at + Z, t)/positionScale;
+            double dx = lerp(a, b, at + DX, t), dy = lerp(a, b, at + DY, t), dz = lerp(a, b, at + DZ, t);
+            double length = Math.max(Math.sqrt(dx*dx + dy*dy + dz*dz), 1e-9);
+            out.directions[3*i] = dx/length;
+            out.directions[3*i+1] = dy/length;
+            out.directions[3*i+2] = dz/length;
+            out.phases[i] = lerp(a, b, at + PHASE, t)/phaseScale;
+
+            // Interpolate the distance covered, the progress wraps around at the end of a lap.
+            double from = a.values[at + LAPS] + a.values[at + PROGRESS]/progressScale;
+            double to = b.values[at + LAPS] + b.values[at + PROGRESS]/progressScale;
+            double distance = from + (to - from)*t;
+            out.laps[i] = (int)Math.floor(distance);
+            out.progress[i] = (float)(distance - out.laps[i]);
+
+            int best = near.values[at + BEST];
+            out.bestLaps[i] = best < 0 ? Float.NaN : (float)(best/timeScale);
+            // The rank comes from the network, never trust it to be in range.
+            int rank = near.values[at + RANK];
+            if(rank >= 0 && rank < out.ranking.length)
+                out.ranking[rank] = i;
+        }
+    }
+
+    /**
+     * Interpolates a quantized value.
+     */
+    private static double lerp(Snapshot a, Snapshot b, int index, double t) {
+        return a.values[index] + (double)(b.values[index] - a.values[index])*t;
+    }
+
+    /**
+     * Returns the largest number of bytes a snapshot of a number of robots is encoded in.
+     */
+    public static int maxBytes(int robots) {
+        return maxHeaderBytes + robots*maxRobotBytes;
+    }
+
+    /**
+     * Encodes the snapshot as the difference to a baseline.
+     * @param baseline The snapshot the receiver has, or null for a full snapshot.
+     */
+    public void write(ByteBuffer out, Snapshot baseline) {
+        if(baseline != null && baseline.robots != robots)
+            baseline = null;
+        out.putLong(sequence);
+        out.putLong(baseline == null ? 0 : baseline.sequence);
+        out.putLong(sent);
+        out.putFloat(tAnim);
+        putVarint(out, trackNr);
+        putVarint(out, focus);
+        putVarint(out, cameraMode);
+        putVarint(out, robots);
+        for(int at = 0; at < values.length; at += fields) {
+            int mask = 0;
+            for(int f = 0; f < fields; f++) {
+                if(values[at + f] != (baseline == null ? 0 : baseline.values[at + f]))
+                    mask |= 1 << f;
+            }
+            putVarint(out, mask);
+            for(int f = 0; f < fields; f++) {
+                if((mask & (1 << f)) != 0) {
+                    int change = values[at + f] - (baseline == null ? 0 : baseline.values[at + f]);
+                    // Zigzag, so small negative changes are small numbers as well.
+                    putVarint(out, (change << 1) ^ (change >> 31));
+                }
+            }
+        }
+    }
+
+    /**
+     * Decodes a snapshot. A snapshot that does not match the race here, or
+     * is cut short, throws an IllegalArgumentException or a BufferUnderflowException.
+     * @param history Snapshots received before, indexed by sequence modulo the length.
+     * @param robots  The number of robots here.
+     * @param tracks  The number of tracks here.
+     * @return The snapshot, or null if its baseline is not in the history.
+     */
+    public static Snapshot read(ByteBuffer in, Snapshot[] history, int robots, int tracks) {
+        long sequence = in.getLong();
+        long baselineSequence = in.getLong();
+        long sent = in.getLong();
+        float tAnim = in.getFloat();
+        int trackNr = getVarint(in);
+        int focus = getVarint(in);
+        int cameraMode = getVarint(in);
+        if(getVarint(in) != robots)
+            throw new IllegalArgumentException("Snapshot of another number of robots");
+        if(trackNr < 0 || trackNr >= tracks || focus < 0 || focus >= robots || cameraMode < 1 || cameraMode > 3)
+            throw new IllegalArgumentException("Snapshot out of range");
+        Snapshot baseline = null;
+        if(baselineSequence != 0) {
+            baseline = history[(int)(baselineSequence % history.length)];
+            if(baseline == null || baseline.sequence != baselineSequence || baseline.robots != robots)
+                return null;
+        }
+        Snapshot s = new Snapshot(sequence, tAnim, trackNr, focus, cameraMode, robots);
+        s.sent = sent;
+        for(int at = 0; at < s.values.length; at += fields) {
+            int mask = getVarint(in);
+            for(int f = 0; f < fields; f++) {
+                int value = baseline == null ? 0 : baseline.values[at + f];
+                if((mask & (1 << f)) != 0) {
+                    int zigzag = getVarint(in);
+                    value += (zigzag >>> 1) ^ -(zigzag & 1);
+                }
+                s.values[at + f] = value;
+            }
+        }
+        return s;
+    }
+
+    /**
+     * Writes an unsigned variable length integer, 7 bits per byte.
+     */
+    private static void putVarint(ByteBuffer out, int value) {
+        while((value & ~0x7F) != 0) {
+            out.put((byte)((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte)value);
+    }
+
+    /**
+     * Reads an unsigned variable length integer.
+     */
+    private static int getVarint(ByteBuffer in) {
+        int value = 0;
+        for(int shift = 0; ; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if(b >= 0)
+                return value;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package robotrace;
+
+import java.io.IOException;
+
+/**
+ * Lap and sector times of one robot.
+ *
+ * The times of the most recent laps are kept in fixed size primitive ring
+ * buffers, so recording a split never allocates. The best lap is tracked
+ * over the whole race and the sum of the kept laps is maintained while
+ * recording, so all queries take constant time.
+ */
+class SplitTimes {
+
+    /** The number of sectors a lap is divided in. */
+    final static int sectors = 3;
+
+    /** The number of most recent laps that are kept. */
+    final static int capacity = 32;
+
+    /** Lap times, indexed by lap number modulo the capacity. */
+    private final float[] lapTimes = new float[capacity];
+
+    /** Sector times, the sectors of one lap are stored next to each other. */
+    private final float[] sectorTimes = new float[capacity*sectors];
+
+    /** The number of laps completed. */
+    private int laps = 0;
+
+    /** The sector the robot is currently in. */
+    private int sector = 0;
+
+    /** The time the current lap started, NaN before the first update. */
+    private double lapStart = Double.NaN;
+
+    /** The time the current sector started. */
+    private double sectorStart;
+
+    /** The fastest lap of the race. */
+    private float bestLap = Float.NaN;
+
+    /** The sum of the lap times currently kept, for the average. */
+    private double keptSum = 0;
+
+    /**
+     * Records the splits passed since the previous update.
+     * @param time      The race time of this update.
+     * @param lap       The number of laps completed.
+     * @param progress  The progress within the current lap, 0 <= progress <= 1.
+     */
+    public void update(double time, int lap, double progress) {
+        // Start timing at the first update, and start over when the time went
+        // back (e.g. the animation restarted), so no split is ever negative.
+        if(Double.isNaN(lapStart) || time < sectorStart) {
+            lapStart = time;
+            sectorStart = time;
+        }
+
+        // Close every sector passed, including the ones of finished laps.
+        int current = Math.min((int)(progress*sectors), sectors-1);
+        while(laps < lap || sector < current) {
+            sectorTimes[(laps % capacity)*sectors + sector] = (float)(time - sectorStart);
+            sectorStart = time;
+            sector++;
+            if(sector == sectors) {
+                recordLap((float)(time - lapStart));
+                lapStart = time;
+                sector = 0;
+            }
+        }
+    }
+
+    /**
+     * Stores a finished lap, replacing the oldest kept lap when full.
+     */
+    private void recordLap(float lapTime) {
+        int index = laps % capacity;
+        if(laps >= capacity)
+            keptSum -= lapTimes[index];
+        lapTimes[index] = lapTime;
+        keptSum += lapTime;
+        if(Float.isNaN(bestLap) || lapTime < bestLap)
+            bestLap = lapTime;
+        laps++;
+    }
+
+    /**
+     * Returns the number of laps completed.
+     */
+    public int getLapCount() {
+        return laps;
+    }
+
+    /**
+     * Returns the number of laps of which the times are still kept.
+     */
+    public int getKeptLapCount() {
+        return Math.min(laps, capacity);
+    }
+
+    /**
+     * Returns the time of the last completed lap, NaN if there is none.
+     */
+    public float getLastLap() {
+        return laps == 0 ? Float.NaN : lapTimes[(laps-1) % capacity];
+    }
+
+    /**
+     * Returns the fastest lap of the race, NaN if no lap was completed.
+     */
+    public float getBestLap() {
+        return bestLap;
+    }
+
+    /**
+     * Returns the average of the kept laps, NaN if no lap was completed.
+     */
+    public float getAverageLap() {
+        return laps == 0 ? Float.NaN : (float)(keptSum/getKeptLapCount());
+    }
+
+    /**
+     * Returns the time of a completed lap, which must still be kept.
+     * @param lap The lap number, 0 being the first lap of the race.
+     */
+    public float getLapTime(int lap) {
+        checkKept(lap);
+        return lapTimes[lap % capacity];
+    }
+
+    /**
+     * Returns the time spent in a sector of a completed lap, which must still be kept.
+     * @param lap       The lap number, 0 being the first lap of the race.
+     * @param sector    The sector, 0 <= sector < sectors.
+     */
+    public float getSectorTime(int lap, int sector) {
+        checkKept(lap);
+        return sectorTimes[(lap % capacity)*sectors + sector];
+    }
+
+    /**
+     * Throws an exception when the given lap is not completed or no longer kept.
+     */
+    private void checkKept(int lap) {
+        if(lap >= laps || lap < laps - capacity)
+            throw new IndexOutOfBoundsException("Lap " + lap + " is not kept");
+    }
+
+    /**
+     * Writes the kept laps as comma separated values, one lap per line:
+     * name, lap, lap time and the sector times.
+     * @param name  The name identifying the robot.
+     * @param out   The destination of the lines.
+     */
+    public void writeCsv(String name, Appendable out) throws IOException {
+        for(int lap = laps - getKeptLapCount(); lap < laps; lap++) {
+            out.append(name).append(',').append(Integer.toString(lap+1));
+            out.append(',').append(Float.toString(getLapTime(lap)));
+            for(int s = 0; s < sectors; s++)
+                out.append(',').append(Float.toString(getSectorTime(lap, s)));
+            out.append('\n');
+        }
+    }
+}
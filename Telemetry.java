@@ -0,0 +1,213 @@
+package robotrace;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+
+/**
+ * Publishes the state of every robot after every simulation step, for
+ * dashboards outside the application. Read with {@link TelemetryReader}.
+ *
+ * The state goes into a ring of slots in a memory-mapped file, given with
+ * -Drobotrace.telemetry=&lt;file&gt;, and is optionally sent as UDP datagrams
+ * to -Drobotrace.telemetryUdp=&lt;host&gt;:&lt;port&gt;. Writing a slot is a
+ * plain memory copy and the socket never blocks, a datagram that does not
+ * fit in the send buffer is dropped. All values are little endian.
+ *
+ * The file starts with a header:
+ * <pre>
+ *  0 int   magic        'RBTL'
+ *  4 int   version      1
+ *  8 int   slots
+ * 12 int   slot size    in bytes
+ * 16 int   robots
+ * 20 int   record size  32
+ * 24 long  latest       sequence of the newest complete slot, 0 before the first
+ * </pre>
+ * followed by the slots; sequence s is in slot s % slots:
+ * <pre>
+ *  0 long  sequence     written first
+ *  8 float tAnim
+ * 12 int   robots
+ * 16 records
+ *  . long  sequence     written last
+ * </pre>
+ * Every robot has a record of 32 bytes:
+ * <pre>
+ *  0 int   id           index of the robot
+ *  4 int   lap          completed laps
+ *  8 float progress     within the lap, from 0 to 1
+ * 12 float speed        along the track
+ * 16 float x, y, z      position
+ * 28 int   rank         0 for the leader
+ * </pre>
+ * A reader copies a slot between reading its last and its first sequence;
+ * when both equal the sequence it wanted, the slot was not overwritten
+ * during the copy.
+ *
+ * A datagram holds the records of at most {@link #packetRobots} robots,
+ * after a header: long sequence, float tAnim, int robots, int first robot,
+ * int count.
+ */
+class Telemetry {
+
+    /** Identifies a telemetry file. */
+    final static int magic = 0x5242544C;
+    final static int version = 1;
+
+    /** Sizes of the parts of the file and the datagrams, in bytes. */
+    final static int headerSize = 32;
+    final static int slotHeaderSize = 16;
+    final static int recordSize = 32;
+    final static int packetHeaderSize = 24;
+
+    /** Offset of the latest sequence in the header. */
+    final static int latestOffset = 24;
+
+    /** Number of slots in the ring. */
+    private final static int slots = 64;
+
+    /** Most robots in one datagram, so it stays well below the datagram limit. */
+    final static int packetRobots = 256;
+
+    /** Number of robots published. */
+    private final int robots;
+
+    /** The mapped file, null if not written. */
+    private MappedByteBuffer file;
+
+    /** Size of a slot in the file. */
+    private final int slotSize;
+
+    /** The socket and the datagram being filled, null if not sent. */
+    private DatagramChannel socket;
+    private ByteBuffer packet;
+
+    /** Sequence number of the last published step. */
+    private long sequence = 0;
+
+    /** Datagrams dropped because the socket was busy or failed. */
+    private int dropped = 0;
+
+    /**
+     * Opens the channels given by the system properties.
+     * Returns null when no channel is given.
+     */
+    public static Telemetry fromProperties(int robots) {
+        String path = System.getProperty("robotrace.telemetry");
+        String udp = System.getProperty("robotrace.telemetryUdp");
+        if(path == null && udp == null)
+            return null;
+        try {
+            return new Telemetry(robots, path, udp);
+        } catch(IOException ex) {
+            System.err.println("No telemetry: " + ex);
+            return null;
+        }
+    }
+
+    /**
+     * Opens the telemetry channels.
+     * @param robots Number of robots.
+     * @param path   The file to map, or null.
+     * @param udp    The host:port to send to, or null.
+     */
+    public Telemetry(int robots, String path, String udp) throws IOException {
+        this.robots = robots;
+        this.slotSize = slotHeaderSize + robots*recordSize + 8;
+        if(path != null) {
+            RandomAccessFile raf = new RandomAccessFile(path, "rw");
+            try {
+                long size = headerSize + (long)slots*slotSize;
+                raf.setLength(size);
+                file = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            } finally {
+                // The mapping stays valid after the file is closed.
+                raf.close();
+            }
+            file.order(ByteOrder.LITTLE_ENDIAN);
+            file.putInt(0, magic);
+            file.putInt(4, version);
+            file.putInt(8, slots);
+            file.putInt(12, slotSize);
+            file.putInt(16, robots);
+            file.putInt(20, recordSize);
+            file.putLong(latestOffset, 0);
+        }
+        if(udp != null) {
+            int colon = udp.lastIndexOf(':');
+            socket = DatagramChannel.open();
+            socket.configureBlocking(false);
+            socket.connect(new InetSocketAddress(udp.substring(0, colon), Integer.parseInt(udp.substring(colon + 1))));
+            packet = ByteBuffer.allocateDirect(packetHeaderSize + packetRobots*recordSize).order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+    /**
+     * Publishes the state of the robots after a simulation step.
+     * @param tAnim       Animation time of the step.
+     * @param robots      The robots.
+     * @param positions   Position of every robot, as x, y, z per robot.
+     * @param leaderboard The ranking of the robots.
+     */
+    public void publish(float tAnim, Robot[] robots, double[] positions, Leaderboard leaderboard) {
+        sequence++;
+        if(file != null) {
+            int slot = headerSize + (int)(sequence % slots)*slotSize;
+            file.putLong(slot, sequence);
+            file.putFloat(slot + 8, tAnim);
+            file.putInt(slot + 12, this.robots);
+            for(int i = 0; i < this.robots; i++)
+                putRecord(file, slot + slotHeaderSize + i*recordSize, i, robots[i], positions, leaderboard);
+            file.putLong(slot + slotHeaderSize + this.robots*recordSize, sequence);
+            file.putLong(latestOffset, sequence);
+        }
+        if(socket != null) {
+            for(int first = 0; first < this.robots; first += packetRobots) {
+                int count = Math.min(packetRobots, this.robots - first);
+                packet.clear();
+                packet.putLong(0, sequence);
+                packet.putFloat(8, tAnim);
+                packet.putInt(12, this.robots);
+                packet.putInt(16, first);
+                packet.putInt(20, count);
+                for(int i = 0; i < count; i++)
+                    putRecord(packet, packetHeaderSize + i*recordSize, first + i, robots[first + i], positions, leaderboard);
+                packet.limit(packetHeaderSize + count*recordSize);
+                try {
+                    if(socket.write(packet) == 0)
+                        dropped++;
+                } catch(IOException ex) {
+                    // Nobody listening yet, the next step tries again.
+                    dropped++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the record of a robot.
+     */
+    private static void putRecord(ByteBuffer out, int at, int id, Robot robot, double[] positions, Leaderboard leaderboard) {
+        out.putInt(at, id);
+        out.putInt(at + 4, robot.laps);
+        out.putFloat(at + 8, robot.progress);
+        out.putFloat(at + 12, (float)robot.speed);
+        out.putFloat(at + 16, (float)positions[3*id]);
+        out.putFloat(at + 20, (float)positions[3*id+1]);
+        out.putFloat(at + 24, (float)positions[3*id+2]);
+        out.putInt(at + 28, leaderboard.rankOf(id));
+    }
+
+    /**
+     * Returns the number of datagrams dropped.
+     */
+    public int getDropped() {
+        return dropped;
+    }
+}
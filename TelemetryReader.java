@@ -0,0 +1,183 @@
+package robotrace;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads the robot states published by {@link Telemetry}, from its file or
+ * from its datagrams. The newest state is kept in the arrays of the reader.
+ *
+ * Run on its own to follow a race:
+ * <pre>
+ * java robotrace.TelemetryReader &lt;file&gt;
+ * java robotrace.TelemetryReader udp:&lt;port&gt;
+ * </pre>
+ */
+public class TelemetryReader {
+
+    /** Sequence number and animation time of the newest state, 0 before the first. */
+    public long sequence = 0;
+    public float tAnim;
+
+    /** Number of robots. */
+    public int robots;
+
+    /** Completed laps, progress within the lap, speed and rank of every robot. */
+    public int[] laps = new int[0];
+    public float[] progress = new float[0];
+    public float[] speed = new float[0];
+    public int[] rank = new int[0];
+
+    /** Position of every robot, as x, y, z per robot. */
+    public float[] positions = new float[0];
+
+    /** The mapped file, null when reading datagrams. */
+    private MappedByteBuffer file;
+
+    /** Layout of the file. */
+    private int slots, slotSize;
+
+    /** Buffer receiving a slot or a datagram. */
+    private ByteBuffer buffer;
+
+    /**
+     * Creates a reader for datagrams, passed to {@link #accept}.
+     */
+    public TelemetryReader() {
+        buffer = ByteBuffer.allocate(Telemetry.packetHeaderSize + Telemetry.packetRobots*Telemetry.recordSize)
+                .order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Creates a reader for a telemetry file, read with {@link #poll}.
+     */
+    public TelemetryReader(String path) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(path, "r");
+        try {
+            file = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+        file.order(ByteOrder.LITTLE_ENDIAN);
+        if(file.getInt(0) != Telemetry.magic || file.getInt(4) != Telemetry.version)
+            throw new IOException("Not a telemetry file: " + path);
+        slots = file.getInt(8);
+        slotSize = file.getInt(12);
+        resize(file.getInt(16));
+        buffer = ByteBuffer.allocate(slotSize).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Reads the newest state from the file.
+     * @return Whether a new state was read.
+     */
+    public boolean poll() {
+        // A slot overwritten while it is copied is skipped, the next one will be newer.
+        long latest = file.getLong(Telemetry.latestOffset);
+        if(latest == sequence)
+            return false;
+        int slot = Telemetry.headerSize + (int)(latest % slots)*slotSize;
+        int end = slotSize - 8;
+        if(file.getLong(slot + end) != latest)
+            return false;
+        ByteBuffer copy = file.duplicate();
+        copy.position(slot).limit(slot + end);
+        buffer.clear();
+        buffer.put(copy);
+        if(file.getLong(slot) != latest)
+            return false;
+        sequence = latest;
+        tAnim = buffer.getFloat(8);
+        readRecords(buffer, Telemetry.slotHeaderSize, buffer.getInt(12));
+        return true;
+    }
+
+    /**
+     * Reads a datagram. Datagrams of older states than the newest one read are ignored.
+     * @return Whether the datagram was read.
+     */
+    public boolean accept(ByteBuffer packet) {
+        packet.order(ByteOrder.LITTLE_ENDIAN);
+        long packetSequence = packet.getLong(0);
+        if(packetSequence < sequence)
+            return false;
+        sequence = packetSequence;
+        tAnim = packet.getFloat(8);
+        if(packet.getInt(12) != robots)
+            resize(packet.getInt(12));
+        int count = packet.getInt(20);
+        readRecords(packet, Telemetry.packetHeaderSize, count);
+        return true;
+    }
+
+    /**
+     * Reads a number of records from a buffer, starting at an offset.
+     */
+    private void readRecords(ByteBuffer in, int at, int count) {
+        for(int end = at + count*Telemetry.recordSize; at < end; at += Telemetry.recordSize) {
+            int id = in.getInt(at);
+            if(id < 0 || id >= robots)
+                continue;
+            laps[id] = in.getInt(at + 4);
+            progress[id] = in.getFloat(at + 8);
+            speed[id] = in.getFloat(at + 12);
+            positions[3*id] = in.getFloat(at + 16);
+            positions[3*id+1] = in.getFloat(at + 20);
+            positions[3*id+2] = in.getFloat(at + 24);
+            rank[id] = in.getInt(at + 28);
+        }
+    }
+
+    /**
+     * Makes room for the given number of robots.
+     */
+    private void resize(int robots) {
+        this.robots = robots;
+        laps = new int[robots];
+        progress = new float[robots];
+        speed = new float[robots];
+        rank = new int[robots];
+        positions = new float[3*robots];
+    }
+
+    /**
+     * Prints the leader of the race about once a second.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        TelemetryReader reader;
+        DatagramChannel socket = null;
+        if(args[0].startsWith("udp:")) {
+            reader = new TelemetryReader();
+            socket = DatagramChannel.open();
+            socket.bind(new InetSocketAddress(Integer.parseInt(args[0].substring(4))));
+        } else {
+            reader = new TelemetryReader(args[0]);
+        }
+        long lastPrint = 0;
+        while(true) {
+            if(socket != null) {
+                reader.buffer.clear();
+                socket.receive(reader.buffer);
+                reader.buffer.flip();
+                reader.accept(reader.buffer);
+            } else if(!reader.poll()) {
+                Thread.sleep(1);
+                continue;
+            }
+            if(System.currentTimeMillis() - lastPrint >= 1000 && reader.robots > 0) {
+                lastPrint = System.currentTimeMillis();
+                for(int id = 0; id < reader.robots; id++) {
+                    if(reader.rank[id] == 0)
+                        System.out.printf("%.1fs step %d: robot %d leads, lap %d %3.0f%% at %.2f%n", reader.tAnim,
+                                reader.sequence, id, reader.laps[id]+1, reader.progress[id]*100, reader.speed[id]);
+                }
+            }
+        }
+    }
+}
@@ -9,82 +9,160 @@ import java.awt.Color;
 /**
  * Implementation of the terrain.
  */
+import com.jogamp.common.nio.Buffers;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import static javax.media.opengl.GL.GL_FRONT;
-import static javax.media.opengl.fixedfunc.GLLightingFunc.GL_DIFFUSE;
-import static javax.media.opengl.fixedfunc.GLLightingFunc.GL_SPECULAR;
-class Terrain {
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.concurrent.RecursiveAction;
+import static javax.media.opengl.GL.GL_ARRAY_BUFFER;
+import static javax.media.opengl.GL.GL_ELEMENT_ARRAY_BUFFER;
+import static javax.media.opengl.GL.GL_FLOAT;
+import static javax.media.opengl.GL.GL_STATIC_DRAW;
+import static javax.media.opengl.GL.GL_TEXTURE0;
+import static javax.media.opengl.GL.GL_TRIANGLES;
+import static javax.media.opengl.GL.GL_UNSIGNED_INT;
+import static javax.media.opengl.fixedfunc.GLPointerFunc.GL_NORMAL_ARRAY;
+import static javax.media.opengl.fixedfunc.GLPointerFunc.GL_TEXTURE_COORD_ARRAY;
+import static javax.media.opengl.fixedfunc.GLPointerFunc.GL_VERTEX_ARRAY;
+class Terrain implements TransparentPass.Item {
     int maxX = 20;
     int maxY = 20;
     int minY = -20;
     int minX = -20;
+    
+    /** Distance between two vertices of the baked grid. */
+    private final static float gridStep = 0.25f;
+    
+    /** Directions and distance over which the horizon is searched for ambient occlusion. */
+    private final static int horizonDirections = 8;
+    private final static int horizonSteps = 12;
+    private final static float horizonRadius = 4f;
+    
+    /** Rows of the grid below which a bake task runs sequentially. */
+    private final static int bakeThreshold = 8;
+    
+    /** Floats per baked vertex: position, normal, texture coordinate and occlusion. */
+    private final static int vertexFloats = 3 + 3 + 2;
+    
+    /** Number of vertices along x and y. */
+    private final int columns, rows;
+    
+    /** The baked vertices, uploaded once. */
+    private final FloatBuffer vertices;
+    
+    /** The vertex and index buffers, and the 1D texture of the height colors. */
+    private int vertexBuffer, indexBuffer, texture;
+    
+    /** The recorded water plane. */
+    private final CommandList water = new CommandList(new CommandList.Recording() {
+        @Override
+        public void record(GL2 gl) {
+            drawWater(gl);
+        }
+    });
+    
     /**
-     * Can be used to set up a display list.
+     * Bakes the terrain: positions, analytic normals and ambient occlusion.
      */
     public Terrain() {
-        
+        columns = Math.round((maxX - minX)/gridStep) + 1;
+        rows = Math.round((maxY - minY)/gridStep) + 1;
+        vertices = Buffers.newDirectFloatBuffer(vertexFloats*columns*rows);
+        Workers.pool.invoke(new Bake(0, rows));
     }
-
+    
     /**
-     * Draws the terrain.
+     * Uploads the baked terrain and creates its texture.
+     * Must be called once with a current context before drawing.
      */
-    public void draw(GL2 gl, GLU glu, GLUT glut) {
+    public void initialize(GL2 gl) {
         //color array for the 1d texture
         Color[] colors = {Color.BLUE, Color.YELLOW, Color.GREEN};
-        //bind the int returned to the 1d texture
-        gl.glBindTexture(gl.GL_TEXTURE_1D, create1DTexture(gl, colors));
-        //enable and set required parameters
-        gl.glEnable(gl.GL_TEXTURE_1D);
-        gl.glTexEnvi(gl.GL_TEXTURE_ENV, gl.GL_TEXTURE_ENV_MODE, gl.GL_REPLACE);
-        gl.glTexParameteri(gl.GL_TEXTURE_1D, gl.GL_TEXTURE_MIN_FILTER, gl.GL_LINEAR);
-        gl.glTexParameteri(gl.GL_TEXTURE_1D, gl.GL_TEXTURE_MAG_FILTER, gl.GL_LINEAR);
-        //here we start to draw the terrain
-        for(int x = minX; x <= maxX; x++) {
-            gl.glBegin(gl.GL_TRIANGLE_STRIP);
-            for(float y = minY; y <= maxY; y+=0.5) {
-                //set normals pointing up
-                gl.glNormal3d(Vector.Z.x, Vector.Z.y, Vector.Z.z);
-                //set texture coordinats and get the verteces
-                float z = heightAt(x, y);
-                float t = 0;
-                if(z < 0) {
-                    t = 0.2f;
-                }
-                else if( z > 0.5) {
-                    t = 0.8f;
-                }
-                else {
-                    t = 0.5f;
-                }
-                gl.glTexCoord1f(t);
-                gl.glVertex3d(x, y, z);
-                
-                if(x != maxX) {
-                    z = heightAt((float)(x + 1), y);
-                    t = 0;
-                    if(z < 0) {
-                        t = 0.2f;
-                    }
-                    else if( z > 0.5) {
-                        t = 0.8f;
-                    }
-                    else {
-                        t = 0.5f;
-                    }
-                    gl.glTexCoord1f(t);
-                    gl.glVertex3d(x + 1, y, z);
-                }
+        texture = create1DTexture(gl, colors);
+        
+        // Two triangles between every four neighbouring vertices.
+        IntBuffer indices = Buffers.newDirectIntBuffer(6*(columns-1)*(rows-1));
+        for(int row = 0; row < rows-1; row++) {
+            for(int column = 0; column < columns-1; column++) {
+                int v = row*columns + column;
+                indices.put(v).put(v+1).put(v+columns+1);
+                indices.put(v).put(v+columns+1).put(v+columns);
             }
-            gl.glEnd();
         }
-        //disable 1D textures after we have drawn them
-        gl.glDisable(gl.GL_TEXTURE_1D);
+        indices.flip();
+        
+        int[] buffers = new int[2];
+        gl.glGenBuffers(2, buffers, 0);
+        vertexBuffer = buffers[0];
+        indexBuffer = buffers[1];
+        gl.glBindBuffer(GL_ARRAY_BUFFER, vertexBuffer);
+        gl.glBufferData(GL_ARRAY_BUFFER, vertices.capacity()*4L, vertices, GL_STATIC_DRAW);
+        gl.glBindBuffer(GL_ARRAY_BUFFER, 0);
+        gl.glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, indexBuffer);
+        gl.glBufferData(GL_ELEMENT_ARRAY_BUFFER, indices.capacity()*4L, indices, GL_STATIC_DRAW);
+        gl.glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, 0);
+    }
+
+    /**
+     * Draws the terrain. The water is drawn separately, after all opaque geometry.
+     */
+    public void draw(GL2 gl, GLU glu, GLUT glut) {
+        //bind the 1d texture, on the texture unit the shader reads it from
+        gl.glActiveTexture(GL_TEXTURE0 + Lighting.texture1DUnit);
+        gl.glBindTexture(gl.GL_TEXTURE_1D, texture);
+        Lighting.setTextureMode(gl, Lighting.texture1D);
         
+        // The vertices hold the position, normal, and the texture coordinate with the occlusion.
+        gl.glBindBuffer(GL_ARRAY_BUFFER, vertexBuffer);
+        gl.glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, indexBuffer);
+        gl.glEnableClientState(GL_VERTEX_ARRAY);
+        gl.glEnableClientState(GL_NORMAL_ARRAY);
+        gl.glEnableClientState(GL_TEXTURE_COORD_ARRAY);
+        gl.glVertexPointer(3, GL_FLOAT, vertexFloats*4, 0);
+        gl.glNormalPointer(GL_FLOAT, vertexFloats*4, 3*4);
+        gl.glTexCoordPointer(2, GL_FLOAT, vertexFloats*4, 6*4);
+        gl.glDrawElements(GL_TRIANGLES, 6*(columns-1)*(rows-1), GL_UNSIGNED_INT, 0);
+        gl.glDisableClientState(GL_VERTEX_ARRAY);
+        gl.glDisableClientState(GL_NORMAL_ARRAY);
+        gl.glDisableClientState(GL_TEXTURE_COORD_ARRAY);
+        gl.glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, 0);
+        gl.glBindBuffer(GL_ARRAY_BUFFER, 0);
         
-        float[] grey = {0.5f, 0.5f, 0.5f, 0.3f};
-        gl.glMaterialfv(GL_FRONT, GL_DIFFUSE, grey, 0);
-        gl.glMaterialfv(GL_FRONT, GL_SPECULAR, grey, 0);
+        gl.glActiveTexture(GL_TEXTURE0);
+        Lighting.setTextureMode(gl, Lighting.noTexture);
+    }
+
+    /**
+     * Returns the squared distance from the eye to the nearest point of the water.
+     */
+    @Override
+    public double distance2(Vector eye) {
+        double dx = Math.max(0, Math.max(minX - eye.x(), eye.x() - maxX));
+        double dy = Math.max(0, Math.max(minY - eye.y(), eye.y() - maxY));
+        return dx*dx + dy*dy + eye.z()*eye.z();
+    }
+
+    /**
+     * Draws the semi-transparent water at sea level.
+     */
+    @Override
+    public void drawTransparent(GL2 gl) {
+        Lighting.setMaterial(gl, Material.WATER);
+        water.call(gl);
+    }
+    
+    /**
+     * Deletes the recorded water, before the context is disposed.
+     */
+    public void dispose(GL2 gl) {
+        water.delete(gl);
+    }
+    
+    /**
+     * Draws the water plane, recorded into {@link #water}.
+     */
+    private void drawWater(GL2 gl) {
         gl.glBegin(GL2.GL_TRIANGLE_STRIP);
         
         
@@ -110,6 +188,91 @@ class Terrain {
         return (float) (0.6 * Math.cos(0.3 * x + 0.2 * y) + 0.4 * Math.cos(x - 0.5 * y));
     }
     
+    /**
+     * Computes the normal of the terrain at (x, y) from the derivatives of {@link #heightAt}.
+     */
+    public Vector normalAt(float x, float y) {
+        double a = Math.sin(0.3 * x + 0.2 * y);
+        double b = Math.sin(x - 0.5 * y);
+        double dx = -0.6 * 0.3 * a - 0.4 * b;
+        double dy = -0.6 * 0.2 * a + 0.4 * 0.5 * b;
+        return new Vector(-dx, -dy, 1).normalized();
+    }
+    
+    /**
+     * Computes how much of the sky is visible from (x, y), 1 on open
+     * ground and less in valleys, from the highest horizon in a number of
+     * directions (horizon based ambient occlusion).
+     */
+    float occlusionAt(float x, float y) {
+        float z = heightAt(x, y);
+        double occluded = 0;
+        for(int d = 0; d < horizonDirections; d++) {
+            double angle = 2*Math.PI*d/horizonDirections;
+            double cos = Math.cos(angle), sin = Math.sin(angle);
+            
+            // The sine of the highest elevation angle along this direction.
+            double horizon = 0;
+            for(int step = 1; step <= horizonSteps; step++) {
+                double distance = horizonRadius*step/horizonSteps;
+                double rise = heightAt((float)(x + distance*cos), (float)(y + distance*sin)) - z;
+                if(rise > 0)
+                    horizon = Math.max(horizon, rise/Math.sqrt(rise*rise + distance*distance));
+            }
+            occluded += horizon;
+        }
+        return (float)(1 - occluded/horizonDirections);
+    }
+    
+    /**
+     * Bakes a range of rows of the grid, splitting large ranges over the pool.
+     */
+    private class Bake extends RecursiveAction {
+        
+        private final static long serialVersionUID = 1L;
+        private final int from, to;
+        
+        Bake(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+        
+        @Override
+        protected void compute() {
+            if(to - from > bakeThreshold) {
+                int half = (from + to)/2;
+                invokeAll(new Bake(from, half), new Bake(half, to));
+                return;
+            }
+            for(int row = from; row < to; row++) {
+                float y = minY + row*gridStep;
+                for(int column = 0; column < columns; column++) {
+                    float x = minX + column*gridStep;
+                    float z = heightAt(x, y);
+                    Vector n = normalAt(x, y);
+                    
+                    // Color by height: water, sand or grass.
+                    float t;
+                    if(z < 0) {
+                        t = 0.2f;
+                    }
+                    else if( z > 0.5) {
+                        t = 0.8f;
+                    }
+                    else {
+                        t = 0.5f;
+                    }
+                    
+                    // Every task writes its own rows, using absolute positions in the shared buffer.
+                    int i = vertexFloats*(row*columns + column);
+                    vertices.put(i, x).put(i+1, y).put(i+2, z);
+                    vertices.put(i+3, (float)n.x()).put(i+4, (float)n.y()).put(i+5, (float)n.z());
+                    vertices.put(i+6, t).put(i+7, occlusionAt(x, y));
+                }
+            }
+        }
+    }
+    
     /**
     * Creates a new 1D - texture.
     * @param gl
@@ -0,0 +1,248 @@
+package robotrace;
+
+/**
+ * Answers where a point lies relative to a race track: the nearest point
+ * on the centre line, the distance along the track and across it, and
+ * the lane.
+ *
+ * The centre line is a polyline through the middle of the track. Its
+ * segments are stored in a bounding volume hierarchy of axis aligned
+ * boxes in the ground plane, so a query only visits the few segments
+ * near the point. Queries write into a {@link Result}, which also holds
+ * the traversal stack, so they allocate nothing and can run in parallel
+ * as long as every thread uses its own result.
+ */
+class TrackQuery {
+
+    /** Maximum number of segments in a leaf of the hierarchy. */
+    private final static int leafSize = 4;
+
+    /** Maximum depth of the hierarchy, ample for any number of samples. */
+    private final static int maxDepth = 64;
+
+    /**
+     * The answer to a query, reused between queries.
+     */
+    static class Result {
+        /** Horizontal distance to the centre line. */
+        double distance;
+
+        /** Distance along the track of the nearest point, as returned by {@link RaceTrack#getArcLength}. */
+        double arcLength;
+
+        /** Progress (t) of the nearest point, 0 <= progress <= 1. */
+        double progress;
+
+        /** Signed distance across the track, positive towards the outer lanes. */
+        double offset;
+
+        /** The lane the point lies in, or -1 when it lies beside the track. */
+        int lane;
+
+        /** Nodes still to visit during a query. */
+        private final int[] stack = new int[maxDepth];
+    }
+
+    /** The centre line, stored as x, y per sample. */
+    private final double[] middle;
+
+    /** Unit vector across the track towards the outer lanes, stored as x, y per sample. */
+    private final double[] side;
+
+    /** Distance along the track of every sample. */
+    private final double[] arcLength;
+
+    /** Number of samples, one more than the number of segments. */
+    private final int samples;
+
+    /** Width of a lane and the number of lanes. */
+    private final double laneWidth;
+    private final int laneCount;
+
+    /** Bounds of every node, stored as min x, min y, max x, max y. */
+    private final double[] bounds;
+
+    /** For a leaf the first entry in segments, otherwise the right child (the left child follows the node). */
+    private final int[] first;
+
+    /** Number of segments of a leaf, 0 for other nodes. */
+    private final int[] count;
+
+    /** Segment numbers ordered so that every leaf owns a consecutive range. */
+    private final int[] segments;
+
+    /** The number of nodes built so far. */
+    private int nodes = 0;
+
+    /**
+     * Builds the hierarchy over a sampled centre line.
+     * @param middle    The centre line, x, y per sample.
+     * @param side      Direction across the track towards the outer lanes, x, y per sample.
+     * @param arcLength Distance along the track of every sample.
+     * @param laneWidth Width of one lane.
+     * @param laneCount Number of lanes.
+     */
+    public TrackQuery(double[] middle, double[] side, double[] arcLength, double laneWidth, int laneCount) {
+        this.middle = middle;
+        this.side = side;
+        this.arcLength = arcLength;
+        this.samples = arcLength.length;
+        this.laneWidth = laneWidth;
+        this.laneCount = laneCount;
+
+        int segmentCount = samples - 1;
+        segments = new int[segmentCount];
+        for(int i = 0; i < segmentCount; i++)
+            segments[i] = i;
+        bounds = new double[4*2*segmentCount];
+        first = new int[2*segmentCount];
+        count = new int[2*segmentCount];
+        build(0, segmentCount);
+    }
+
+    /**
+     * Builds the node for segments[from..to), splitting at the median of
+     * the segment centres along the longest side of the bounds.
+     */
+    private int build(int from, int to) {
+        int node = nodes++;
+        double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+        for(int i = from; i < to; i++) {
+            int s = segments[i];
+            for(int k = s; k <= s + 1; k++) {
+                minX = Math.min(minX, middle[2*k]);
+                minY = Math.min(minY, middle[2*k+1]);
+                maxX = Math.max(maxX, middle[2*k]);
+                maxY = Math.max(maxY, middle[2*k+1]);
+            }
+        }
+        bounds[4*node] = minX;
+        bounds[4*node+1] = minY;
+        bounds[4*node+2] = maxX;
+        bounds[4*node+3] = maxY;
+
+        if(to - from <= leafSize) {
+            first[node] = from;
+            count[node] = to - from;
+            return node;
+        }
+
+        int axis = maxX - minX >= maxY - minY ? 0 : 1;
+        int half = (from + to)/2;
+        select(from, to, half, axis);
+        build(from, half);
+        first[node] = build(half, to);
+        return node;
+    }
+
+    /**
+     * Partially sorts segments[from..to) so that the segment at index k
+     * has its centre at the median along the axis (quickselect).
+     */
+    private void select(int from, int to, int k, int axis) {
+        int lo = from, hi = to - 1;
+        while(lo < hi) {
+            double pivot = centre(segments[(lo + hi)/2], axis);
+            int i = lo, j = hi;
+            while(i <= j) {
+                while(centre(segments[i], axis) < pivot)
+                    i++;
+                while(centre(segments[j], axis) > pivot)
+                    j--;
+                if(i <= j) {
+                    int swap = segments[i];
+                    segments[i++] = segments[j];
+                    segments[j--] = swap;
+                }
+            }
+            if(k <= j)
+                hi = j;
+            else if(k >= i)
+                lo = i;
+            else
+                return;
+        }
+    }
+
+    /**
+     * Returns twice the centre of a segment along an axis.
+     */
+    private double centre(int segment, int axis) {
+        return middle[2*segment+axis] + middle[2*segment+2+axis];
+    }
+
+    /**
+     * Finds the point on the centre line nearest to (x, y).
+     * @param out   Receives the answer.
+     */
+    public void query(double x, double y, Result out) {
+        double best = Double.POSITIVE_INFINITY;
+        int bestSegment = 0;
+        double bestFraction = 0;
+
+        int[] stack = out.stack;
+        int top = 0;
+        stack[top++] = 0;
+        while(top > 0) {
+            int node = stack[--top];
+            if(boxDistance2(node, x, y) >= best)
+                continue;
+
+            if(count[node] > 0) {
+                for(int i = first[node]; i < first[node] + count[node]; i++) {
+                    int s = segments[i];
+                    double ax = middle[2*s], ay = middle[2*s+1];
+                    double dx = middle[2*s+2]-ax, dy = middle[2*s+3]-ay;
+
+                    // Project the point on the segment.
+                    double length2 = dx*dx+dy*dy;
+                    double f = length2 > 0 ? ((x-ax)*dx+(y-ay)*dy)/length2 : 0;
+                    f = Math.max(0, Math.min(1, f));
+                    double px = ax+f*dx-x, py = ay+f*dy-y;
+                    double distance2 = px*px+py*py;
+                    if(distance2 < best) {
+                        best = distance2;
+                        bestSegment = s;
+                        bestFraction = f;
+                    }
+                }
+            } else {
+                // Visit the nearer child first, it is pushed last.
+                int left = node + 1, right = first[node];
+                if(boxDistance2(left, x, y) < boxDistance2(right, x, y)) {
+                    stack[top++] = right;
+                    stack[top++] = left;
+                } else {
+                    stack[top++] = left;
+                    stack[top++] = right;
+                }
+            }
+        }
+
+        int s = bestSegment;
+        double f = bestFraction;
+        out.distance = Math.sqrt(best);
+        out.arcLength = arcLength[s] + f*(arcLength[s+1]-arcLength[s]);
+        out.progress = (s + f)/(samples - 1);
+
+        // The side of the track follows from the direction across it.
+        double cx = middle[2*s] + f*(middle[2*s+2]-middle[2*s]);
+        double cy = middle[2*s+1] + f*(middle[2*s+3]-middle[2*s+1]);
+        double sx = side[2*s] + f*(side[2*s+2]-side[2*s]);
+        double sy = side[2*s+1] + f*(side[2*s+3]-side[2*s+1]);
+        out.offset = (x-cx)*sx + (y-cy)*sy >= 0 ? out.distance : -out.distance;
+
+        int lane = (int)Math.floor((out.offset + laneCount*laneWidth/2)/laneWidth);
+        out.lane = lane >= 0 && lane < laneCount ? lane : -1;
+    }
+
+    /**
+     * Returns the squared distance from (x, y) to the bounds of a node.
+     */
+    private double boxDistance2(int node, double x, double y) {
+        double dx = Math.max(0, Math.max(bounds[4*node]-x, x-bounds[4*node+2]));
+        double dy = Math.max(0, Math.max(bounds[4*node+1]-y, y-bounds[4*node+3]));
+        return dx*dx+dy*dy;
+    }
+}
@@ -0,0 +1,78 @@
+package robotrace;
+
+import java.util.Arrays;
+import static javax.media.opengl.GL.GL_BLEND;
+import javax.media.opengl.GL2;
+
+/**
+ * Collects the transparent geometry of a view and draws it after all
+ * opaque geometry.
+ *
+ * The opaque pass runs with blending off and depth writes on. This pass
+ * then draws the transparent items from far to near with blending on and
+ * depth writes off, so they blend correctly with each other while hidden
+ * parts are still rejected by the depth test.
+ */
+class TransparentPass {
+
+    /**
+     * Geometry that is drawn blended over the opaque scene.
+     */
+    interface Item {
+        /** Returns the squared distance from the eye to the item, used to sort the items. */
+        double distance2(Vector eye);
+
+        /** Draws the item, called with blending on and depth writes off. */
+        void drawTransparent(GL2 gl);
+    }
+
+    /** The items of the current view and their squared distances. */
+    private Item[] items = new Item[8];
+    private double[] keys = new double[8];
+    private int count = 0;
+
+    /**
+     * Adds an item to the current view.
+     * @param eye   The camera position of the view.
+     */
+    public void add(Item item, Vector eye) {
+        if(count == items.length) {
+            items = Arrays.copyOf(items, 2*count);
+            keys = Arrays.copyOf(keys, 2*count);
+        }
+        items[count] = item;
+        keys[count] = item.distance2(eye);
+        count++;
+    }
+
+    /**
+     * Draws the collected items from far to near and empties the pass.
+     */
+    public void draw(GL2 gl) {
+        if(count == 0)
+            return;
+
+        // Insertion sort, there are only a few items.
+        for(int i = 1; i < count; i++) {
+            Item item = items[i];
+            double key = keys[i];
+            int j = i - 1;
+            for(; j >= 0 && keys[j] < key; j--) {
+                items[j+1] = items[j];
+                keys[j+1] = keys[j];
+            }
+            items[j+1] = item;
+            keys[j+1] = key;
+        }
+
+        gl.glEnable(GL_BLEND);
+        gl.glDepthMask(false);
+        for(int i = 0; i < count; i++) {
+            items[i].drawTransparent(gl);
+            items[i] = null;
+        }
+        gl.glDepthMask(true);
+        gl.glDisable(GL_BLEND);
+        count = 0;
+    }
+}
@@ -0,0 +1,486 @@
+package robotrace;
+
+import com.jogamp.common.nio.Buffers;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import static javax.media.opengl.GL.GL_ARRAY_BUFFER;
+import static javax.media.opengl.GL.GL_FLOAT;
+import static javax.media.opengl.GL.GL_RGBA32F;
+import static javax.media.opengl.GL.GL_STATIC_DRAW;
+import static javax.media.opengl.GL.GL_TEXTURE0;
+import static javax.media.opengl.GL.GL_TRIANGLES;
+import static javax.media.opengl.GL2ES2.GL_STREAM_DRAW;
+import static javax.media.opengl.GL2GL3.GL_TEXTURE_BUFFER;
+import javax.media.opengl.GL2;
+
+/**
+ * Draws the trees of a track with instanced draw calls.
+ *
+ * Both tree variants (three stacked cones, or eight spheres on a trunk)
+ * are baked once into a vertex buffer, for a high and a low level of
+ * detail. A baked vertex stores its position and normal as a part that
+ * scales with the width of the tree and a part that scales with its
+ * height, so one mesh serves every tree size. The trees a view can see
+ * are written into a texture buffer grouped by mesh, which the vertex
+ * shader reads through gl_InstanceID, after which every group is one
+ * glDrawArraysInstanced call.
+ *
+ * For occlusion culling the trees are grouped into square tiles, whose
+ * bounding boxes are tested with an {@link OcclusionCuller}.
+ */
+class TreeRenderer {
+
+    /** The tree variants. */
+    final static int coneTree = 0;
+    final static int sphereTree = 1;
+
+    /** Floats per baked vertex: width and height parts of position and normal, and the material id. */
+    private final static int vertexFloats = 3 + 3 + 3 + 3 + 1;
+
+    /** Floats per instance in the texture buffer: x, y, z, width, then height and padding. */
+    private final static int instanceFloats = 8;
+
+    /** Side of the tiles the trees are grouped in for occlusion culling. */
+    private final static float tileSize = 5f;
+
+    /** Texture unit of the instance buffer. */
+    private final static int instanceUnit = 2;
+
+    /** Vertex shader placing the baked vertices at the instance read from the texture buffer. */
+    private final static String vertexShader =
+        "#version 150 compatibility\n" +
+        "in vec3 widthPosition;\n" +
+        "in vec3 heightPosition;\n" +
+        "in vec3 widthNormal;\n" +
+        "in vec3 heightNormal;\n" +
+        "in float material;\n" +
+        "uniform samplerBuffer instances;\n" +
+        "uniform int firstInstance;\n" +
+        "out vec3 position;\n" +
+        "out vec3 normal;\n" +
+        "flat out int materialId;\n" +
+        "void main() {\n" +
+        "    int i = 2*(firstInstance + gl_InstanceID);\n" +
+        "    vec4 placement = texelFetch(instances, i);\n" +
+        "    float width = placement.w;\n" +
+        "    float height = texelFetch(instances, i + 1).x;\n" +
+        "    vec4 world = vec4(placement.xyz + width*widthPosition + height*heightPosition, 1.0);\n" +
+        "    position = (gl_ModelViewMatrix*world).xyz;\n" +
+        "    normal = gl_NormalMatrix*(width*widthNormal + height*heightNormal);\n" +
+        "    materialId = int(material);\n" +
+        "    gl_Position = gl_ModelViewProjectionMatrix*world;\n" +
+        "}\n";
+
+    /** Fragment shader, lit like the rest of the scene. */
+    private final static String fragmentShader =
+        "#version 150 compatibility\n" +
+        Lighting.common +
+        "in vec3 position;\n" +
+        "in vec3 normal;\n" +
+        "flat in int materialId;\n" +
+        "void main() {\n" +
+        "    gl_FragColor = shade(materialId, position, gl_FrontFacing ? normal : -normal);\n" +
+        "}\n";
+
+    /** Names of the vertex attributes, bound to locations 0 to 4. */
+    private final static String[] attributes = {"widthPosition", "heightPosition", "widthNormal", "heightNormal", "material"};
+
+    /** The tree program, the one for drawing shadow casters, and their uniforms. */
+    private static int program;
+    private static int depthProgram;
+    private static int firstInstanceLocation;
+    private static int depthFirstInstanceLocation;
+
+    /** The baked meshes and the instance buffer with its texture. */
+    private static int meshBuffer;
+    private static int instanceBuffer;
+    private static int instanceTexture;
+
+    /** First vertex and vertex count of each mesh, indexed by detail * 2 + variant. */
+    private final static int[] meshFirst = new int[4];
+    private final static int[] meshCount = new int[4];
+
+    /** Position, width and height of the trees, 5 floats per tree. */
+    private final float[] trees;
+
+    /** The variant of each tree. */
+    private final byte[] variants;
+
+    /** The mesh group of each tree in the current view, or -1 when it is not visible. */
+    private final byte[] groups;
+
+    /** Instance data of the visible trees, reused every view. */
+    private final FloatBuffer instanceData;
+
+    /** Number of visible trees and first instance per group. */
+    private final int[] groupCount = new int[4];
+    private final int[] groupFirst = new int[4];
+
+    /** The next free instance per group while writing the instance data. */
+    private final int[] groupNext = new int[4];
+
+    /** The tile of every tree, built on the first draw once all trees are placed. */
+    private int[] tileOf;
+
+    /** Bounds of every tile: min x, y, z and max x, y, z. */
+    private float[] tileBounds;
+
+    /** Whether a tile was visible at its last test, and whether it has trees in the frustum of the current view. */
+    private boolean[] tileVisible;
+    private boolean[] tileInView;
+
+    /**
+     * Creates room for the given number of trees, to be filled with {@link #set}.
+     */
+    TreeRenderer(int count) {
+        trees = new float[5*count];
+        variants = new byte[count];
+        groups = new byte[count];
+        instanceData = Buffers.newDirectFloatBuffer(Math.max(1, instanceFloats*count));
+    }
+
+    /**
+     * Places a tree.
+     */
+    void set(int i, double x, double y, double z, float width, float height, byte variant) {
+        trees[5*i] = (float)x;
+        trees[5*i+1] = (float)y;
+        trees[5*i+2] = (float)z;
+        trees[5*i+3] = width;
+        trees[5*i+4] = height;
+        variants[i] = variant;
+    }
+
+    /**
+     * Returns the number of trees.
+     */
+    public int size() {
+        return variants.length;
+    }
+
+    /**
+     * Compiles the tree program and bakes the meshes.
+     * Must be called once after {@link Lighting#initialize}.
+     */
+    public static void initialize(GL2 gl) {
+        program = Lighting.createProgram(gl, vertexShader, fragmentShader, attributes);
+        depthProgram = Lighting.createProgram(gl, vertexShader, Lighting.depthFragmentShader, attributes);
+        firstInstanceLocation = gl.glGetUniformLocation(program, "firstInstance");
+        depthFirstInstanceLocation = gl.glGetUniformLocation(depthProgram, "firstInstance");
+        for(int p : new int[] {program, depthProgram}) {
+            gl.glUseProgram(p);
+            gl.glUniform1i(gl.glGetUniformLocation(p, "instances"), instanceUnit);
+        }
+        gl.glUseProgram(0);
+
+        // Bake both variants at both levels of detail into one buffer.
+        FloatBuffer vertices = Buffers.newDirectFloatBuffer(vertexFloats*(
+                meshSize(RobotRace.highDetail) + meshSize(RobotRace.lowDetail)));
+        for(int detail = 0; detail < 2; detail++) {
+            int slices = detail == 0 ? RobotRace.highDetail : RobotRace.lowDetail;
+            for(int variant = coneTree; variant <= sphereTree; variant++) {
+                int mesh = detail*2 + variant;
+                meshFirst[mesh] = vertices.position()/vertexFloats;
+                bakeTrunk(vertices, slices);
+                if(variant == coneTree)
+                    bakeCones(vertices, slices);
+                else
+                    bakeSpheres(vertices, slices);
+                meshCount[mesh] = vertices.position()/vertexFloats - meshFirst[mesh];
+            }
+        }
+        vertices.flip();
+
+        int[] buffers = new int[2];
+        gl.glGenBuffers(2, buffers, 0);
+        meshBuffer = buffers[0];
+        instanceBuffer = buffers[1];
+        gl.glBindBuffer(GL_ARRAY_BUFFER, meshBuffer);
+        gl.glBufferData(GL_ARRAY_BUFFER, vertices.limit()*4L, vertices, GL_STATIC_DRAW);
+        gl.glBindBuffer(GL_ARRAY_BUFFER, 0);
+
+        // The instance buffer is read as a texture of one vec4 per texel.
+        gl.glBindBuffer(GL_TEXTURE_BUFFER, instanceBuffer);
+        gl.glBufferData(GL_TEXTURE_BUFFER, instanceFloats*4, null, GL_STREAM_DRAW);
+        gl.glBindBuffer(GL_TEXTURE_BUFFER, 0);
+        int[] textures = new int[1];
+        gl.glGenTextures(1, textures, 0);
+        instanceTexture = textures[0];
+        gl.glBindTexture(GL_TEXTURE_BUFFER, instanceTexture);
+        gl.glTexBuffer(GL_TEXTURE_BUFFER, GL_RGBA32F, instanceBuffer);
+        gl.glBindTexture(GL_TEXTURE_BUFFER, 0);
+    }
+
+    /**
+     * Groups the trees into tiles and computes the bounds of the tiles.
+     */
+    private void buildTiles() {
+        float minX = Float.POSITIVE_INFINITY, minY = Float.POSITIVE_INFINITY;
+        float maxX = Float.NEGATIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY;
+        for(int i = 0; i < variants.length; i++) {
+            minX = Math.min(minX, trees[5*i]);
+            minY = Math.min(minY, trees[5*i+1]);
+            maxX = Math.max(maxX, trees[5*i]);
+            maxY = Math.max(maxY, trees[5*i+1]);
+        }
+        int columns = variants.length == 0 ? 0 : (int)((maxX - minX)/tileSize) + 1;
+        int rows = variants.length == 0 ? 0 : (int)((maxY - minY)/tileSize) + 1;
+        
+        tileOf = new int[variants.length];
+        tileBounds = new float[6*columns*rows];
+        for(int t = 0; t < columns*rows; t++) {
+            Arrays.fill(tileBounds, 6*t, 6*t + 3, Float.POSITIVE_INFINITY);
+            Arrays.fill(tileBounds, 6*t + 3, 6*t + 6, Float.NEGATIVE_INFINITY);
+        }
+        for(int i = 0; i < variants.length; i++) {
+            float x = trees[5*i], y = trees[5*i+1], z = trees[5*i+2];
+            float width = trees[5*i+3], height = trees[5*i+4];
+            int t = (int)((y - minY)/tileSize)*columns + (int)((x - minX)/tileSize);
+            tileOf[i] = t;
+            // The crown reaches 2.1 widths out, and up to the top cone at 2.65 heights.
+            tileBounds[6*t] = Math.min(tileBounds[6*t], x - 2.1f*width);
+            tileBounds[6*t+1] = Math.min(tileBounds[6*t+1], y - 2.1f*width);
+            tileBounds[6*t+2] = Math.min(tileBounds[6*t+2], z);
+            tileBounds[6*t+3] = Math.max(tileBounds[6*t+3], x + 2.1f*width);
+            tileBounds[6*t+4] = Math.max(tileBounds[6*t+4], y + 2.1f*width);
+            tileBounds[6*t+5] = Math.max(tileBounds[6*t+5], z + 2.65f*height + 1.4f*width);
+        }
+        tileVisible = new boolean[columns*rows];
+        tileInView = new boolean[columns*rows];
+    }
+
+    /**
+     * Draws the trees the view can see, with one instanced draw call per mesh.
+     * Leaves the program of {@link Lighting} active again.
+     * @param frustum   The viewing volume, trees outside of it are skipped.
+     * @param eye       The camera position, distant trees use the low detail meshes.
+     * @param occlusion The tiles of this view hidden at their last test are skipped, or null to draw all tiles.
+     * @return The number of trees drawn.
+     */
+    public int draw(GL2 gl, Frustum frustum, Vector eye, OcclusionCuller occlusion) {
+        if(tileOf == null)
+            buildTiles();
+        if(occlusion != null) {
+            for(int t = 0; t < tileVisible.length; t++) {
+                tileVisible[t] = occlusion.isVisible(t);
+                tileInView[t] = false;
+            }
+        }
+        
+        // Sort the visible trees into the mesh groups, counting them first.
+        double lodDistance2 = RobotRace.lodDistance*RobotRace.lodDistance;
+        for(int mesh = 0; mesh < 4; mesh++)
+            groupCount[mesh] = 0;
+        for(int i = 0; i < variants.length; i++) {
+            float x = trees[5*i], y = trees[5*i+1], z = trees[5*i+2];
+            float width = trees[5*i+3], height = trees[5*i+4];
+            // The crown reaches about twice the trunk height.
+            if(!frustum.containsSphere(x, y, z + height, height + 2.1*width)) {
+                groups[i] = -1;
+                continue;
+            }
+            // Hidden tiles are still tested again, to find out when they come into sight.
+            if(occlusion != null) {
+                tileInView[tileOf[i]] = true;
+                if(!tileVisible[tileOf[i]]) {
+                    groups[i] = -1;
+                    continue;
+                }
+            }
+            double dx = x - eye.x(), dy = y - eye.y(), dz = z - eye.z();
+            int detail = dx*dx + dy*dy + dz*dz > lodDistance2 ? 1 : 0;
+            groups[i] = (byte)(detail*2 + variants[i]);
+            groupCount[groups[i]]++;
+        }
+        int visible = 0;
+        for(int mesh = 0; mesh < 4; mesh++) {
+            groupFirst[mesh] = visible;
+            visible += groupCount[mesh];
+        }
+        if(visible == 0)
+            return 0;
+
+        // Write every visible tree at the next free place of its group.
+        System.arraycopy(groupFirst, 0, groupNext, 0, 4);
+        instanceData.clear();
+        for(int i = 0; i < variants.length; i++) {
+            if(groups[i] < 0)
+                continue;
+            instanceData.position(instanceFloats*groupNext[groups[i]]++);
+            instanceData.put(trees, 5*i, 5);
+        }
+        instanceData.position(0).limit(instanceFloats*visible);
+
+        // Orphan the old contents, an earlier view may still be drawing from them.
+        gl.glBindBuffer(GL_TEXTURE_BUFFER, instanceBuffer);
+        gl.glBufferData(GL_TEXTURE_BUFFER, instanceFloats*4L*visible, instanceData, GL_STREAM_DRAW);
+        gl.glBindBuffer(GL_TEXTURE_BUFFER, 0);
+
+        // Shadow casters only need depth.
+        boolean depthOnly = Lighting.isDepthOnly();
+        gl.glUseProgram(depthOnly ? depthProgram : program);
+        int firstLocation = depthOnly ? depthFirstInstanceLocation : firstInstanceLocation;
+        gl.glActiveTexture(GL_TEXTURE0 + instanceUnit);
+        gl.glBindTexture(GL_TEXTURE_BUFFER, instanceTexture);
+        gl.glActiveTexture(GL_TEXTURE0);
+
+        gl.glBindBuffer(GL_ARRAY_BUFFER, meshBuffer);
+        int offset = 0;
+        for(int i = 0; i < attributes.length; i++) {
+            int size = i < 4 ? 3 : 1;
+            gl.glEnableVertexAttribArray(i);
+            gl.glVertexAttribPointer(i, size, GL_FLOAT, false, vertexFloats*4, offset*4L);
+            offset += size;
+        }
+
+        for(int mesh = 0; mesh < 4; mesh++) {
+            if(groupCount[mesh] == 0)
+                continue;
+            gl.glUniform1i(firstLocation, groupFirst[mesh]);
+            gl.glDrawArraysInstanced(GL_TRIANGLES, meshFirst[mesh], meshCount[mesh], groupCount[mesh]);
+        }
+
+        for(int i = 0; i < attributes.length; i++)
+            gl.glDisableVertexAttribArray(i);
+        gl.glBindBuffer(GL_ARRAY_BUFFER, 0);
+        Lighting.resume(gl);
+        return visible;
+    }
+
+    /**
+     * Tests the bounding boxes of the tiles with trees in the frustum of the
+     * last view drawn, for the next frame. Must be called between
+     * {@link OcclusionCuller#beginTests} and {@link OcclusionCuller#endTests}.
+     */
+    public void testTiles(GL2 gl, OcclusionCuller occlusion) {
+        if(tileOf == null)
+            return;
+        for(int t = 0; t < tileInView.length; t++) {
+            if(tileInView[t])
+                occlusion.test(gl, t, tileBounds[6*t], tileBounds[6*t+1], tileBounds[6*t+2],
+                        tileBounds[6*t+3], tileBounds[6*t+4], tileBounds[6*t+5]);
+        }
+    }
+
+    /**
+     * Returns the number of vertices of both variants at a level of detail.
+     */
+    private static int meshSize(int slices) {
+        int trunk = 12*slices;
+        int cones = 3*6*slices;
+        int spheres = 8*6*slices*slices;
+        return 2*trunk + cones + spheres;
+    }
+
+    /**
+     * Bakes the trunk, a cylinder as wide as the tree and as high as the tree.
+     */
+    private static void bakeTrunk(FloatBuffer out, int slices) {
+        float wood = Material.WOOD.ordinal();
+        for(int i = 0; i < slices; i++) {
+            double a0 = 2*Math.PI*i/slices, a1 = 2*Math.PI*(i + 1)/slices;
+            float c0 = (float)Math.cos(a0), s0 = (float)Math.sin(a0);
+            float c1 = (float)Math.cos(a1), s1 = (float)Math.sin(a1);
+            // The side, with normals that do not depend on the size.
+            vertex(out, c0, s0, 0, 0, 0, 0, 0, c0, s0, 0, wood);
+            vertex(out, c1, s1, 0, 0, 0, 0, 0, c1, s1, 0, wood);
+            vertex(out, c1, s1, 0, 1, 0, 0, 0, c1, s1, 0, wood);
+            vertex(out, c0, s0, 0, 0, 0, 0, 0, c0, s0, 0, wood);
+            vertex(out, c1, s1, 0, 1, 0, 0, 0, c1, s1, 0, wood);
+            vertex(out, c0, s0, 0, 1, 0, 0, 0, c0, s0, 0, wood);
+            // The bottom and the top.
+            vertex(out, 0, 0, 0, 0, 0, 0, 0, 0, 0, -1, wood);
+            vertex(out, c1, s1, 0, 0, 0, 0, 0, 0, 0, -1, wood);
+            vertex(out, c0, s0, 0, 0, 0, 0, 0, 0, 0, -1, wood);
+            vertex(out, 0, 0, 0, 1, 0, 0, 0, 0, 0, 1, wood);
+            vertex(out, c0, s0, 0, 1, 0, 0, 0, 0, 0, 1, wood);
+            vertex(out, c1, s1, 0, 1, 0, 0, 0, 0, 0, 1, wood);
+        }
+    }
+
+    /**
+     * Bakes three stacked cones, each as high as the tree, starting at 85% of its height.
+     */
+    private static void bakeCones(FloatBuffer out, int slices) {
+        float leaves = Material.LEAVES.ordinal();
+        float[] radius = {2.1f, 1.9f, 1.6f};
+        float[] base = {0.85f, 1.25f, 1.65f};
+        for(int k = 0; k < 3; k++) {
+            float r = radius[k], z = base[k];
+            for(int i = 0; i < slices; i++) {
+                double a0 = 2*Math.PI*i/slices, a1 = 2*Math.PI*(i + 1)/slices, am = (a0 + a1)/2;
+                float c0 = (float)Math.cos(a0), s0 = (float)Math.sin(a0);
+                float c1 = (float)Math.cos(a1), s1 = (float)Math.sin(a1);
+                float cm = (float)Math.cos(am), sm = (float)Math.sin(am);
+                // A cone of radius r*width and height h has normal (h*cos, h*sin, r*width).
+                vertex(out, r*c0, r*s0, 0, z, 0, 0, r, c0, s0, 0, leaves);
+                vertex(out, r*c1, r*s1, 0, z, 0, 0, r, c1, s1, 0, leaves);
+                vertex(out, 0, 0, 0, z + 1, 0, 0, r, cm, sm, 0, leaves);
+                // The base.
+                vertex(out, 0, 0, 0, z, 0, 0, 0, 0, 0, -1, leaves);
+                vertex(out, r*c1, r*s1, 0, z, 0, 0, 0, 0, 0, -1, leaves);
+                vertex(out, r*c0, r*s0, 0, z, 0, 0, 0, 0, 0, -1, leaves);
+            }
+        }
+    }
+
+    /**
+     * Bakes eight spheres, four around and four above 85% of the tree height.
+     */
+    private static void bakeSpheres(FloatBuffer out, int slices) {
+        float leaves = Material.LEAVES.ordinal();
+        float[][] centers = {
+            {0.5f, 0.5f, 0f}, {0.5f, -0.5f, 0f}, {-0.5f, -0.5f, 0f}, {-0.5f, 0.5f, 0f},
+            {0f, 0.5f, 0.5f}, {0f, -0.5f, 0.5f}, {-0.5f, 0f, 0.5f}, {0.5f, 0f, 0.5f}
+        };
+        float[] a = new float[3], b = new float[3], c = new float[3], d = new float[3];
+        for(float[] center : centers) {
+            for(int i = 0; i < slices; i++) {
+                for(int j = 0; j < slices; j++) {
+                    spherePoint(a, i, j, slices);
+                    spherePoint(b, i + 1, j, slices);
+                    spherePoint(c, i + 1, j + 1, slices);
+                    spherePoint(d, i, j + 1, slices);
+                    sphereVertex(out, a, center, leaves);
+                    sphereVertex(out, d, center, leaves);
+                    sphereVertex(out, c, center, leaves);
+                    sphereVertex(out, a, center, leaves);
+                    sphereVertex(out, c, center, leaves);
+                    sphereVertex(out, b, center, leaves);
+                }
+            }
+        }
+    }
+
+    /**
+     * Computes a point on the unit sphere at a slice and a stack.
+     */
+    private static void spherePoint(float[] out, int slice, int stack, int slices) {
+        double theta = 2*Math.PI*slice/slices;
+        double phi = Math.PI*stack/slices;
+        out[0] = (float)(Math.sin(phi)*Math.cos(theta));
+        out[1] = (float)(Math.sin(phi)*Math.sin(theta));
+        out[2] = (float)Math.cos(phi);
+    }
+
+    /**
+     * Writes a vertex of a sphere with radius 0.9 * width.
+     */
+    private static void sphereVertex(FloatBuffer out, float[] n, float[] center, float material) {
+        vertex(out, center[0] + 0.9f*n[0], center[1] + 0.9f*n[1], center[2] + 0.9f*n[2], 0.85f,
+                n[0], n[1], n[2], 0, 0, 0, material);
+    }
+
+    /**
+     * Writes a baked vertex: the width part of the position, the height part
+     * of the position (always along z), and the width and height parts of the normal.
+     */
+    private static void vertex(FloatBuffer out, float wx, float wy, float wz, float hz,
+            float nwx, float nwy, float nwz, float nhx, float nhy, float nhz, float material) {
+        out.put(wx).put(wy).put(wz);
+        out.put(0).put(0).put(hz);
+        out.put(nwx).put(nwy).put(nwz);
+        out.put(nhx).put(nhy).put(nhz);
+        out.put(material);
+    }
+}
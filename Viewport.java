@@ -0,0 +1,75 @@
+package robotrace;
+
+/**
+ * A part of the window showing the race through its own camera.
+ *
+ * Every viewport keeps its own camera (and thus its own smoothing) and
+ * its own frustum and occlusion, so culling and level of detail are
+ * decided per view.
+ */
+class Viewport {
+
+    /** Camera mode that follows the mode chosen in the menus. */
+    final static int menuMode = -1;
+
+    /** Left, bottom, width and height as fractions of the window. */
+    final float x, y, width, height;
+
+    /** Camera mode of this view, or {@link #menuMode}. */
+    final int camMode;
+
+    /** Whether this view follows the race leader instead of the robot in focus. */
+    final boolean followLeader;
+
+    /** The camera of this view. */
+    final Camera camera = new Camera();
+
+    /** The viewing volume of this view, updated when the view is applied. */
+    final Frustum frustum = new Frustum();
+
+    /** The robots and the tree tiles hidden from this view. */
+    final OcclusionCuller robotOcclusion = new OcclusionCuller();
+    final OcclusionCuller treeOcclusion = new OcclusionCuller();
+
+    /**
+     * Constructs a viewport.
+     * @param x             Left side as a fraction of the window width.
+     * @param y             Bottom side as a fraction of the window height.
+     * @param width         Width as a fraction of the window width.
+     * @param height        Height as a fraction of the window height.
+     * @param camMode       Camera mode of this view, or {@link #menuMode}.
+     * @param followLeader  Whether to follow the race leader instead of the robot in focus.
+     */
+    public Viewport(float x, float y, float width, float height, int camMode, boolean followLeader) {
+        this.x = x;
+        this.y = y;
+        this.width = width;
+        this.height = height;
+        this.camMode = camMode;
+        this.followLeader = followLeader;
+    }
+
+    /**
+     * Returns the viewports of a layout.
+     * @param layout "single" for one view, "pip" for a picture-in-picture
+     *               first person view of the leader, or "split" for the menu
+     *               view next to a helicopter and a first person view.
+     */
+    public static Viewport[] layout(String layout) {
+        if("pip".equals(layout)) {
+            return new Viewport[] {
+                new Viewport(0f, 0f, 1f, 1f, menuMode, false),
+                new Viewport(0.68f, 0.03f, 0.3f, 0.3f, 3, true)
+            };
+        } else if("split".equals(layout)) {
+            return new Viewport[] {
+                new Viewport(0f, 0f, 0.5f, 1f, menuMode, false),
+                new Viewport(0.5f, 0.5f, 0.5f, 0.5f, 1, false),
+                new Viewport(0.5f, 0f, 0.5f, 0.5f, 3, true)
+            };
+        }
+        return new Viewport[] {
+            new Viewport(0f, 0f, 1f, 1f, menuMode, false)
+        };
+    }
+}
@@ -0,0 +1,16 @@
+package robotrace;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * The fork-join pool shared by all parallel work: updating the robots,
+ * scattering the scenery and baking the terrain.
+ *
+ * One pool with one worker per core keeps the parallel stages from
+ * competing for the cores with each other.
+ */
+class Workers {
+
+    /** The pool, one worker per core. */
+    final static ForkJoinPool pool = new ForkJoinPool();
+}